@@ -0,0 +1,166 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile.Reader;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Reads the bucket file one partition at a time so that the crush can run in map tasks. The splits are read from the file named by
+ * <tt>crush.splits</tt>, which {@link Crush#writeDirs()} writes in map only mode. The number of splits requested by the framework is
+ * ignored because the partitions have already been balanced.
+ */
+@SuppressWarnings("deprecation")
+public class BucketInputFormat implements InputFormat<Text, Text> {
+
+	@Override
+	public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+		String path = job.get("crush.splits");
+
+		if (null == path) {
+			throw new IllegalArgumentException("crush.splits is not set");
+		}
+
+		List<BucketSplit> splits = new ArrayList<BucketSplit>();
+
+		Path splitsPath = new Path(path);
+
+		Reader reader = new Reader(splitsPath.getFileSystem(job), splitsPath, job);
+
+		try {
+			IntWritable partNum = new IntWritable();
+			BucketSplit split = new BucketSplit();
+
+			while (reader.next(partNum, split)) {
+				splits.add(split);
+
+				split = new BucketSplit();
+			}
+		} finally {
+			reader.close();
+		}
+
+		return splits.toArray(new InputSplit[splits.size()]);
+	}
+
+	@Override
+	public RecordReader<Text, Text> getRecordReader(InputSplit inputSplit, JobConf job, Reporter reporter) throws IOException {
+		if (!(inputSplit instanceof BucketSplit)) {
+			throw new AssertionError();
+		}
+
+		BucketSplit split = (BucketSplit) inputSplit;
+
+		FileSystem fs = split.getBucketFiles().getFileSystem(job);
+
+		return new BucketReader(new Reader(fs, split.getBucketFiles(), job), split);
+	}
+
+	/**
+	 * Visits the buckets of the split in order. Seeks to the start of each bucket and returns records until the key changes.
+	 */
+	private static class BucketReader implements RecordReader<Text, Text> {
+
+		private final Reader reader;
+
+		private final BucketSplit split;
+
+		private final Text bucketId = new Text();
+
+		/**
+		 * The index of the bucket being read.
+		 */
+		private int bucket = -1;
+
+		public BucketReader(Reader reader, BucketSplit split) {
+			super();
+
+			this.reader = reader;
+			this.split = split;
+		}
+
+		@Override
+		public Text createKey() {
+			return new Text();
+		}
+
+		@Override
+		public Text createValue() {
+			return new Text();
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return reader.getPosition();
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			if (0 == split.getNumBuckets()) {
+				return 1;
+			}
+
+			return ((float) Math.max(bucket, 0)) / split.getNumBuckets();
+		}
+
+		@Override
+		public boolean next(Text key, Text value) throws IOException {
+			if (-1 == bucket) {
+				nextBucket();
+			}
+
+			while (bucket < split.getNumBuckets()) {
+				if (reader.next(key, value) && bucketId.equals(key)) {
+					return true;
+				}
+
+				/*
+				 * The record belongs to the bucket that follows in the file, which is not necessarily the next one in the split.
+				 */
+				nextBucket();
+			}
+
+			return false;
+		}
+
+		private void nextBucket() throws IOException {
+			bucket++;
+
+			if (bucket < split.getNumBuckets()) {
+				bucketId.set(split.getBucketId(bucket));
+
+				reader.seek(split.getOffset(bucket));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.InputSplit;
+
+/**
+ * A group of buckets that {@link Crush#writeDirs()} assigned to the same partition. Each bucket is a contiguous run of records in the
+ * bucket file that begins at a sync point, so a reader can seek straight to it.
+ *
+ * @see BucketInputFormat
+ */
+@SuppressWarnings("deprecation")
+public class BucketSplit implements InputSplit {
+
+	private Path bucketFiles;
+
+	/**
+	 * The keys of the buckets in the bucket file, which include the partition number.
+	 *
+	 * @see CrushPartitioner#key(int, String)
+	 */
+	private String[] bucketIds;
+
+	private long[] offsets;
+
+	private long length;
+
+	private String[] hosts;
+
+	public BucketSplit() {
+		super();
+	}
+
+	public BucketSplit(Path bucketFiles, String[] bucketIds, long[] offsets, long length, String[] hosts) {
+		super();
+
+		if (bucketIds.length != offsets.length) {
+			throw new IllegalArgumentException(format("%d buckets but %d offsets", bucketIds.length, offsets.length));
+		}
+
+		this.bucketFiles = bucketFiles;
+		this.bucketIds = bucketIds;
+		this.offsets = offsets;
+		this.length = length;
+		this.hosts = hosts;
+	}
+
+	public Path getBucketFiles() {
+		return bucketFiles;
+	}
+
+	public int getNumBuckets() {
+		return bucketIds.length;
+	}
+
+	public String getBucketId(int i) {
+		return bucketIds[i];
+	}
+
+	/**
+	 * Returns the position of the sync point that precedes the first record of the bucket.
+	 */
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Returns the number of input bytes in the buckets, which is what the framework uses to order the map tasks.
+	 */
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public String[] getLocations() {
+		return hosts;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, bucketFiles.toString());
+
+		WritableUtils.writeVInt(out, bucketIds.length);
+
+		for (int i = 0; i < bucketIds.length; i++) {
+			Text.writeString(out, bucketIds[i]);
+			WritableUtils.writeVLong(out, offsets[i]);
+		}
+
+		WritableUtils.writeVLong(out, length);
+
+		WritableUtils.writeStringArray(out, hosts);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		bucketFiles = new Path(Text.readString(in));
+
+		int numBuckets = WritableUtils.readVInt(in);
+
+		bucketIds = new String[numBuckets];
+		offsets = new long[numBuckets];
+
+		for (int i = 0; i < numBuckets; i++) {
+			bucketIds[i] = Text.readString(in);
+			offsets[i] = WritableUtils.readVLong(in);
+		}
+
+		length = WritableUtils.readVLong(in);
+
+		hosts = WritableUtils.readStringArray(in);
+	}
+
+	@Override
+	public String toString() {
+		return format("%s%s", bucketFiles, Arrays.toString(bucketIds));
+	}
+}
@@ -18,12 +18,15 @@ package com.m6d.filecrush.crush;
 import static java.lang.String.format;
 import static java.util.Collections.unmodifiableList;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.hadoop.fs.FileStatus;
 
@@ -45,9 +48,21 @@ import org.apache.hadoop.fs.FileStatus;
  * <ol>
  * <li>Calculate the number of buckets as floor(total bytes / block size). Add one if there is a remainder.</li>
  * <li>Sort the files in order of <b>descending</b> size.</li>
- * <li>Add each file to the bucket that has the least size.</li>
+ * <li>Add each file to the bucket that has the least size. Ties go to the bucket with the lowest index.</li>
  * <li>Remove any buckets containing one file only</li>
  * </ol>
+ *
+ * <p>
+ * If the hosts that store the files are known, step 3 prefers to keep files stored on the same host together. Each host remembers
+ * the bucket that most recently received one of its files and a file goes to the least full of the buckets remembered by its hosts
+ * as long as that bucket stays within the average bucket size. Otherwise the file goes to the bucket that has the least size and its
+ * hosts remember that bucket instead. No bucket exceeds the average by more than the size of the largest file, which is the same
+ * bound that the plain algorithm guarantees. Each bucket then reports the hosts that store most of its bytes.
+ * </p>
+ *
+ * <p>
+ * Buckets are returned in the order of their indexes.
+ * </p>
  */
 class Bucketer {
 	/**
@@ -61,12 +76,45 @@ class Bucketer {
 	private final long bucketSize;
 
 	/**
-	 * The items to consider for bucketing.
+	 * The ids of the items to consider for bucketing, less the {@link #prefix}. Items are stored by column instead of being held on
+	 * to so that a bucketer with millions of items does not keep millions of objects reachable. Only the first {@link #count}
+	 * elements are used. The columns start small since most directories hold few files and grow as needed.
+	 */
+	private String[] ids = new String[INITIAL_CAPACITY];
+
+	/**
+	 * The start of the id of the first item up to and including its last slash, which is the directory of a file. Stored once
+	 * instead of in the id of every item in the directory.
+	 */
+	private String prefix;
+
+	/**
+	 * The items whose ids do not start with the {@link #prefix}. Their elements of {@link #ids} hold the whole id.
 	 */
-	private final List<HasSize> items = new LinkedList<HasSize>();
+	private final BitSet unprefixed = new BitSet();
 
 	/**
-	 * The total number of bytes represented by the files in {@link #items}.
+	 * The sizes of the items that correspond with {@link #ids}.
+	 */
+	private long[] sizes = new long[INITIAL_CAPACITY];
+
+	/**
+	 * The hosts that store the items that correspond with {@link #ids}. An element is null if the hosts of the item are not known.
+	 */
+	private String[][] hosts = new String[INITIAL_CAPACITY][];
+
+	/**
+	 * True if the hosts of at least one item are known.
+	 */
+	private boolean located;
+
+	/**
+	 * The number of items to consider for bucketing.
+	 */
+	private int count;
+
+	/**
+	 * The total number of bytes represented by the items.
 	 */
 	private long size;
 
@@ -114,62 +162,138 @@ class Bucketer {
 		/*
 		 * Sort the files in order of descending size.
 		 */
-		Collections.sort(items, DESCENDING_SIZE);
+		int[] order = sortDescendingSize();
+
+		int numBuckets;
+
+		if (0 == size) {
+			numBuckets = 0;
+		} else if (0 == bucketSize) {
+			numBuckets = maxBuckets;
+		} else {
+			long needed = size / bucketSize;
 
-		LinkedList<Bucket> buckets = new LinkedList<Bucketer.Bucket>();
+			if (needed * bucketSize != size) {
+				needed++;
+			}
 
-		for (long remaining = size; remaining > 0 && buckets.size() < maxBuckets; remaining -= bucketSize) {
-			buckets.add(new Bucket(format("%s-%d", dir, buckets.size())));
+			numBuckets = (int) Math.min(maxBuckets, needed);
 		}
 
-		int numBuckets = buckets.size();
+		/*
+		 * The bucket of each item, in sorted order.
+		 */
+		int[] assignments = new int[count];
+
+		long[] bytes = new long[numBuckets];
+		int[] counts = new int[numBuckets];
 
 		if (1 == numBuckets) {
-			Bucket bucket = buckets.getFirst();
+			bytes[0] = size;
+			counts[0] = count;
+		} else if (1 < numBuckets) {
+			/*
+			 * Add each file to the smallest bucket. The buckets are kept in a binary min heap of bucket indexes ordered by bytes and then
+			 * by index, so that ties go to the bucket with the lowest index. Every file costs O(log numBuckets).
+			 */
+			int[] heap = new int[numBuckets];
+
+			/*
+			 * The position of each bucket in the heap.
+			 */
+			int[] positions = new int[numBuckets];
 
-			for (HasSize file : items) {
-				bucket.add(file);
+			/*
+			 * All the buckets are empty so the indexes in ascending order already form a heap.
+			 */
+			for (int i = 0; i < numBuckets; i++) {
+				heap[i] = i;
+				positions[i] = i;
 			}
-		} else {
+
 			/*
-			 * Add the files to the smallest bucket.
+			 * The bucket that most recently received a file stored on each host.
 			 */
-			for (HasSize item : items) {
-				ListIterator<Bucket> iterator = buckets.listIterator();
+			Map<String, Integer> hostBuckets = null;
 
-				Bucket bucket = iterator.next();
-				bucket.add(item);
+			long capacity = 0;
 
-				iterator.remove();
+			if (located) {
+				hostBuckets = new HashMap<String, Integer>();
 
-				/*
-				 * Reposition the bucket in the list to preserve order by ascending bucket size.
-				 */
-				while (buckets.size() < numBuckets && iterator.hasNext()) {
-					Bucket other = iterator.next();
+				capacity = size / numBuckets;
+			}
+
+			for (int i = 0; i < count; i++) {
+				long itemSize = sizes[order[i]];
+
+				int bucket = heap[0];
 
-					if (other.bytes > bucket.bytes) {
-							iterator.previous();
-							iterator.add(bucket);
+				String[] itemHosts = hosts[order[i]];
+
+				if (null != itemHosts) {
+					bucket = -1;
+
+					for (String host : itemHosts) {
+						Integer hostBucket = hostBuckets.get(host);
+
+						if (null != hostBucket && bytes[hostBucket] + itemSize <= capacity
+								&& (-1 == bucket || smaller(hostBucket, bucket, bytes))) {
+							bucket = hostBucket;
+						}
+					}
+
+					if (-1 == bucket) {
+						bucket = heap[0];
 					}
-				}
 
-				if (buckets.size() < numBuckets) {
-					/*
-					 * This bucket is now the biggest one.
-					 */
-					buckets.add(bucket);
+					for (String host : itemHosts) {
+						Integer hostBucket = hostBuckets.get(host);
+
+						if (null == hostBucket || bytes[hostBucket] + itemSize > capacity) {
+							hostBuckets.put(host, bucket);
+						}
+					}
 				}
+
+				assignments[i] = bucket;
+				bytes[bucket] += itemSize;
+				counts[bucket]++;
+
+				siftDown(heap, positions, bytes, positions[bucket]);
 			}
 		}
 
-		if (excludeSingleItemBuckets) {
-			for (Iterator<Bucket> iter = buckets.iterator(); iter.hasNext(); ) {
-				Bucket bucket = iter.next();
+		String[][] contents = new String[numBuckets][];
 
-				if (bucket.contents.size() < 2) {
-					iter.remove();
-				}
+		for (int i = 0; i < numBuckets; i++) {
+			contents[i] = new String[counts[i]];
+		}
+
+		/*
+		 * Fill the buckets in sorted order, reusing the counts as the number of files added so far.
+		 */
+		Arrays.fill(counts, 0);
+
+		for (int i = 0; i < count; i++) {
+			int bucket = assignments[i];
+
+			contents[bucket][counts[bucket]++] = id(order[i]);
+		}
+
+		List<List<String>> bucketHosts = null;
+
+		if (located) {
+			bucketHosts = preferredHosts(numBuckets, order, assignments);
+		}
+
+		List<Bucket> result = new ArrayList<Bucket>(numBuckets);
+
+		for (int i = 0; i < numBuckets; i++) {
+			if (!excludeSingleItemBuckets || contents[i].length > 1) {
+				List<String> preferred = null == bucketHosts ? Collections.<String>emptyList() : bucketHosts.get(i);
+
+				result.add(new Bucket(format("%s-%d", dir, i), Arrays.asList(contents[i]), bytes[i], preferred));
 			}
 		}
 
@@ -177,16 +301,155 @@ class Bucketer {
 		 * Empty the state for the next invocation of reset.
 		 */
 		dir = null;
-		items.clear();
-		size = 0;
+		clear();
+
+		return result;
+	}
+
+	/**
+	 * Returns the hosts that store the most bytes of each bucket, at most {@link #MAX_HOSTS} per bucket. Ties go to the host whose
+	 * name sorts first.
+	 */
+	private List<List<String>> preferredHosts(int numBuckets, int[] order, int[] assignments) {
+		List<Map<String, Long>> hostBytes = new ArrayList<Map<String, Long>>(numBuckets);
+
+		for (int i = 0; i < numBuckets; i++) {
+			hostBytes.add(new HashMap<String, Long>());
+		}
+
+		for (int i = 0; i < count; i++) {
+			String[] itemHosts = hosts[order[i]];
+
+			if (null != itemHosts) {
+				Map<String, Long> bucketBytes = hostBytes.get(assignments[i]);
+
+				for (String host : itemHosts) {
+					Long prev = bucketBytes.get(host);
+
+					bucketBytes.put(host, sizes[order[i]] + (null == prev ? 0 : prev));
+				}
+			}
+		}
+
+		List<List<String>> result = new ArrayList<List<String>>(numBuckets);
+
+		for (Map<String, Long> bucketBytes : hostBytes) {
+			List<Entry<String, Long>> entries = new ArrayList<Entry<String, Long>>(bucketBytes.entrySet());
+
+			Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+				@Override
+				public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+					int cmp = o2.getValue().compareTo(o1.getValue());
+
+					return 0 != cmp ? cmp : o1.getKey().compareTo(o2.getKey());
+				}
+			});
+
+			List<String> preferred = new ArrayList<String>(Math.min(MAX_HOSTS, entries.size()));
 
-		return buckets;
+			for (int i = 0; i < MAX_HOSTS && i < entries.size(); i++) {
+				preferred.add(entries.get(i).getKey());
+			}
+
+			result.add(preferred);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the indexes of the items in order of descending size. Items of the same size stay in the order in which they were
+	 * added.
+	 */
+	private int[] sortDescendingSize() {
+		int[] order = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+
+		mergeSort(order, new int[count], 0, count);
+
+		return order;
+	}
+
+	/**
+	 * Stable sort of the range [from, to) of item indexes by descending size.
+	 */
+	private void mergeSort(int[] order, int[] scratch, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+
+		mergeSort(order, scratch, from, mid);
+		mergeSort(order, scratch, mid, to);
+
+		/*
+		 * Already in order.
+		 */
+		if (sizes[order[mid - 1]] >= sizes[order[mid]]) {
+			return;
+		}
+
+		System.arraycopy(order, from, scratch, from, to - from);
+
+		for (int i = from, left = from, right = mid; i < to; i++) {
+			if (right >= to || (left < mid && sizes[scratch[left]] >= sizes[scratch[right]])) {
+				order[i] = scratch[left++];
+			} else {
+				order[i] = scratch[right++];
+			}
+		}
+	}
+
+	/**
+	 * Restores the heap after the bytes of the bucket at the given position have grown.
+	 */
+	private static void siftDown(int[] heap, int[] positions, long[] bytes, int pos) {
+		int n = heap.length;
+		int bucket = heap[pos];
+
+		for (int child = 2 * pos + 1; child < n; child = 2 * pos + 1) {
+			if (child + 1 < n && smaller(heap[child + 1], heap[child], bytes)) {
+				child++;
+			}
+
+			if (!smaller(heap[child], bucket, bytes)) {
+				break;
+			}
+
+			heap[pos] = heap[child];
+			positions[heap[pos]] = pos;
+			pos = child;
+		}
+
+		heap[pos] = bucket;
+		positions[bucket] = pos;
+	}
+
+	/**
+	 * Returns true if the first bucket has fewer bytes than the second or the same number of bytes and a lower index.
+	 */
+	private static boolean smaller(int bucket, int other, long[] bytes) {
+		return bytes[bucket] < bytes[other] || (bytes[bucket] == bytes[other] && bucket < other);
 	}
 
 	/**
 	 * Add an item for consideration. If the item has zero size, then it is ignored.
 	 */
 	public void add(HasSize item) {
+		add(item, null);
+	}
+
+	/**
+	 * Add an item stored on the given hosts for consideration. If the item has zero size, then it is ignored.
+	 *
+	 * @param itemHosts
+	 *          The hosts that store the item or null if they are not known.
+	 */
+	public void add(HasSize item, List<String> itemHosts) {
 		if (null == dir) {
 			throw new IllegalStateException("No directory set");
 		}
@@ -194,16 +457,52 @@ class Bucketer {
 		long itemSize = item.size();
 
 		if (0 != itemSize) {
-			items.add(item);
+			String id = item.id();
+
+			if (null == prefix) {
+				prefix = id.substring(0, id.lastIndexOf('/') + 1);
+			}
+
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * count);
+				sizes = Arrays.copyOf(sizes, 2 * count);
+				hosts = Arrays.copyOf(hosts, 2 * count);
+			}
+
+			if (id.startsWith(prefix)) {
+				/*
+				 * Copy so that the rest of the id does not keep the whole id reachable.
+				 */
+				ids[count] = new String(id.substring(prefix.length()));
+			} else {
+				ids[count] = id;
+				unprefixed.set(count);
+			}
+
+			sizes[count] = itemSize;
+
+			if (null != itemHosts && !itemHosts.isEmpty()) {
+				hosts[count] = itemHosts.toArray(new String[itemHosts.size()]);
+				located = true;
+			}
+
+			count++;
 			size += itemSize;
 		}
 	}
 
+	/**
+	 * Returns the id of the item at the given index.
+	 */
+	private String id(int i) {
+		return unprefixed.get(i) ? ids[i] : prefix + ids[i];
+	}
+
 	/**
 	 * Returns the count of items being considered.
 	 */
 	int count() {
-		return items.size();
+		return count;
 	}
 
 	/**
@@ -226,8 +525,28 @@ class Bucketer {
 
 		this.dir = dir;
 
-		items.clear();
+		clear();
+	}
+
+	/**
+	 * Forgets the items. Storage that grew for a large directory is given back.
+	 */
+	private void clear() {
+		if (ids.length > INITIAL_CAPACITY) {
+			ids = new String[INITIAL_CAPACITY];
+			sizes = new long[INITIAL_CAPACITY];
+			hosts = new String[INITIAL_CAPACITY][];
+		} else {
+			Arrays.fill(ids, 0, count, null);
+			Arrays.fill(hosts, 0, count, null);
+		}
+
+		prefix = null;
+		unprefixed.clear();
+
+		count = 0;
 		size = 0;
+		located = false;
 	}
 
 	String dir() {
@@ -240,26 +559,21 @@ class Bucketer {
 
 		private final String name;
 
-		private long bytes;
+		private final long bytes;
 
-		public Bucket(String name) {
-			super();
+		private final List<String> hosts;
 
-			this.name = name;
-			this.contents = new LinkedList<String>();
+		public Bucket(String name, List<String> contents, long bytes) {
+			this(name, contents, bytes, Collections.<String>emptyList());
 		}
 
-		public Bucket(String name, List<String> contents, long bytes) {
+		public Bucket(String name, List<String> contents, long bytes, List<String> hosts) {
 			super();
 
 			this.contents = contents;
 			this.name = name;
 			this.bytes = bytes;
-		}
-
-		private void add(HasSize hasSize) {
-			contents.add(hasSize.id());
-			bytes += hasSize.size();
+			this.hosts = hosts;
 		}
 
 		public List<String> contents() {
@@ -274,6 +588,14 @@ class Bucketer {
 			return bytes;
 		}
 
+		/**
+		 * Returns the hosts that store most of the bytes in the bucket, most bytes first. Empty if the hosts of the contents are not
+		 * known.
+		 */
+		public List<String> hosts() {
+			return unmodifiableList(hosts);
+		}
+
 		@Override
 		public String id() {
 			return name();
@@ -286,7 +608,7 @@ class Bucketer {
 
 		@Override
 		public String toString() {
-			return format("%s[%s, %d, %s]", getClass().getSimpleName(), name, bytes, contents);
+			return format("%s[%s, %d, %s, %s]", getClass().getSimpleName(), name, bytes, contents, hosts);
 		}
 
 		@Override
@@ -297,7 +619,7 @@ class Bucketer {
 
 			Bucket other = (Bucket) obj;
 
-			return name.equals(other.name) && bytes == other.bytes && contents.equals(other.contents);
+			return name.equals(other.name) && bytes == other.bytes && contents.equals(other.contents) && hosts.equals(other.hosts);
 		}
 
 		@Override
@@ -306,23 +628,15 @@ class Bucketer {
 		}
 	}
 
-	private static final Comparator<HasSize> DESCENDING_SIZE = new Comparator<HasSize>() {
-		@Override
-		public int compare(HasSize o1, HasSize o2) {
-			long l1 = o1.size();
-			long l2 = o2.size();
-
-			if (l1 < l2) {
-				return 1;
-			}
-
-			if (l1 > l2) {
-				return -1;
-			}
+	/**
+	 * The number of items the bucketer has room for before it grows.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
 
-			return 0;
-		}
-	};
+	/**
+	 * The maximum number of hosts reported by {@link Bucket#hosts()}.
+	 */
+	private static final int MAX_HOSTS = 3;
 
 	interface HasSize {
 		String id();
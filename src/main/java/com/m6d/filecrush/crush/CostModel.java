@@ -0,0 +1,50 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+/**
+ * Estimates how long a task takes to crush a bucket so that the buckets can be spread evenly across the tasks. Costs are only ever
+ * added up and compared with each other so any unit will do, but a cost proportional to the time it takes to crush the bucket
+ * balances the tasks best.
+ *
+ * <p>
+ * Implementations are instantiated with {@link org.apache.hadoop.util.ReflectionUtils#newInstance(Class, org.apache.hadoop.conf.Configuration)}
+ * so they may implement {@link org.apache.hadoop.conf.Configurable} to read the job configuration. The implementation is chosen by
+ * {@link #COST_MODEL} and defaults to {@link LinearCostModel}.
+ * </p>
+ */
+public interface CostModel {
+	/**
+	 * The FQN of the {@link CostModel} used to assign buckets to tasks.
+	 */
+	String COST_MODEL = "crush.cost.model";
+
+	/**
+	 * The cost a task crushes per second, used to derive the number of tasks from the plan. Defaults to
+	 * {@link #DEFAULT_THROUGHPUT}, which suits {@link LinearCostModel}.
+	 */
+	String THROUGHPUT = "crush.cost.throughput";
+
+	/**
+	 * 32 MB a second.
+	 */
+	float DEFAULT_THROUGHPUT = 32 * 1024 * 1024;
+
+	/**
+	 * Returns the cost of crushing a bucket of the given number of files and bytes. Must not be negative.
+	 */
+	long cost(long bytes, int files);
+}
@@ -19,17 +19,24 @@ import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.System.out;
 import static java.util.Arrays.asList;
-import static java.util.Collections.emptyList;
+import static java.util.Collections.nCopies;
 
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
@@ -50,6 +57,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.SequenceFile.Reader;
@@ -68,14 +76,20 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TaskReport;
 import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.lib.IdentityMapper;
 import org.apache.hadoop.mapred.lib.MultipleInputs;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.apache.hadoop.mapred.lib.NLineInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import com.m6d.filecrush.crush.Bucketer.Bucket;
+import com.m6d.filecrush.crush.Bucketer.HasSize;
+import com.m6d.filecrush.crush.DirectoryScanner.Listing;
 
 
 @SuppressWarnings("deprecation")
@@ -105,22 +119,17 @@ public class Crush extends Configured implements Tool {
 	private Path dest;
 
 	/**
-	 * The temporary directory that holds {@link #bucketFiles}, {@link #partitionMap}, and {@link #counters}. Deleted recursively.
+	 * The temporary directory that holds {@link #bucketFiles}, {@link #counters}, and {@link #splits}. Deleted recursively.
 	 */
 	private Path tmpDir;
 
 	/**
-	 * The list of directories to crush. Points to a sequence file where the key is the crush output file (aka data bucket) and the
-	 * value is a file.
-	 */
-	private Path bucketFiles;
-
-	/**
-	 * The map from directory to partition.
+	 * The list of directories to crush. Points to a sequence file where the key identifies the crush output file (aka data bucket)
+	 * and its partition and the value is a file.
 	 *
 	 * @see CrushPartitioner
 	 */
-	private Path partitionMap;
+	private Path bucketFiles;
 
 	/**
 	 * The counters generated by {@link #writeDirs()}.
@@ -130,9 +139,56 @@ public class Crush extends Configured implements Tool {
 	private Path counters;
 
 	/**
-	 * The maximum size of a file that can be crushed.
+	 * The {@link BucketSplit}s generated by {@link #writeDirs()} in map only mode, one per partition.
+	 *
+	 * @see BucketInputFormat
+	 */
+	private Path splits;
+
+	/**
+	 * Controls whether the crush runs in map tasks instead of reduce tasks.
+	 */
+	private boolean mapOnly;
+
+	/**
+	 * Controls whether the block locations of crushable files are used to group files stored on the same hosts.
+	 */
+	private boolean locality;
+
+	/**
+	 * The number of minutes each task should spend crushing when the number of tasks is derived from the plan. Zero to use the
+	 * configured number of tasks.
+	 *
+	 * @see CostModel#THROUGHPUT
+	 */
+	private double autoTaskMinutes;
+
+	/**
+	 * True if {@link #writeDirs()} found the plan small enough to crush in process.
+	 *
+	 * @see #LOCAL_MAX_BYTES
+	 * @see #LOCAL_MAX_FILES
+	 */
+	private boolean local;
+
+	/**
+	 * The number of threads that crush the buckets in this JVM while the tree is still being scanned. Zero to submit a job.
+	 *
+	 * @see InProcessCrusher
+	 */
+	private int inProcessThreads;
+
+	/**
+	 * The number of map tasks that plan the sub directories of {@link #srcDir} in a job of their own. Zero to plan in the client.
+	 *
+	 * @see PlanningMapper
+	 */
+	private int planTasks;
+
+	/**
+	 * The maximum size of a file that can be crushed by crush spec.
 	 */
-	private long maxEligibleSize;
+	private List<Long> maxEligibleSizes;
 
 	/**
 	 * Distributed file system block size.
@@ -140,9 +196,9 @@ public class Crush extends Configured implements Tool {
 	private long dfsBlockSize;
 
 	/**
-	 * The maximum number of dfs blocks per file.
+	 * The maximum number of dfs blocks per file by crush spec.
 	 */
-	private int maxFileBlocks;
+	private List<Integer> maxFileBlocks;
 
 	private JobConf job;
 
@@ -165,26 +221,108 @@ public class Crush extends Configured implements Tool {
 	private Counters jobCounters;
 
 	/**
-	 * The codec for the configured compression codec. Used to locate crush output files since Hadoop likes to add things to the
+	 * The extensions of the configured compression codecs. Used to locate crush output files since Hadoop likes to add things to the
 	 * file names you request.
 	 */
-	private String codecExtension;
+	private Set<String> codecExtensions;
 
 	/**
-	 * Absolute paths to the skipped files. Path only. No scheme or authority.
+	 * Sequence files whose keys are the absolute paths to the skipped files. Path only. No scheme or authority. The paths are written
+	 * out as they are found and read back when the files are moved so that the client never holds them all in memory.
 	 */
-	private Set<String> skippedFiles;
+	private List<Path> skippedFiles;
 
 	/**
 	 * The number of crush output files.
 	 */
 	private int nBuckets;
 
+	/**
+	 * Prices the buckets for {@link #partitionBucketer}.
+	 */
+	private CostModel costModel;
+
+	/**
+	 * Assigns the buckets to partitions by their cost.
+	 */
+	private Bucketer partitionBucketer;
+
+	/**
+	 * The bytes of each bucket.
+	 */
+	private Map<String, Long> bucketBytes;
+
 	/**
 	 * Controls whether directories containing single files are eligible for a crush.
 	 */
 	private boolean excludeSingleFileDirs;
 
+	/**
+	 * The number of threads used to list directories while planning the crush.
+	 */
+	private int scanThreads;
+
+	/**
+	 * The number of threads used to move files after the crush.
+	 */
+	private int moveThreads;
+
+	/**
+	 * Moves the crush output files and the skipped files.
+	 */
+	private FileMover mover;
+
+	/**
+	 * Records the moves planned by the {@link #mover} in the temporary directory.
+	 */
+	private RenameJournal journal;
+
+	/**
+	 * True if the crush finishes moving the files of a previous crush instead of crushing anything.
+	 */
+	private boolean resume;
+
+	/**
+	 * The file that records the fingerprints of the directories examined by the previous incremental crush. Null if the crush is not
+	 * incremental.
+	 */
+	private Path stateFile;
+
+	/**
+	 * True if the directories whose modification times are unchanged are checked further before they are skipped.
+	 *
+	 * @see DirectoryFingerprint#matches(FileSystem, FileStatus, boolean)
+	 */
+	private boolean verifyUnchanged;
+
+	/**
+	 * The fingerprints read from {@link #stateFile}.
+	 */
+	private Map<String, DirectoryFingerprint> previousState;
+
+	/**
+	 * The fingerprints to write to {@link #stateFile} after the crush completes.
+	 */
+	private Map<String, DirectoryFingerprint> nextState;
+
+	/**
+	 * Directories whose fingerprints in {@link #nextState} become stale because the crush moves files in or out of them.
+	 */
+	private Set<String> changedDirs;
+
+	/**
+	 * The file that records how long the tasks of previous crushes took to crush how much. Used to calibrate the
+	 * {@link LinearCostModel}. Null if the costs are not calibrated.
+	 */
+	private Path calibrationFile;
+
+	/**
+	 * A listing of the namespace that replaces the listings of the name node while planning. Null to list the directories.
+	 *
+	 * @see ListingFileSystem
+	 */
+	private Path listingFile;
+
 	/**
 	 * How much do we want to print to the console.
 	 */
@@ -288,6 +426,108 @@ public class Crush extends Configured implements Tool {
 
 		options.addOption(option);
 
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("scan-threads")
+				.withDescription("The number of threads used to list directories while planning the crush. Default is 1.")
+				.withLongOpt("scan-threads")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("move-threads")
+				.withDescription("The number of threads used to move files after the crush. Default is 1.")
+				.withLongOpt("move-threads")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("temporary directory")
+				.withDescription("Finish moving the files of a previous crush that failed while moving them, using the journal in its temporary directory.")
+				.withLongOpt("resume")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("state file")
+				.withDescription("Skip directories that have not changed since the previous crush that used the same state file.")
+				.withLongOpt("incremental")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.withDescription("Check that unchanged directories of an incremental crush still have the same number of files and bytes.")
+				.withLongOpt("verify-unchanged")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("listing file")
+				.withDescription("Plan the crush from a listing of the namespace generated beforehand instead of listing the directories.")
+				.withLongOpt("listing")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("calibration file")
+				.withDescription("Calibrate the cost of crushing each file from the tasks of previous crushes that used the same calibration file and record the tasks of this crush in it.")
+				.withLongOpt("calibration")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("minutes")
+				.withDescription("Choose the number of tasks so that each task crushes for about this many minutes instead of using the configured number of reduce tasks.")
+				.withLongOpt("auto-tasks")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("tasks")
+				.withDescription("Plan the sub directories of the input dir in a map reduce job with this many map tasks instead of listing them all in the client.")
+				.withLongOpt("plan-tasks")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.hasArg()
+				.withArgName("threads")
+				.withDescription("Crush in this JVM with the given number of threads instead of submitting a job. Crushing starts while the tree is still being scanned.")
+				.withLongOpt("in-process")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.withDescription("Crush in map tasks instead of reduce tasks, which avoids the shuffle.")
+				.withLongOpt("map-only")
+				.create();
+
+		options.addOption(option);
+
+		option = OptionBuilder
+				.withDescription("Fetch the block locations of crushable files and prefer to crush files stored on the same hosts together.")
+				.withLongOpt("locality")
+				.create();
+
+		options.addOption(option);
+
 		option = OptionBuilder
 				.withDescription("Info logging to console.")
 				.withLongOpt("info")
@@ -323,7 +563,8 @@ public class Crush extends Configured implements Tool {
 		tmpDir = new Path("tmp/crush-" + UUID.randomUUID());
 		outDir = new Path(tmpDir, "out");
 
-		double threshold = 0.75;
+		List<Double> thresholds	= asList(0.75);
+		List<Integer> fileBlocks	= asList(8);
 
 		List<String> regexes			= asList(".+");
 		List<String> replacements	= asList("crushed_file-${crush.timestamp}-${crush.task.num}-${crush.file.num}");
@@ -365,6 +606,85 @@ public class Crush extends Configured implements Tool {
 
 		excludeSingleFileDirs = !cli.hasOption("include-single-file-dirs");
 
+		if (cli.hasOption("scan-threads")) {
+			scanThreads = Integer.parseInt(cli.getOptionValue("scan-threads"));
+
+			if (1 > scanThreads) {
+				throw new IllegalArgumentException("Scan threads must be positive: " + scanThreads);
+			}
+		} else {
+			scanThreads = 1;
+		}
+
+		if (cli.hasOption("move-threads")) {
+			moveThreads = Integer.parseInt(cli.getOptionValue("move-threads"));
+
+			if (1 > moveThreads) {
+				throw new IllegalArgumentException("Move threads must be positive: " + moveThreads);
+			}
+		} else {
+			moveThreads = 1;
+		}
+
+		if (cli.hasOption("resume")) {
+			tmpDir = new Path(cli.getOptionValue("resume"));
+			outDir = new Path(tmpDir, "out");
+
+			resume = true;
+		}
+
+		if (cli.hasOption("incremental")) {
+			stateFile = new Path(cli.getOptionValue("incremental"));
+		}
+
+		verifyUnchanged = cli.hasOption("verify-unchanged");
+
+		if (verifyUnchanged && null == stateFile) {
+			throw new IllegalArgumentException("Only an incremental crush can verify unchanged directories");
+		}
+
+		if (cli.hasOption("listing")) {
+			listingFile = new Path(cli.getOptionValue("listing"));
+		}
+
+		if (cli.hasOption("calibration")) {
+			calibrationFile = new Path(cli.getOptionValue("calibration"));
+		}
+
+		if (cli.hasOption("auto-tasks")) {
+			autoTaskMinutes = Double.parseDouble(cli.getOptionValue("auto-tasks"));
+
+			if (0 >= autoTaskMinutes || Double.isInfinite(autoTaskMinutes) || Double.isNaN(autoTaskMinutes)) {
+				throw new IllegalArgumentException("Auto tasks minutes must be positive: " + cli.getOptionValue("auto-tasks"));
+			}
+		} else {
+			autoTaskMinutes = 0;
+		}
+
+		if (cli.hasOption("in-process")) {
+			inProcessThreads = Integer.parseInt(cli.getOptionValue("in-process"));
+
+			if (1 > inProcessThreads) {
+				throw new IllegalArgumentException("In process threads must be positive: " + inProcessThreads);
+			}
+		} else {
+			inProcessThreads = 0;
+		}
+
+		if (cli.hasOption("plan-tasks")) {
+			planTasks = Integer.parseInt(cli.getOptionValue("plan-tasks"));
+
+			if (1 > planTasks) {
+				throw new IllegalArgumentException("Plan tasks must be positive: " + planTasks);
+			}
+		} else {
+			planTasks = 0;
+		}
+
+		mapOnly = cli.hasOption("map-only");
+
+		locality = cli.hasOption("locality");
+
 		String[] nonOptions = cli.getArgs();
 
 		if (2 == nonOptions.length) {
@@ -389,6 +709,38 @@ public class Crush extends Configured implements Tool {
 
 			crushTimestamp = Long.toString(currentTimeMillis());
 
+			if (null != stateFile) {
+				throw new IllegalArgumentException("Stand alone mode cannot be incremental");
+			}
+
+			if (mapOnly) {
+				throw new IllegalArgumentException("Stand alone mode cannot be map only");
+			}
+
+			if (null != calibrationFile) {
+				throw new IllegalArgumentException("Stand alone mode cannot be calibrated");
+			}
+
+			if (null != listingFile) {
+				throw new IllegalArgumentException("Stand alone mode cannot use a listing");
+			}
+
+			if (0 < autoTaskMinutes) {
+				throw new IllegalArgumentException("Stand alone mode cannot use auto tasks");
+			}
+
+			if (locality) {
+				throw new IllegalArgumentException("Stand alone mode cannot use locality");
+			}
+
+			if (0 < inProcessThreads) {
+				throw new IllegalArgumentException("Stand alone mode is always in process");
+			}
+
+			if (0 < planTasks) {
+				throw new IllegalArgumentException("Stand alone mode cannot use plan tasks");
+			}
+
 		} else {
 			/*
 			 * The previous version expected three or four arguments. The third one specified the number of tasks to use, which is an
@@ -407,7 +759,7 @@ public class Crush extends Configured implements Tool {
 
 				job.setInt("mapred.reduce.tasks", maxTasks);
 
-				maxFileBlocks = Integer.MAX_VALUE;
+				fileBlocks = asList(Integer.MAX_VALUE);
 
 				crushTimestamp = Long.toString(currentTimeMillis());
 
@@ -433,23 +785,31 @@ public class Crush extends Configured implements Tool {
 				 * V2 style arguments.
 				 */
 				if (cli.hasOption("threshold")) {
-					threshold = Double.parseDouble(cli.getOptionValue("threshold"));
+					thresholds = new ArrayList<Double>();
+
+					for (String value : cli.getOptionValues("threshold")) {
+						double threshold = Double.parseDouble(value);
+
+						if ( 0 >= threshold || 1 < threshold || Double.isInfinite(threshold) || Double.isNaN(threshold)) {
+							throw new IllegalArgumentException("Block size threshold must be in (0, 1]: " + threshold);
+						}
 
-					if ( 0 >= threshold || 1 < threshold || Double.isInfinite(threshold) || Double.isNaN(threshold)) {
-						throw new IllegalArgumentException("Block size threshold must be in (0, 1]: " + threshold);
+						thresholds.add(threshold);
 					}
 				}
 
 				if (cli.hasOption("max-file-blocks")) {
-					int maxFileBlocksOption = Integer.parseInt(cli.getOptionValue("max-file-blocks"));
+					fileBlocks = new ArrayList<Integer>();
 
-					if (0 > maxFileBlocksOption) {
-						throw new IllegalArgumentException("Maximum file size in blocks must be positive: " + maxFileBlocksOption);
-					}
+					for (String value : cli.getOptionValues("max-file-blocks")) {
+						int maxFileBlocksOption = Integer.parseInt(value);
 
-					maxFileBlocks = maxFileBlocksOption;
-				} else {
-					maxFileBlocks = 8;
+						if (0 > maxFileBlocksOption) {
+							throw new IllegalArgumentException("Maximum file size in blocks must be positive: " + maxFileBlocksOption);
+						}
+
+						fileBlocks.add(maxFileBlocksOption);
+					}
 				}
 
 				if (cli.hasOption("regex")) {
@@ -488,8 +848,67 @@ public class Crush extends Configured implements Tool {
 				}
 			}
 
+			if (0 < inProcessThreads) {
+				if (mapOnly) {
+					throw new IllegalArgumentException("In process crush cannot be map only");
+				}
+
+				if (null != calibrationFile) {
+					throw new IllegalArgumentException("In process crush cannot be calibrated");
+				}
+
+				if (0 < autoTaskMinutes) {
+					throw new IllegalArgumentException("In process crush cannot use auto tasks");
+				}
+
+				if (locality) {
+					throw new IllegalArgumentException("In process crush cannot use locality");
+				}
+			}
+
+			if (0 < planTasks) {
+				/*
+				 * The map tasks have to list the directories themselves and they send back no more than the buckets.
+				 */
+				if (null != stateFile) {
+					throw new IllegalArgumentException("Incremental crush cannot use plan tasks");
+				}
+
+				if (null != listingFile) {
+					throw new IllegalArgumentException("Crush from a listing cannot use plan tasks");
+				}
+
+				if (0 < inProcessThreads) {
+					throw new IllegalArgumentException("In process crush cannot use plan tasks");
+				}
+
+				if (locality) {
+					throw new IllegalArgumentException("Crush with locality cannot use plan tasks");
+				}
+			}
+
+			if (null != listingFile) {
+				/*
+				 * The fingerprints would have to be compared with what the name node says, which is what the listing avoids.
+				 */
+				if (null != stateFile) {
+					throw new IllegalArgumentException("Incremental crush cannot use a listing");
+				}
+
+				/*
+				 * The block locations of every file would have to be asked of the name node.
+				 */
+				if (locality) {
+					throw new IllegalArgumentException("Crush from a listing cannot use locality");
+				}
+
+				/*
+				 * The listing may no longer be accurate by the time the files are crushed.
+				 */
+				job.setBoolean(CrushReducer.VERIFY_SOURCES, true);
+			}
+
 			dfsBlockSize = parseDfsBlockSize(job);
-			maxEligibleSize = (long) (dfsBlockSize * threshold);
 		}
 
 		/*
@@ -505,7 +924,20 @@ public class Crush extends Configured implements Tool {
 			throw new IllegalArgumentException("Must be an equal number of regex, replacement, in-format, and out-format options");
 		}
 
-		job.setInt("crush.num.specs", regexes.size());
+		int numSpecs = regexes.size();
+
+		/*
+		 * The size limits and the codec are either given once for every spec or once for each spec.
+		 */
+		thresholds = perSpec("threshold", thresholds, numSpecs);
+		fileBlocks = perSpec("max-file-blocks", fileBlocks, numSpecs);
+
+		String[] compressOptions = cli.getOptionValues("compress");
+
+		List<String> codecs = perSpec("compress", null == compressOptions ? asList(DefaultCodec.class.getName())
+				: asList(compressOptions), numSpecs);
+
+		job.setInt("crush.num.specs", numSpecs);
 
 		matchers = new ArrayList<Matcher>(regexes.size());
 
@@ -551,24 +983,39 @@ public class Crush extends Configured implements Tool {
 			}
 
 			job.set(format("crush.%d.output.format", i), outFmt);
-		}
-
-		String codec = cli.getOptionValue("compress");
 
-		if (null == codec) {
-			codec = DefaultCodec.class.getName();
-		} else if ("none".equals(codec)) {
-			codec = null;
-		} else if ("gzip".equals(codec)) {
-			codec = GzipCodec.class.getName();
-		} else {
-			try {
-				if (!CompressionCodec.class.isAssignableFrom(Class.forName(codec))) {
-					throw new IllegalArgumentException("Not a CompressionCodec: " + codec);
-				}
-			} catch (ClassNotFoundException e) {
-				throw new IllegalArgumentException("Not a CompressionCodec: " + codec);
-			}
+			job.set(format("crush.%d.threshold", i), thresholds.get(i).toString());
+			job.setInt(format("crush.%d.max.file.blocks", i), fileBlocks.get(i));
+		}
+
+		codecExtensions = new LinkedHashSet<String>();
+
+		/*
+		 * A single codec is configured for the whole job. When each spec has its own, the job keeps the default codec, which then
+		 * compresses no more than the file mappings.
+		 */
+		String codec = DefaultCodec.class.getName();
+
+		if (null != compressOptions && 1 == compressOptions.length) {
+			codec = codecClass(compressOptions[0]);
+
+			if (null != codec) {
+				codecExtensions.add(codecExtension(codec));
+			}
+		} else if (null != compressOptions) {
+			for (int i = 0; i < numSpecs; i++) {
+				String specCodec = codecClass(codecs.get(i));
+
+				job.setBoolean(format("crush.%d.output.compress", i), null != specCodec);
+
+				if (null != specCodec) {
+					job.set(format("crush.%d.output.compression.codec", i), specCodec);
+
+					codecExtensions.add(codecExtension(specCodec));
+				}
+			}
+		} else {
+			codecExtensions.add(codecExtension(codec));
 		}
 
 		if (null == codec) {
@@ -577,18 +1024,78 @@ public class Crush extends Configured implements Tool {
 			job.setBoolean("mapred.output.compress", true);
 			job.set("mapred.output.compression.type", "BLOCK");
 			job.set("mapred.output.compression.codec", codec);
+		}
 
-			try {
-				CompressionCodec instance = (CompressionCodec) Class.forName(codec).newInstance();
-				codecExtension = instance.getDefaultExtension();
-			} catch (Exception e) {
-				throw new AssertionError();
-			}
+		if (Mode.STAND_ALONE != mode) {
+			readLimits();
 		}
 
 		return true;
 	}
 
+	/**
+	 * Returns the values of an option for each of the crush specs. An option that was given once applies to every spec.
+	 */
+	private static <T> List<T> perSpec(String option, List<T> values, int numSpecs) {
+		if (numSpecs == values.size()) {
+			return values;
+		}
+
+		if (1 == values.size()) {
+			return nCopies(numSpecs, values.get(0));
+		}
+
+		throw new IllegalArgumentException(format("Must be one %s option or one for each regex: %d", option, values.size()));
+	}
+
+	/**
+	 * Returns the fully qualified class name of the codec given to --compress or null for no compression.
+	 */
+	private static String codecClass(String codec) {
+		if ("none".equals(codec)) {
+			return null;
+		}
+
+		if ("gzip".equals(codec)) {
+			return GzipCodec.class.getName();
+		}
+
+		try {
+			if (!CompressionCodec.class.isAssignableFrom(Class.forName(codec))) {
+				throw new IllegalArgumentException("Not a CompressionCodec: " + codec);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Not a CompressionCodec: " + codec);
+		}
+
+		return codec;
+	}
+
+	private static String codecExtension(String codec) {
+		try {
+			CompressionCodec instance = (CompressionCodec) Class.forName(codec).newInstance();
+
+			return instance.getDefaultExtension();
+		} catch (Exception e) {
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Computes the size limits of each crush spec from the configuration.
+	 */
+	private void readLimits() {
+		int numSpecs = job.getInt("crush.num.specs", 0);
+
+		maxEligibleSizes = new ArrayList<Long>(numSpecs);
+		maxFileBlocks = new ArrayList<Integer>(numSpecs);
+
+		for (int i = 0; i < numSpecs; i++) {
+			maxEligibleSizes.add((long) (dfsBlockSize * Double.parseDouble(job.get(format("crush.%d.threshold", i)))));
+			maxFileBlocks.add(job.getInt(format("crush.%d.max.file.blocks", i), -1));
+		}
+	}
+
 	/**
 	 * The block size has changed over the years... Get with the times.
 	 * @param job a conf to check for data
@@ -615,68 +1122,133 @@ public class Crush extends Configured implements Tool {
 
 		setFileSystem(FileSystem.get(job));
 
-		FileStatus status = fs.getFileStatus(srcDir);
+		journal = new RenameJournal(fs, new Path(tmpDir, "journal"));
 
-		if (null == status || !status.isDir()) {
-			throw new IllegalArgumentException("No such directory: " + srcDir);
-		}
+		/*
+		 * Prints the files as they are moved.
+		 */
+		mover = new FileMover(fs, codecExtensions, new FileMover.Listener() {
+			@Override
+			public void moved(Path src, Path dest) {
+				print(Verbosity.VERBOSE, format("\n  %s => %s", src, dest));
+			}
+		}, journal, moveThreads);
 
-		if (Mode.STAND_ALONE == mode) {
-			standAlone();
-		} else {
-			writeDirs();
+		try {
+			/*
+			 * A swap that failed halfway may have moved the source directory away, so only a new crush needs it.
+			 */
+			if (!resume) {
+				FileStatus status = fs.getFileStatus(srcDir);
+
+				if (null == status || !status.isDir()) {
+					throw new IllegalArgumentException("No such directory: " + srcDir);
+				}
+			}
 
-			MultipleInputs.addInputPath(job, bucketFiles, SequenceFileInputFormat.class, IdentityMapper.class);
-			MultipleInputs.addInputPath(job, counters, CountersInputFormat.class, CountersMapper.class);
+			if (resume) {
+				resume();
+			} else if (Mode.STAND_ALONE == mode) {
+				standAlone();
+			} else {
+				if (null != calibrationFile) {
+					calibrate();
+				}
 
-			job.setPartitionerClass(CrushPartitioner.class);
+				writeDirs();
 
-			job.setReducerClass(CrushReducer.class);
+				if (0 < inProcessThreads) {
+					/*
+					 * The buckets were crushed while the tree was scanned.
+					 */
+					print(Verbosity.INFO, format("\n\nCrushed %,d files in process", jobCounters.getCounter(ReducerCounter.FILES_CRUSHED)));
+				} else {
+					if (mapOnly) {
+						/*
+						 * Each map task crushes the buckets of one partition. The planning counters are added to the job counters afterwards.
+						 */
+						job.setInputFormat(BucketInputFormat.class);
+						job.setMapRunnerClass(CrushMapRunner.class);
 
-			job.setOutputKeyComparatorClass(Text.Comparator.class);
-			job.setOutputKeyClass(Text.class);
-			job.setOutputValueClass(Text.class);
+						job.setNumReduceTasks(0);
 
-			job.setOutputFormat(SequenceFileOutputFormat.class);
+						job.set("crush.splits", splits.toString());
 
-			FileInputFormat.setInputPaths(job, bucketFiles);
-			FileOutputFormat.setOutputPath(job, outDir);
+						if (local) {
+							job.set("mapred.job.tracker", "local");
+						}
+					} else {
+						MultipleInputs.addInputPath(job, bucketFiles, SequenceFileInputFormat.class, IdentityMapper.class);
+						MultipleInputs.addInputPath(job, counters, CountersInputFormat.class, CountersMapper.class);
 
-			job.set("crush.partition.map", partitionMap.toString());
+						job.setPartitionerClass(CrushPartitioner.class);
 
-			if (0 != nBuckets) {
-				print(Verbosity.INFO, "\n\nInvoking map reduce\n\n");
+						job.setReducerClass(CrushReducer.class);
 
-				RunningJob completed = JobClient.runJob(job);
+						job.setOutputKeyComparatorClass(Text.Comparator.class);
 
-				jobCounters = completed.getCounters();
-			}
+						FileInputFormat.setInputPaths(job, bucketFiles);
+					}
 
-			long eligible = jobCounters.getCounter(MapperCounter.FILES_ELIGIBLE);
-			long crushed = jobCounters.getCounter(ReducerCounter.FILES_CRUSHED);
+					job.setOutputKeyClass(Text.class);
+					job.setOutputValueClass(Text.class);
 
-			/*
-			 * There's no way this cannot hold true if Hadoop is working correctly.
-			 */
-			if (eligible != crushed) {
-				throw new AssertionError(format("Files eligible (%d) != files crushed (%d)", eligible, crushed));
-			}
+					job.setOutputFormat(SequenceFileOutputFormat.class);
 
-			if (Mode.CLONE == mode) {
-				cloneOutput();
-			} else {
-				moveOutput();
+					FileOutputFormat.setOutputPath(job, outDir);
+
+					if (0 != nBuckets) {
+						print(Verbosity.INFO, local ? "\n\nInvoking the local job runner\n\n" : "\n\nInvoking map reduce\n\n");
+
+						RunningJob completed = JobClient.runJob(job);
+
+						if (mapOnly) {
+							jobCounters.incrAllCounters(completed.getCounters());
+						} else {
+							jobCounters = completed.getCounters();
+						}
+
+						/*
+						 * Tasks that ran in process have no reports and say nothing about the tasks on the cluster anyway.
+						 */
+						if (null != calibrationFile && !local) {
+							writeCalibration(completed);
+						}
+					}
+				}
+
+				long eligible = jobCounters.getCounter(MapperCounter.FILES_ELIGIBLE);
+				long crushed = jobCounters.getCounter(ReducerCounter.FILES_CRUSHED);
+
+				/*
+				 * There's no way this cannot hold true if Hadoop is working correctly.
+				 */
+				if (eligible != crushed) {
+					throw new AssertionError(format("Files eligible (%d) != files crushed (%d)", eligible, crushed));
+				}
+
+				if (Mode.CLONE == mode) {
+					cloneOutput();
+				} else {
+					moveOutput();
+				}
+
+				if (null != stateFile) {
+					writeState();
+				}
 			}
-		}
 
-		print(Verbosity.INFO, "\n\nDeleting temporary directory");
+			print(Verbosity.INFO, "\n\nDeleting temporary directory");
 
-		fs.delete(tmpDir, true);
+			fs.delete(tmpDir, true);
 
-		/*
-		 * If we have printed anything to the console at all, then add a line wrap to bring the cursor back to the beginning.
-		 */
-		print(Verbosity.INFO, "\n\n");
+			/*
+			 * If we have printed anything to the console at all, then add a line wrap to bring the cursor back to the beginning.
+			 */
+			print(Verbosity.INFO, "\n\n");
+		} finally {
+			mover.close();
+		}
 
 		return 0;
 	}
@@ -685,7 +1257,7 @@ public class Crush extends Configured implements Tool {
 		String absSrcDir = fs.makeQualified(srcDir).toUri().getPath();
 		String absOutDir = fs.makeQualified(outDir).toUri().getPath();
 
-		Text bucket = new Text(absSrcDir + "-0");
+		Text bucket = new Text(CrushPartitioner.key(0, absSrcDir + "-0"));
 
 		List<Text> files = new ArrayList<Text>();
 
@@ -701,7 +1273,7 @@ public class Crush extends Configured implements Tool {
 						continue;
 					}
 				}
-				files.add(new Text(content.getPath().toUri().getPath()));
+				files.add(new Text(SourceFile.format(content.getPath().toUri().getPath(), content.getLen())));
 			}
 		}
 
@@ -743,7 +1315,30 @@ public class Crush extends Configured implements Tool {
 			throw new AssertionError("Did not find the expected output in " + crushOutput.toString());
 		}
 
-		rename(statuses[0].getPath(), dest.getParent(), dest.getName());
+		mover.add(0, statuses[0].getPath(), dest.getParent(), dest.getName());
+
+		moveFiles();
+	}
+
+	/**
+	 * Completes the moves of a previous crush that failed after it started moving files.
+	 */
+	private void resume() throws IOException {
+		if (!fs.exists(journal.dir())) {
+			throw new IllegalArgumentException("No journal found in " + tmpDir);
+		}
+
+		print(Verbosity.INFO, "\n\nResuming the moves planned in " + journal.dir().toUri().getPath());
+
+		long start = System.currentTimeMillis();
+
+		int moved = mover.resume();
+
+		if (-1 == moved) {
+			print(Verbosity.INFO, "\n  Nothing to resume");
+		} else {
+			printMoved(moved, start);
+		}
 	}
 
 	private void cloneOutput() throws IOException {
@@ -751,14 +1346,12 @@ public class Crush extends Configured implements Tool {
 		List<FileStatus> listStatus = getOutputMappings();
 
 		/*
-		 * Initialize to empty list, in which case swap() will be a no-op. The reference is then replaced with a real list, which is
-		 * used in the subsequent iterations.
+		 * The crush output files of each crushed directory and the source files that were crushed into each of them.
 		 */
-		List<Path> crushInput = emptyList();
+		Map<Path, Map<String, List<Path>>> crushedDirs = new LinkedHashMap<Path, Map<String, List<Path>>>();
 
 		Text srcFile			= new Text();
 		Text crushOut			= new Text();
-		Text prevCrushOut	= new Text();
 
 		for (FileStatus partFile : listStatus) {
 			Path path = partFile.getPath();
@@ -767,14 +1360,25 @@ public class Crush extends Configured implements Tool {
 
 			try {
 				while (reader.next(srcFile, crushOut)) {
-					if (!crushOut.equals(prevCrushOut)) {
-						swap(crushInput, prevCrushOut.toString());
+					Path source = new Path(srcFile.toString());
+
+					Map<String, List<Path>> crushOutputs = crushedDirs.get(source.getParent());
+
+					if (null == crushOutputs) {
+						crushOutputs = new LinkedHashMap<String, List<Path>>();
+
+						crushedDirs.put(source.getParent(), crushOutputs);
+					}
 
-						prevCrushOut.set(crushOut);
-						crushInput = new LinkedList<Path>();
+					List<Path> crushInput = crushOutputs.get(crushOut.toString());
+
+					if (null == crushInput) {
+						crushInput = new ArrayList<Path>();
+
+						crushOutputs.put(crushOut.toString(), crushInput);
 					}
 
-					crushInput.add(new Path(srcFile.toString()));
+					crushInput.add(source);
 				}
 			} finally {
 				try {
@@ -783,9 +1387,93 @@ public class Crush extends Configured implements Tool {
 					LOG.warn("Trapped exception when closing " + path, e);
 				}
 			}
+		}
+
+		long start = System.currentTimeMillis();
+
+		int moved = 0;
+
+		/*
+		 * Each directory is swapped before the next one is planned, so no directory is left without its files while the others are
+		 * being moved and a failure leaves at most one directory for --resume to finish. The directories after it keep their files.
+		 */
+		for (Entry<Path, Map<String, List<Path>>> crushedDir : crushedDirs.entrySet()) {
+			if (!swapDir(crushedDir.getKey(), crushedDir.getValue())) {
+				for (Entry<String, List<Path>> crushOutput : crushedDir.getValue().entrySet()) {
+					swap(crushOutput.getValue(), crushOutput.getKey());
+				}
+			}
+
+			moved += runMover();
+		}
+
+		printMoved(moved, start);
+	}
+
+	/**
+	 * <p>
+	 * Plans to replace a directory whose every entry was crushed with a new directory that contains only the crush output files. The
+	 * new directory is built beside the original one, the original directory is moved to {@link #dest} as a whole and the new one is
+	 * renamed in its place. This takes a handful of calls to the name node instead of one rename per source file.
+	 * </p>
+	 *
+	 * <p>
+	 * Returns false without changing anything if the directory contains anything besides the crushed files, such as skipped or
+	 * ignored files, sub directories or files that arrived after the crush was planned, or if the clone directory already exists. The
+	 * files are then swapped one crush output file at a time.
+	 * </p>
+	 */
+	private boolean swapDir(Path dir, Map<String, List<Path>> crushOutputs) throws IOException {
+		Set<String> crushed = new HashSet<String>();
+
+		for (List<Path> crushInput : crushOutputs.values()) {
+			for (Path source : crushInput) {
+				crushed.add(source.toUri().getPath());
+			}
+		}
+
+		FileStatus[] contents = fs.listStatus(dir);
+
+		if (null == contents || contents.length != crushed.size()) {
+			return false;
+		}
+
+		for (FileStatus content : contents) {
+			if (content.isDir() || !crushed.contains(content.getPath().toUri().getPath())) {
+				return false;
+			}
+		}
+
+		/*
+		 * Remove the leading slash from the directory to create a path relative to the clone dir.
+		 */
+		Path cloneDir = new Path(dest, dir.toUri().getPath().substring(1));
+
+		/*
+		 * The leading dot hides the new directory from input formats while it is being built.
+		 */
+		Path newDir = new Path(dir.getParent(), "." + dir.getName() + ".crush");
+
+		if (fs.exists(cloneDir) || fs.exists(newDir)) {
+			return false;
+		}
+
+		print(Verbosity.INFO, format("\n\nSwapping directory %s", dir));
+
+		/*
+		 * The new directory is complete before the original directory is moved away, which happens before the new directory takes its
+		 * place.
+		 */
+		mover.addDir(0, newDir, fs.getFileStatus(dir).getPermission());
 
-			swap(crushInput, prevCrushOut.toString());
+		for (String crushFileName : crushOutputs.keySet()) {
+			mover.addOutput(0, new Path(crushFileName), newDir);
 		}
+
+		mover.add(1, dir, cloneDir.getParent(), cloneDir.getName());
+		mover.add(2, newDir, dir.getParent(), dir.getName());
+
+		return true;
 	}
 
 	/**
@@ -807,7 +1495,8 @@ public class Crush extends Configured implements Tool {
 	}
 
 	/**
-	 * Moves the skipped files to the output directory. Called when operation in normal (non-clone) mode.
+	 * Moves the crush output files and the skipped files to the output directory. Both are streamed from the files that list them
+	 * into the journal of the {@link #mover}, so they are never held in memory. Called when operation in normal (non-clone) mode.
 	 */
 	private void moveOutput() throws IOException {
 
@@ -816,28 +1505,6 @@ public class Crush extends Configured implements Tool {
 		Text srcFile			= new Text();
 		Text crushOut			= new Text();
 
-		Set<String> crushOutputFiles = new HashSet<String>(nBuckets);
-
-		for (FileStatus partFile : listStatus) {
-			Path path = partFile.getPath();
-
-			Reader reader = new Reader(fs, path, fs.getConf());
-
-			try {
-				while (reader.next(srcFile, crushOut)) {
-					crushOutputFiles.add(new Path(crushOut.toString()).toUri().getPath());
-				}
-			} finally {
-				try {
-					reader.close();
-				} catch (IOException e) {
-					LOG.warn("Trapped exception when closing " + path, e);
-				}
-			}
-		}
-
-		assert crushOutputFiles.size() == nBuckets;
-
 		/*
 		 * The crushoutput files will appear in a subdirectory of the output directory. The subdirectory will be the full path of the
 		 * input directory that was crushed. E.g.
@@ -865,31 +1532,113 @@ public class Crush extends Configured implements Tool {
 		String destName				= fs.makeQualified(dest).toUri().getPath();
 		String partToReplace	= fs.makeQualified(outDir).toUri().getPath() + "/crush" + srcDirName;
 
-		print(Verbosity.INFO, "\n\nCopying crush files to " + destName);
+		print(Verbosity.INFO, "\n\nMoving crush files and skipped files to " + destName);
+
+		int nOutputs = 0;
+
+		for (FileStatus partFile : listStatus) {
+			Path path = partFile.getPath();
+
+			Reader reader = new Reader(fs, path, fs.getConf());
+
+			try {
+				/*
+				 * The reducer writes the source files of each bucket one after the other, so the records of each crush output file are
+				 * adjacent and it is enough to compare each one with the previous one.
+				 */
+				Text previousOut = new Text();
+
+				while (reader.next(srcFile, crushOut)) {
+					if (!crushOut.equals(previousOut)) {
+						previousOut.set(crushOut);
+
+						String crushOutputFile = new Path(crushOut.toString()).toUri().getPath();
+
+						Path srcPath  = new Path(crushOutputFile);
+						Path destPath = new Path(destName + crushOutputFile.substring(partToReplace.length())).getParent();
 
-		for (String crushOutputFile : crushOutputFiles) {
-			Path srcPath  = new Path(crushOutputFile);
-			Path destPath = new Path(destName + crushOutputFile.substring(partToReplace.length())).getParent();
+						mover.addOutput(srcPath, destPath);
 
-			rename(srcPath, destPath, null);
+						nOutputs++;
+					}
+				}
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					LOG.warn("Trapped exception when closing " + path, e);
+				}
+			}
 		}
 
-		print(Verbosity.INFO, "\n\nMoving skipped files to " + destName);
+		assert nOutputs == nBuckets;
 
 		/*
 		 * Don't forget to move the files that were not crushed to the output dir so that the output dir has all the data that was in
 		 * the input dir, the difference being there are fewer files in the output dir.
 		 */
-		for (String name : skippedFiles) {
-			Path srcPath = new Path(name);
-			Path destPath = new Path(destName + name.substring(srcDirName.length())).getParent();
+		Text skippedFile = new Text();
+		NullWritable nothing = NullWritable.get();
+
+		for (Path path : skippedFiles) {
+			Reader reader = new Reader(fs, path, fs.getConf());
+
+			try {
+				while (reader.next(skippedFile, nothing)) {
+					String name = skippedFile.toString();
+
+					Path srcPath = new Path(name);
+					Path destPath = new Path(destName + name.substring(srcDirName.length())).getParent();
+
+					mover.add(srcPath, destPath);
+				}
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					LOG.warn("Trapped exception when closing " + path, e);
+				}
+			}
+		}
+
+		moveFiles();
+	}
 
-			rename(srcPath, destPath, null);
+	/**
+	 * Moves the files queued in the {@link #mover} and prints the throughput.
+	 */
+	private void moveFiles() throws IOException {
+		long start = System.currentTimeMillis();
+
+		printMoved(runMover(), start);
+	}
+
+	/**
+	 * Moves the files queued in the {@link #mover} and returns how many were moved. If the mover fails after it started moving files,
+	 * the journal in the temporary directory allows a later crush to finish the job.
+	 */
+	private int runMover() throws IOException {
+		try {
+			return mover.run();
+		} catch (IOException e) {
+			if (journal.isOpen()) {
+				LOG.error(format("Failed while moving files. Run the same command with --resume %s to finish moving them",
+						tmpDir.toUri().getPath()));
+			}
+
+			throw e;
 		}
 	}
 
+	private void printMoved(int moved, long start) {
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+
+		print(Verbosity.INFO, format("\n  Moved %,d files in %,.1f seconds (%,.0f files per second)", moved, seconds,
+				0 == seconds ? (double) moved : moved / seconds));
+	}
+
 	/**
-	 * Moves all crush input files to {@link #dest} and then moves the crush output file to {@link #srcDir}.
+	 * Plans to move all crush input files to {@link #dest} and then to move the crush output file to {@link #srcDir}.
 	 */
 	private void swap(List<Path> crushInput, String crushFileName) throws IOException {
 
@@ -899,302 +1648,788 @@ public class Crush extends Configured implements Tool {
 
 		print(Verbosity.INFO, format("\n\nSwapping %s", crushFileName));
 
-		List<Path> movedSrc  = new ArrayList<Path>(crushInput.size());
-		List<Path> movedDest = new ArrayList<Path>(crushInput.size());
-
 		Path crushedDir = crushInput.get(0).getParent();
 
-		boolean crushFileNotInstalled = true;
-
-		try {
+		/*
+		 * Move each source file into the clone directory, replacing the root with the path of the clone dir.
+		 */
+		for (Path source : crushInput) {
 			/*
-			 * Move each source file into the clone directory, replacing the root with the path of the clone dir.
+			 * Remove the leading slash from the input file to create a path relative to the clone dir.
 			 */
-			for (Iterator<Path> iter = crushInput.iterator(); iter.hasNext(); ) {
-				Path source = iter.next();
-
-				/*
-				 * Remove the leading slash from the input file to create a path relative to the clone dir.
-				 */
-				Path destPath = new Path(dest, source.toString().substring(1));
+			Path destPath = new Path(dest, source.toString().substring(1));
 
-				rename(source, destPath.getParent(), null);
+			mover.add(0, source, destPath.getParent(), null);
+		}
 
-				iter.remove();
+		/*
+		 * Install the crush output file once all the source files have been moved to the clone dir. Sometimes the compression codec
+		 * messes with the names so watch out.
+		 */
+		mover.addOutput(1, new Path(crushFileName), crushedDir);
+	}
 
-				movedSrc.add(source);
-				movedDest.add(destPath);
-			}
+	void writeDirs() throws IOException {
 
+		print(Verbosity.INFO, "\n\nUsing temporary directory " + tmpDir.toUri().getPath());
 
-			/*
-			 * Install the crush output file now that all the source files have been moved to the clone dir. Sometimes the compression
-			 * codec messes with the names so watch out.
-			 */
-			Path crushFile = new Path(crushFileName);
+		FileStatus status = fs.getFileStatus(srcDir);
 
-			rename(crushFile, crushedDir, null);
+		Path tmpIn = new Path(tmpDir, "in");
 
-			crushFileNotInstalled = false;
+		bucketFiles			= new Path(tmpIn, "dirs");
+		counters			= new Path(tmpIn, "counters");
+		splits				= new Path(tmpIn, "splits");
 
-		} finally {
-			if (!crushInput.isEmpty()) {
-				/*
-				 * We failed while moving the source files to the clone directory.
-				 */
-				LOG.error(format("Failed while moving files into the clone directory and before installing the crush output file (%d moved and %d remaining)",
-						movedSrc.size(), crushInput.size()));
+		/*
+		 * The buckets are written here as they are found and copied to the bucket files once their partitions are known.
+		 */
+		Path unpartitioned = new Path(tmpIn, "unpartitioned");
+
+		Path skipped = new Path(tmpIn, "skipped");
+
+		skippedFiles = new ArrayList<Path>();
+		skippedFiles.add(skipped);
+
+		Writer writer = SequenceFile.createWriter(fs, job, unpartitioned, Text.class, Text.class, CompressionType.BLOCK);
+
+		Writer skippedWriter;
+
+		try {
+			skippedWriter = SequenceFile.createWriter(fs, job, skipped, Text.class, NullWritable.class, CompressionType.BLOCK);
+		} catch (IOException e) {
+			writer.close();
+
+			throw e;
+		}
+
+		costModel = ReflectionUtils.newInstance(job.getClass(CostModel.COST_MODEL, LinearCostModel.class, CostModel.class),
+				job);
+
+		/*
+		 * The partitions are balanced by the cost of crushing their buckets rather than by their bytes alone. With auto tasks, there are
+		 * as many partitions as it takes to keep the cost of each one within the cost a task crushes in the given time.
+		 */
+		int numPartitions;
+
+		if (0 < autoTaskMinutes) {
+			float throughput = job.getFloat(CostModel.THROUGHPUT, CostModel.DEFAULT_THROUGHPUT);
+
+			if (0 >= throughput) {
+				throw new IllegalArgumentException(format("%s must be positive: %s", CostModel.THROUGHPUT, throughput));
+			}
+
+			long taskCost = Math.max(1, Math.round(throughput * autoTaskMinutes * 60));
+
+			numPartitions = CrushPartitioner.MAX_PARTITIONS;
+			partitionBucketer = new Bucketer(numPartitions, taskCost, false);
+		} else {
+			numPartitions = Integer.parseInt(job.get("mapred.reduce.tasks"));
+
+			if (numPartitions > CrushPartitioner.MAX_PARTITIONS) {
+				throw new IllegalArgumentException(format("Cannot have more than %d reduce tasks: %d", CrushPartitioner.MAX_PARTITIONS,
+						numPartitions));
+			}
+
+			partitionBucketer = new Bucketer(numPartitions, 0, false);
+		}
+
+		partitionBucketer.reset("partition");
+
+		/*
+		 * The bytes of each bucket, which become the lengths of the splits in map only mode. Always collected because the crush switches
+		 * to map only mode when it runs in process.
+		 */
+		bucketBytes = new HashMap<String, Long>();
+
+		jobCounters = new Counters();
+
+		DirectoryScanner.Filter filter = null;
+
+		if (null != stateFile) {
+			previousState = DirectoryFingerprint.read(job, stateFile);
+			nextState = new HashMap<String, DirectoryFingerprint>();
+			changedDirs = new HashSet<String>();
+
+			filter = new DirectoryScanner.Filter() {
+				@Override
+				public boolean accept(FileStatus dir) throws IOException {
+					DirectoryFingerprint fingerprint = previousState.get(dir.getPath().toUri().getPath());
+
+					return null == fingerprint || !fingerprint.matches(fs, dir, verifyUnchanged);
+				}
+
+				@Override
+				public FileStatus[] subDirectories(FileStatus dir) throws IOException {
+					return previousState.get(dir.getPath().toUri().getPath()).subDirectories(fs, dir);
+				}
+			};
+		}
+
+		FileSystem scanFs = fs;
+
+		ListingFileSystem listingFs = null;
+
+		if (null != listingFile) {
+			print(Verbosity.INFO, "\n\nReading listing " + listingFile);
+
+			/*
+			 * The listing is sorted on the local disk rather than in the temporary directory, which would put it on the name node.
+			 */
+			Path work = new Path(job.get("hadoop.tmp.dir", System.getProperty("java.io.tmpdir")), tmpDir.getName() + "-listing");
+
+			scanFs = listingFs = ListingFileSystem.read(fs, job, listingFile, status.getPath(), work);
+		}
+
+		/*
+		 * With distributed planning, only the input dir itself is planned here. Its sub directories are left to the planning job.
+		 */
+		List<Path> shards = null;
+
+		if (0 < planTasks) {
+			shards = new ArrayList<Path>();
+
+			final Path root = status.getPath();
+
+			filter = new DirectoryScanner.Filter() {
+				@Override
+				public boolean accept(FileStatus dir) {
+					return root.equals(dir.getPath());
+				}
+
+				@Override
+				public FileStatus[] subDirectories(FileStatus dir) {
+					return null;
+				}
+			};
+		}
+
+		DirectoryScanner scanner = new DirectoryScanner(scanFs, null == ignoredFiles ? null : ignoredFiles.pattern(), filter,
+				locality ? Collections.max(maxEligibleSizes) : -1, null != nextState, scanThreads);
+
+		/*
+		 * Prefer the path returned by the status because it is always fully qualified.
+		 */
+		scanner.add(status);
+
+		/*
+		 * In process, each bucket is crushed as soon as it is found instead of being written out for a job.
+		 */
+		InProcessCrusher crusher = null;
+
+		try {
+			if (0 < inProcessThreads) {
+				crusher = new InProcessCrusher(fs, job, outDir, inProcessThreads, jobCounters);
+			}
+
+			PlanSink sink = new WriterSink(writer, skippedWriter, crusher);
+
+			Listing listing;
+
+			while (null != (listing = scanner.next())) {
+				Path dir = listing.dir();
 
-				StringBuilder sb = new StringBuilder("hadoop fs -mv ");
+				if (null != shards && listing.skipped()) {
+					shards.add(dir);
 
-				for (int i = 0; i < movedSrc.size(); i++) {
-					sb.append(" ");
-					sb.append(movedDest.get(i));
+					continue;
 				}
 
-				sb.append(" ");
-				sb.append(crushedDir);
+				jobCounters.incrCounter(MapperCounter.DIRS_FOUND, 1);
+
+				print(Verbosity.INFO, "\n\n" + dir.toUri().getPath());
+
+				if (null != nextState) {
+					String dirName = dir.toUri().getPath();
+
+					if (listing.skipped()) {
+						/*
+						 * Nothing changed since the previous crush, which already dealt with this directory.
+						 */
+						print(Verbosity.INFO, " is unchanged");
+
+						jobCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 1);
+
+						nextState.put(dirName, previousState.get(dirName));
+
+						continue;
+					}
+
+					if (null != listing.fingerprint()) {
+						nextState.put(dirName, listing.fingerprint());
+					}
+				}
+
+				planDirectory(listing, sink);
+			}
 
-				LOG.error("Execute the following to restore the file system to a good state: " + sb.toString());
-			} else if (crushFileNotInstalled) {
+			if (null != crusher) {
 				/*
-				 * We failed moving the crush output file to the source directory.
+				 * Wait for the buckets that are still being crushed.
 				 */
-				LOG.error(format("Failed while moving crush output file (%s) to the source directory (%s)", crushFileName, crushedDir));
+				crusher.close();
+			}
+		} finally {
+			if (null != crusher) {
+				crusher.abort();
+			}
+
+			scanner.close();
+
+			if (null != listingFs) {
+				try {
+					listingFs.discard();
+				} catch (Exception e) {
+					LOG.error("Trapped exception during discard: " + listingFile, e);
+				}
+			}
+
+			try {
+				writer.close();
+			} catch (Exception e) {
+				LOG.error("Trapped exception during close: " + unpartitioned, e);
+			}
+
+			try {
+				skippedWriter.close();
+			} catch (Exception e) {
+				LOG.error("Trapped exception during close: " + skipped, e);
 			}
 		}
-	}
 
-	/**
-	 * Renames the source file to the destination file, taking into consideration that compression codes can mangle file names. Also
-	 * ensures that the parent directory of the destination exists.
-	 *
-	 * @param src
-	 *          The path to the file to copy.
-	 * @param destDir
-	 *          The dir to which the file must be copied
-	 * @param fileName
-	 *          The new name of the file or null to keep the original file name
-	 *
-	 * @throws IOException
-	 */
-	private void rename(Path src, Path destDir, String fileName) throws IOException {
-		fs.mkdirs(destDir);
+		if (null != crusher) {
+			/*
+			 * There is no job to plan.
+			 */
+			return;
+		}
+
+		List<Path> plannedBuckets = new ArrayList<Path>();
+
+		plannedBuckets.add(unpartitioned);
+
+		if (null != shards && !shards.isEmpty()) {
+			plannedBuckets.addAll(runPlanningJob(shards));
+		}
+
+		/*
+		 * A small plan is crushed in process, which means in map only mode because the local job runner has no more than one reduce
+		 * task.
+		 */
+		if (0 != nBuckets) {
+			long eligibleBytes = 0;
+
+			for (long bytes : bucketBytes.values()) {
+				eligibleBytes += bytes;
+			}
+
+			local = isSmall(eligibleBytes, jobCounters.getCounter(MapperCounter.FILES_ELIGIBLE));
+
+			if (local) {
+				print(Verbosity.INFO, format("\n\nCrushing %,d bytes in process", eligibleBytes));
+
+				mapOnly = true;
+			}
+		}
+
+		/*
+		 * Now that we have processed all the directories, assign the buckets to partitions.
+		 */
+		List<Bucket> partitions = partitionBucketer.createBuckets();
+
+		assert partitions.size() <= numPartitions;
 
-		if (null != codecExtension && !fs.exists(src)) {
+		if (0 < autoTaskMinutes) {
 			/*
-			 * Try mangling the name like a codec would and invoke rename. Let execoptions bubble up.
+			 * There are more partitions than buckets when a few buckets cost more than a task should crush. The extra partitions are the
+			 * empty ones at the end.
 			 */
-			src = new Path(src + codecExtension);
+			int numTasks = 1;
+
+			for (Bucket partition : partitions) {
+				if (!partition.contents().isEmpty()) {
+					numTasks = Math.max(numTasks, partitionNumber(partition) + 1);
+				}
+			}
+
+			print(Verbosity.INFO, format("\n\nUsing %d tasks", numTasks));
+
+			job.setNumReduceTasks(numTasks);
 		}
 
-		Path dest;
+		/*
+		 * Replace the bucket ids, which are full paths, with short keys. The buckets of each partition are numbered in the order of
+		 * their ids and the numbers are zero padded so that a reducer receives them in the same order as it would the ids.
+		 */
+		int maxBuckets = 1;
 
-		if (null == fileName) {
-			dest = new Path(destDir, src.getName());
-		} else {
-			dest = new Path(destDir, fileName);
+		for (Bucket partition : partitions) {
+			maxBuckets = Math.max(maxBuckets, partition.contents().size());
+		}
+
+		String numberFormat = "%0" + Integer.toString(maxBuckets - 1).length() + "d";
+
+		Map<String, String> bucketKeys = new HashMap<String, String>(nBuckets);
+
+		for (Bucket partition : partitions) {
+			int partNum = partitionNumber(partition);
+
+			List<String> bucketIds = new ArrayList<String>(partition.contents());
+
+			Collections.sort(bucketIds);
+
+			for (int i = 0; i < bucketIds.size(); i++) {
+				bucketKeys.put(bucketIds.get(i), CrushPartitioner.key(partNum, format(numberFormat, i)));
+			}
+		}
+
+		/*
+		 * In map only mode, the position of the sync point that precedes each bucket.
+		 */
+		Map<String, Long> bucketOffsets = null;
+
+		if (mapOnly) {
+			bucketOffsets = new HashMap<String, Long>(nBuckets);
 		}
 
-		fs.rename(src, dest);
+		writeBucketFiles(plannedBuckets, bucketKeys, bucketOffsets);
 
-		print(Verbosity.VERBOSE, format("\n  %s => %s", src, dest));
+		for (Path planned : plannedBuckets) {
+			fs.delete(planned, false);
+		}
+
+		if (null != bucketOffsets) {
+			writeSplits(partitions, bucketKeys, bucketOffsets, bucketBytes);
+		}
+
+		DataOutputStream countersStream = fs.create(this.counters);
+
+		try {
+			jobCounters.write(countersStream);
+		} finally {
+			try {
+				countersStream.close();
+			} catch (Exception e) {
+				LOG.error("Trapped exception during close: " + counters, e);
+			}
+		}
 	}
 
-	void writeDirs() throws IOException {
+	/**
+	 * Plans the sub directories of the input dir in a map only job, each map task taking its share of them. Adds the buckets that
+	 * the job found to the partitions and returns the files that hold them.
+	 */
+	private List<Path> runPlanningJob(List<Path> shards) throws IOException {
+		Path planDir = new Path(tmpDir, "plan");
+		Path shardsFile = new Path(planDir, "shards");
+		Path planOut = new Path(planDir, "out");
 
-		print(Verbosity.INFO, "\n\nUsing temporary directory " + tmpDir.toUri().getPath());
+		PrintWriter shardsWriter = new PrintWriter(new OutputStreamWriter(fs.create(shardsFile), "UTF-8"));
 
-		FileStatus status = fs.getFileStatus(srcDir);
+		try {
+			for (Path shard : shards) {
+				shardsWriter.println(shard);
+			}
+		} finally {
+			shardsWriter.close();
+		}
 
-		Path tmpIn = new Path(tmpDir, "in");
+		JobConf planJob = new JobConf(job);
 
-		bucketFiles			= new Path(tmpIn, "dirs");
-		partitionMap	= new Path(tmpIn, "partition-map");
-		counters			= new Path(tmpIn, "counters");
+		planJob.setInputFormat(NLineInputFormat.class);
+		planJob.setInt("mapred.line.input.format.linespermap", (shards.size() + planTasks - 1) / planTasks);
+
+		FileInputFormat.setInputPaths(planJob, shardsFile);
 
-		skippedFiles = new HashSet<String>();
+		planJob.setMapperClass(PlanningMapper.class);
+		planJob.setNumReduceTasks(0);
+
+		planJob.setOutputFormat(SequenceFileOutputFormat.class);
+		planJob.setOutputKeyClass(Text.class);
+		planJob.setOutputValueClass(Text.class);
+
+		FileOutputFormat.setOutputPath(planJob, planOut);
+
+		MultipleOutputs.addNamedOutput(planJob, PlanningMapper.BUCKETS, SequenceFileOutputFormat.class, Text.class, Text.class);
+		MultipleOutputs.addNamedOutput(planJob, PlanningMapper.SKIPPED, SequenceFileOutputFormat.class, Text.class,
+				NullWritable.class);
 
 		/*
-		 * Prefer the path returned by the status because it is always fully qualified.
+		 * The options that forPlanning reads back in the map tasks.
 		 */
-		List<Path> dirs = asList(status.getPath());
+		planJob.setBoolean("crush.plan.exclude.single.file.dirs", excludeSingleFileDirs);
+		planJob.setInt("crush.plan.scan.threads", scanThreads);
+
+		print(Verbosity.INFO, format("\n\nPlanning %,d directories in map reduce\n\n", shards.size()));
+
+		RunningJob completed = JobClient.runJob(planJob);
+
+		Counters planCounters = completed.getCounters();
+
+		for (MapperCounter counter : MapperCounter.values()) {
+			jobCounters.incrCounter(counter, planCounters.getCounter(counter));
+		}
 
 		Text key = new Text();
 		Text value = new Text();
 
-		Writer writer = SequenceFile.createWriter(fs, job, bucketFiles, Text.class, Text.class, CompressionType.BLOCK);
+		FileStatus[] summaries = fs.globStatus(new Path(planOut, PlanningMapper.BUCKETS + "-*"));
+
+		if (null != summaries) {
+			for (FileStatus summary : summaries) {
+				Reader reader = new Reader(fs, summary.getPath(), job);
 
-		int numPartitions = Integer.parseInt(job.get("mapred.reduce.tasks"));
+				try {
+					while (reader.next(key, value)) {
+						String[] fields = value.toString().split("\t");
 
-		Bucketer partitionBucketer = new Bucketer(numPartitions, 0, false);
-		partitionBucketer.reset("partition-map");
+						nBuckets++;
 
-		jobCounters = new Counters();
+						addToPartitions(key.toString(), Long.parseLong(fields[0]), Integer.parseInt(fields[1]), null);
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		}
+
+		/*
+		 * The skipped files stay where the tasks wrote them until they are moved.
+		 */
+		FileStatus[] skipped = fs.globStatus(new Path(planOut, PlanningMapper.SKIPPED + "-*"));
+
+		if (null != skipped) {
+			for (FileStatus skippedFile : skipped) {
+				skippedFiles.add(skippedFile.getPath());
+			}
+		}
+
+		List<Path> plannedBuckets = new ArrayList<Path>();
+
+		FileStatus[] parts = fs.globStatus(new Path(planOut, "part-*"));
+
+		if (null != parts) {
+			for (FileStatus part : parts) {
+				plannedBuckets.add(part.getPath());
+			}
+		}
+
+		return plannedBuckets;
+	}
+
+	/**
+	 * Returns a crush that plans directories in a {@link PlanningMapper} with the options of the crush that submitted the planning
+	 * job.
+	 */
+	static Crush forPlanning(JobConf job) throws IOException {
+		Crush crush = new Crush();
+
+		crush.job = job;
+		crush.fs = FileSystem.get(job);
+		crush.console = Verbosity.NONE;
+
+		crush.excludeSingleFileDirs = job.getBoolean("crush.plan.exclude.single.file.dirs", true);
+		crush.scanThreads = job.getInt("crush.plan.scan.threads", -1);
+
+		if (1 > crush.scanThreads) {
+			throw new IllegalArgumentException("Not a planning job");
+		}
+
+		crush.dfsBlockSize = crush.parseDfsBlockSize(job);
+
+		String ignoredFiles = job.get("crush.ignore-regex");
+
+		if (null != ignoredFiles) {
+			crush.ignoredFiles = Pattern.compile(ignoredFiles).matcher("");
+		}
+
+		int numSpecs = job.getInt("crush.num.specs", 0);
+
+		crush.matchers = new ArrayList<Matcher>(numSpecs);
+
+		for (int i = 0; i < numSpecs; i++) {
+			crush.matchers.add(Pattern.compile(job.get(format("crush.%d.regex", i))).matcher("dummy"));
+		}
+
+		crush.readLimits();
+
+		crush.jobCounters = new Counters();
+
+		return crush;
+	}
+
+	/**
+	 * Lists and plans a directory and all the directories below it.
+	 */
+	void planShard(Path shard, PlanSink sink, Reporter reporter) throws IOException {
+		DirectoryScanner scanner = new DirectoryScanner(fs, null == ignoredFiles ? null : ignoredFiles.pattern(), scanThreads);
 
 		try {
-			while (!dirs.isEmpty()) {
-				List<Path> nextLevel = new LinkedList<Path>();
+			scanner.add(fs.getFileStatus(shard));
 
-				for (Path dir : dirs) {
-					jobCounters.incrCounter(MapperCounter.DIRS_FOUND, 1);
+			Listing listing;
 
-					print(Verbosity.INFO, "\n\n" + dir.toUri().getPath());
+			while (null != (listing = scanner.next())) {
+				jobCounters.incrCounter(MapperCounter.DIRS_FOUND, 1);
 
-					FileStatus[] contents = fs.listStatus(dir, new PathFilter() {
-						@Override
-						public boolean accept(Path testPath) {
-							if (ignoredFiles == null) return true;
-							ignoredFiles.reset(testPath.toUri().getPath());
-							return !ignoredFiles.matches();
-						}
-						
-					});
+				planDirectory(listing, sink);
+
+				reporter.progress();
+			}
+		} finally {
+			scanner.close();
+		}
+	}
 
-					if (contents == null || contents.length == 0) {
-						print(Verbosity.INFO, " is empty");
+	/**
+	 * Adds a bucket to the partitions. Hosts may be null.
+	 */
+	private void addToPartitions(String bucketId, long bytes, int files, List<String> hosts) {
+		final String id = bucketId;
+		final long cost = costModel.cost(bytes, files);
 
-						jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
-					} else {
-						List<FileStatus> crushables = new ArrayList<FileStatus>(contents.length);
-						Set<String> uncrushedFiles = new HashSet<String>(contents.length);
+		partitionBucketer.add(new HasSize() {
+			@Override
+			public String id() {
+				return id;
+			}
 
-						long crushableBytes = 0;
+			@Override
+			public long size() {
+				return cost;
+			}
+		}, hosts);
 
-						/*
-						 * Queue sub directories for subsequent inspection and examine the files in this directory.
-						 */
-						for (FileStatus content : contents) {
-							Path path = content.getPath();
+		bucketBytes.put(bucketId, bytes);
+	}
+
+	/**
+	 * Buckets the files of a directory that the scanner listed and hands the buckets and the files that are not crushed to the sink.
+	 */
+	void planDirectory(Listing listing, PlanSink sink) throws IOException {
+		Path dir = listing.dir();
 
-							if (content.isDir()) {
-								nextLevel.add(path);
-							} else {
-								boolean changed = uncrushedFiles.add(path.toUri().getPath());
+		FileStatus[] contents = listing.contents();
 
-								assert changed : path.toUri().getPath();
+		if (contents == null || contents.length == 0) {
+			print(Verbosity.INFO, " is empty");
 
-								long fileLength = content.getLen();
+			jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		} else {
+			List<FileStatus> crushables = new ArrayList<FileStatus>(contents.length);
+			List<List<String>> crushableHosts = new ArrayList<List<String>>(contents.length);
+			/*
+			 * Maps the files that have not been assigned to a bucket to their lengths.
+			 */
+			Map<String, Long> uncrushedFiles = new HashMap<String, Long>(contents.length);
 
-								if (fileLength <= maxEligibleSize) {
-									crushables.add(content);
-									crushableBytes += fileLength;
-								}
-							}
-						}
+			int bucketsBefore = nBuckets;
 
-						/*
-						 * We found a directory with data in it. Make sure we know how to name the crush output file and then increment the
-						 * number of files we found.
-						 */
-		    		if (!uncrushedFiles.isEmpty()) {
-		    			if (-1 == findMatcher(dir)) {
-		    				throw new IllegalArgumentException("Could not find matching regex for directory: " + dir);
-		    			}
-
-		    			jobCounters.incrCounter(MapperCounter.FILES_FOUND, uncrushedFiles.size());
-		    		}
-
-		    		if (0 == crushableBytes) {
-		    			print(Verbosity.INFO, " has no crushable files");
-
-		    			jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
-		    		} else {
-		    			/*
-		    			 * We found files to consider for crushing.
-		    			 */
-			    		long nBlocks = crushableBytes / dfsBlockSize;
-
-			    		if (nBlocks * dfsBlockSize != crushableBytes) {
-			    			nBlocks++;
-			    		}
-
-			    		/*
-			    		 * maxFileBlocks will be huge in v1 mode, which will lead to one bucket per directory.
-			    		 */
-							long dirBuckets = nBlocks / maxFileBlocks;
-
-							if (dirBuckets * maxFileBlocks != nBlocks) {
-								dirBuckets++;
-							}
+			long crushableBytes = 0;
 
-							if (dirBuckets > Integer.MAX_VALUE) {
-								throw new AssertionError("Too many buckets: " + dirBuckets);
-							}
+			/*
+			 * The spec that names the crush output file also limits the size of the input and output files.
+			 */
+			int spec = findMatcher(dir);
 
-			    		Bucketer directoryBucketer = new Bucketer((int) dirBuckets, excludeSingleFileDirs);
+			/*
+			 * Examine the files in this directory. The scanner has already queued the sub directories for subsequent inspection.
+			 */
+			for (int i = 0; i < contents.length; i++) {
+				FileStatus content = contents[i];
 
-			    		directoryBucketer.reset(getPathPart(dir));
+				Path path = content.getPath();
 
-			    		for (FileStatus file : crushables) {
-								directoryBucketer.add(new FileStatusHasSize(file));
-							}
+				if (!content.isDir()) {
+					/*
+					 * We found a directory with data in it. Make sure we know how to name the crush output file.
+					 */
+					if (-1 == spec) {
+						throw new IllegalArgumentException("Could not find matching regex for directory: " + dir);
+					}
+
+					long fileLength = content.getLen();
+
+					Long previous = uncrushedFiles.put(path.toUri().getPath(), fileLength);
+
+					assert null == previous : path.toUri().getPath();
+
+					if (fileLength <= maxEligibleSizes.get(spec)) {
+						crushables.add(content);
+						crushableHosts.add(listing.hosts(i));
+						crushableBytes += fileLength;
+					}
+				}
+			}
+
+			if (!uncrushedFiles.isEmpty()) {
+				jobCounters.incrCounter(MapperCounter.FILES_FOUND, uncrushedFiles.size());
+			}
+
+			if (0 == crushableBytes) {
+				print(Verbosity.INFO, " has no crushable files");
+
+				jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+			} else {
+				/*
+				 * We found files to consider for crushing.
+				 */
+				long nBlocks = crushableBytes / dfsBlockSize;
 
-			    		List<Bucket> crushFiles = directoryBucketer.createBuckets();
+				if (nBlocks * dfsBlockSize != crushableBytes) {
+					nBlocks++;
+				}
 
-			    		if (crushFiles.isEmpty()) {
-			    			jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
-			    		} else {
-			    			nBuckets += crushFiles.size();
+				/*
+				 * maxFileBlocks will be huge in v1 mode, which will lead to one bucket per directory.
+				 */
+				int specFileBlocks = maxFileBlocks.get(spec);
 
-			    			jobCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 1);
+				long dirBuckets = nBlocks / specFileBlocks;
 
-			    			print(Verbosity.INFO, " => " + crushFiles.size() + " output files");
+				if (dirBuckets * specFileBlocks != nBlocks) {
+					dirBuckets++;
+				}
 
-			    			/*
-			    			 * Write out the mapping between a bucket and a file.
-			    			 */
-				    		for (Bucket crushFile : crushFiles) {
-				    			String bucketId = crushFile.name();
+				if (dirBuckets > Integer.MAX_VALUE) {
+					throw new AssertionError("Too many buckets: " + dirBuckets);
+				}
 
-				    			List<String> bucketFiles = crushFile.contents();
+				Bucketer directoryBucketer = new Bucketer((int) dirBuckets, excludeSingleFileDirs);
 
-				    			print(Verbosity.INFO, format("\n  Output %s will include %,d input bytes from %,d files", bucketId,
-				    					crushFile.size(), bucketFiles.size()));
+				directoryBucketer.reset(getPathPart(dir));
 
-				    			key.set(bucketId);
+				for (int i = 0; i < crushables.size(); i++) {
+					directoryBucketer.add(new FileStatusHasSize(crushables.get(i)), crushableHosts.get(i));
+				}
 
-				    			for (String f : bucketFiles) {
-				    				boolean changed = uncrushedFiles.remove(f);
+				List<Bucket> crushFiles = directoryBucketer.createBuckets();
 
-				    				assert changed : f;
+				if (crushFiles.isEmpty()) {
+					jobCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+				} else {
+					nBuckets += crushFiles.size();
 
-				    				pathMatcher.reset(f);
+					jobCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 1);
 
-				    				pathMatcher.matches();
+					print(Verbosity.INFO, " => " + crushFiles.size() + " output files");
 
-				    				value.set(pathMatcher.group(5));
+					/*
+					 * Write out the mapping between a bucket and a file.
+					 */
+					for (Bucket crushFile : crushFiles) {
+						String bucketId = crushFile.name();
 
-										writer.append(key, value);
+						List<String> bucketFiles = crushFile.contents();
 
-										/*
-										 * Print the input file with four leading spaces.
-										 */
-										print(Verbosity.VERBOSE, "\n    " + f);
-									}
+						print(Verbosity.INFO, format("\n  Output %s will include %,d input bytes from %,d files", bucketId,
+								crushFile.size(), bucketFiles.size()));
 
-				    			jobCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, bucketFiles.size());
+						List<Text> sources = new ArrayList<Text>(bucketFiles.size());
 
-				    			partitionBucketer.add(crushFile);
-				    		}
-			    		}
-		    		}
+						for (String f : bucketFiles) {
+							Long fileLength = uncrushedFiles.remove(f);
 
-		    		if (!uncrushedFiles.isEmpty()) {
-		    			print(Verbosity.INFO, "\n\n  Skipped " + uncrushedFiles.size() + " files");
+							assert null != fileLength : f;
 
-		    			for (String uncrushed : uncrushedFiles) {
-		    				print(Verbosity.VERBOSE, "\n    " + uncrushed);
-							}
+							pathMatcher.reset(f);
 
-		    			jobCounters.incrCounter(MapperCounter.FILES_SKIPPED, uncrushedFiles.size());
-		    		}
+							pathMatcher.matches();
 
-		    		skippedFiles.addAll(uncrushedFiles);
+							/*
+							 * Carry the length so the reducer does not have to ask the name node for it.
+							 */
+							sources.add(new Text(SourceFile.format(pathMatcher.group(5), fileLength)));
+
+							/*
+							 * Print the input file with four leading spaces.
+							 */
+							print(Verbosity.VERBOSE, "\n    " + f);
+						}
+
+						jobCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, bucketFiles.size());
+
+						sink.bucket(crushFile, sources);
 					}
 				}
+			}
+
+			if (!uncrushedFiles.isEmpty()) {
+				print(Verbosity.INFO, "\n\n  Skipped " + uncrushedFiles.size() + " files");
+
+				for (String uncrushed : uncrushedFiles.keySet()) {
+					print(Verbosity.VERBOSE, "\n    " + uncrushed);
+				}
+
+				jobCounters.incrCounter(MapperCounter.FILES_SKIPPED, uncrushedFiles.size());
+			}
+
+			sink.skipped(uncrushedFiles.keySet());
+
+			if (null != changedDirs) {
+				/*
+				 * Clone mode replaces the crushed files in the source directory. Otherwise the skipped files are moved out of it.
+				 */
+				if (Mode.CLONE == mode ? nBuckets != bucketsBefore : !uncrushedFiles.isEmpty()) {
+					changedDirs.add(dir.toUri().getPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the buckets to {@link #bucketFiles}, replacing each bucket id with its key. The reducer finds the directory of a bucket
+	 * in the paths of its files, so the bucket ids are not kept.
+	 *
+	 * @param unpartitioned
+	 *          The files that hold the buckets. Each bucket is in one file only.
+	 * @param bucketOffsets
+	 *          Receives the position of the sync point that precedes each bucket. May be null.
+	 */
+	private void writeBucketFiles(List<Path> unpartitioned, Map<String, String> bucketKeys, Map<String, Long> bucketOffsets)
+			throws IOException {
+		Writer writer = SequenceFile.createWriter(fs, job, bucketFiles, Text.class, Text.class, CompressionType.BLOCK);
+
+		try {
+			Text bucketId = new Text();
+			Text previousId = new Text();
+			Text key = new Text();
+			Text value = new Text();
+
+			boolean first = true;
+
+			for (Path path : unpartitioned) {
+				Reader reader = new Reader(fs, path, job);
+
+				try {
+					while (reader.next(bucketId, value)) {
+						/*
+						 * The files of a bucket are contiguous.
+						 */
+						if (first || !previousId.equals(bucketId)) {
+							String id = bucketId.toString();
+
+							key.set(bucketKeys.get(id));
+
+							if (null != bucketOffsets) {
+								/*
+								 * Start a new block so that a reader can seek directly to the bucket.
+								 */
+								writer.sync();
+
+								bucketOffsets.put(id, writer.getLength());
+							}
+
+							previousId.set(bucketId);
+
+							first = false;
+						}
 
-				dirs = nextLevel;
+						writer.append(key, value);
+					}
+				} finally {
+					reader.close();
+				}
 			}
 		} finally {
 			try {
@@ -1203,50 +2438,158 @@ public class Crush extends Configured implements Tool {
 				LOG.error("Trapped exception during close: " + bucketFiles, e);
 			}
 		}
+	}
 
+	private static int partitionNumber(Bucket partition) {
+		String partitionName = partition.name();
 
-		/*
-		 * Now that we have processed all the directories, write the partition map.
-		 */
-		List<Bucket> partitions = partitionBucketer.createBuckets();
-
-		assert partitions.size() <= numPartitions;
+		return Integer.parseInt(partitionName.substring(partitionName.lastIndexOf('-') + 1));
+	}
 
-		writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
+	/**
+	 * Writes one {@link BucketSplit} per partition for {@link BucketInputFormat}. With {@link #locality}, each split prefers the hosts
+	 * that store most of its bytes.
+	 */
+	private void writeSplits(List<Bucket> partitions, Map<String, String> bucketKeys, Map<String, Long> bucketOffsets,
+			Map<String, Long> bucketBytes) throws IOException {
+		Writer writer = SequenceFile.createWriter(fs, job, splits, IntWritable.class, BucketSplit.class);
 
 		IntWritable partNum = new IntWritable();
 
+		Path qualified = fs.makeQualified(bucketFiles);
+
 		try {
 			for (Bucket partition : partitions) {
-				String partitionName = partition.name();
+				partNum.set(partitionNumber(partition));
+
+				List<String> bucketIds = partition.contents();
 
-				partNum.set(Integer.parseInt(partitionName.substring(partitionName.lastIndexOf('-') + 1)));
+				/*
+				 * There are fewer buckets than partitions.
+				 */
+				if (bucketIds.isEmpty()) {
+					continue;
+				}
+
+				String[] keys = new String[bucketIds.size()];
+				long[] offsets = new long[bucketIds.size()];
 
-				for (String bucketId : partition.contents()) {
-					key.set(bucketId);
+				/*
+				 * The size of the partition is its cost, which is not what the split length means.
+				 */
+				long length = 0;
 
-					writer.append(key, partNum);
+				for (int i = 0; i < offsets.length; i++) {
+					keys[i] = bucketKeys.get(bucketIds.get(i));
+					offsets[i] = bucketOffsets.get(bucketIds.get(i));
+
+					length += bucketBytes.get(bucketIds.get(i));
 				}
+
+				List<String> hosts = partition.hosts();
+
+				writer.append(partNum, new BucketSplit(qualified, keys, offsets, length, hosts.toArray(new String[hosts.size()])));
 			}
 		} finally {
 			try {
 				writer.close();
 			} catch (Exception e) {
-				LOG.error("Trapped exception during close: " + partitionMap, e);
+				LOG.error("Trapped exception during close: " + splits, e);
 			}
 		}
+	}
 
-		DataOutputStream countersStream = fs.create(this.counters);
+	/**
+	 * Returns true if a plan of the given size is crushed in process rather than submitted to the cluster.
+	 */
+	private boolean isSmall(long bytes, long files) {
+		long maxBytes = job.getLong(LOCAL_MAX_BYTES, 256 * 1024 * 1024);
+		long maxFiles = job.getLong(LOCAL_MAX_FILES, 1000);
 
-		try {
-			jobCounters.write(countersStream);
-		} finally {
-			try {
-				countersStream.close();
-			} catch (Exception e) {
-				LOG.error("Trapped exception during close: " + partitionMap, e);
+		return 0 < maxBytes && 0 < maxFiles && bytes <= maxBytes && files <= maxFiles;
+	}
+
+	/**
+	 * Calibrates the {@link LinearCostModel} from the tasks recorded in the {@link #calibrationFile}, unless the job configuration
+	 * already sets the costs.
+	 */
+	private void calibrate() throws IOException {
+		if (null != job.get(LinearCostModel.FILE_COST) || null != job.get(LinearCostModel.RECORD_COST)) {
+			print(Verbosity.INFO, "\n\nCosts are configured, not calibrating");
+
+			return;
+		}
+
+		List<LinearCostModel.Sample> samples = LinearCostModel.read(job, calibrationFile);
+
+		if (LinearCostModel.calibrate(job, samples)) {
+			print(Verbosity.INFO, format("\n\nCalibrated from %d tasks: %s = %s, %s = %s, %s = %s", samples.size(),
+					LinearCostModel.FILE_COST, job.get(LinearCostModel.FILE_COST), LinearCostModel.RECORD_COST,
+					job.get(LinearCostModel.RECORD_COST), LinearCostModel.RECORD_SIZE, job.get(LinearCostModel.RECORD_SIZE)));
+		} else {
+			print(Verbosity.INFO, format("\n\nCannot calibrate from %d tasks, using the default costs", samples.size()));
+		}
+	}
+
+	/**
+	 * Adds the tasks that crushed files in the completed job to the {@link #calibrationFile}, dropping the oldest tasks beyond
+	 * {@link #MAX_CALIBRATION_SAMPLES}.
+	 */
+	private void writeCalibration(RunningJob completed) throws IOException {
+		JobClient client = new JobClient(job);
+
+		TaskReport[] reports;
+
+		if (mapOnly) {
+			reports = client.getMapTaskReports(completed.getID());
+		} else {
+			reports = client.getReduceTaskReports(completed.getID());
+		}
+
+		List<LinearCostModel.Sample> samples = LinearCostModel.read(job, calibrationFile);
+
+		for (TaskReport report : reports) {
+			LinearCostModel.Sample sample = LinearCostModel.Sample.of(report.getFinishTime() - report.getStartTime(), report.getCounters());
+
+			/*
+			 * Tasks that crushed nothing, such as the ones that only carried the counters, say nothing about the costs.
+			 */
+			if (0 < sample.files() && 0 < report.getFinishTime()) {
+				samples.add(sample);
+			}
+		}
+
+		if (samples.size() > MAX_CALIBRATION_SAMPLES) {
+			samples = samples.subList(samples.size() - MAX_CALIBRATION_SAMPLES, samples.size());
+		}
+
+		print(Verbosity.INFO, format("\n\nRecording %d tasks in %s", samples.size(), calibrationFile));
+
+		LinearCostModel.write(job, calibrationFile, samples);
+	}
+
+	/**
+	 * Records the fingerprints of the directories examined by this crush for the next incremental crush. Directories that the crush
+	 * changed are fingerprinted again, or forgotten if they gained sub directories.
+	 */
+	void writeState() throws IOException {
+		print(Verbosity.INFO, "\n\nWriting state to " + stateFile);
+
+		for (String dir : changedDirs) {
+			DirectoryFingerprint fingerprint = nextState.get(dir);
+
+			if (null != fingerprint && fingerprint.isLeaf()) {
+				fingerprint = DirectoryFingerprint.summarize(fs, new Path(dir));
+
+				if (null == fingerprint) {
+					nextState.remove(dir);
+				} else {
+					nextState.put(dir, fingerprint);
+				}
 			}
 		}
+
+		DirectoryFingerprint.write(job, stateFile, nextState);
 	}
 
 	/**
@@ -1280,20 +2623,76 @@ public class Crush extends Configured implements Tool {
 		return bucketFiles;
 	}
 
-	Path getPartitionMap() {
-		return partitionMap;
-	}
-
 	Path getCounters() {
 		return counters;
 	}
 
+	Path getSplits() {
+		return splits;
+	}
+
+	boolean isMapOnly() {
+		return mapOnly;
+	}
+
+	boolean isResume() {
+		return resume;
+	}
+
+	boolean isLocality() {
+		return locality;
+	}
+
+	double getAutoTaskMinutes() {
+		return autoTaskMinutes;
+	}
+
+	public boolean isLocal() {
+		return local;
+	}
+
+	int getInProcessThreads() {
+		return inProcessThreads;
+	}
+
+	int getPlanTasks() {
+		return planTasks;
+	}
+
 	public Counters getJobCounters() {
 		return jobCounters;
 	}
 
-	int getMaxFileBlocks() {
-		return maxFileBlocks;
+	int getMaxFileBlocks(int spec) {
+		return maxFileBlocks.get(spec);
+	}
+
+	long getMaxEligibleSize(int spec) {
+		return maxEligibleSizes.get(spec);
+	}
+
+	int getScanThreads() {
+		return scanThreads;
+	}
+
+	int getMoveThreads() {
+		return moveThreads;
+	}
+
+	Path getStateFile() {
+		return stateFile;
+	}
+
+	boolean isVerifyUnchanged() {
+		return verifyUnchanged;
+	}
+
+	Path getCalibrationFile() {
+		return calibrationFile;
+	}
+
+	Path getListingFile() {
+		return listingFile;
 	}
 
 	private int findMatcher(Path path) {
@@ -1336,11 +2735,97 @@ public class Crush extends Configured implements Tool {
 		STAND_ALONE, MAP_REDUCE, CLONE
 	}
 
+	/**
+	 * Receives the plan of each directory.
+	 */
+	interface PlanSink {
+		/**
+		 * Receives a bucket and its files in the format of the bucket files.
+		 */
+		void bucket(Bucket bucket, List<Text> sources) throws IOException;
+
+		/**
+		 * Receives the files of a directory that are not crushed.
+		 */
+		void skipped(Collection<String> files) throws IOException;
+	}
+
+	/**
+	 * Writes the buckets for the crush job or crushes them in process, and adds them to the partitions. Writes the skipped files out.
+	 */
+	private class WriterSink implements PlanSink {
+
+		private final Writer writer;
+
+		private final Writer skippedWriter;
+
+		/**
+		 * Null unless the buckets are crushed in process.
+		 */
+		private final InProcessCrusher crusher;
+
+		private final Text key = new Text();
+
+		public WriterSink(Writer writer, Writer skippedWriter, InProcessCrusher crusher) {
+			super();
+
+			this.writer = writer;
+			this.skippedWriter = skippedWriter;
+			this.crusher = crusher;
+		}
+
+		@Override
+		public void bucket(Bucket bucket, List<Text> sources) throws IOException {
+			key.set(bucket.name());
+
+			if (null == crusher) {
+				for (Text source : sources) {
+					writer.append(key, source);
+				}
+
+				addToPartitions(bucket.name(), bucket.size(), sources.size(), bucket.hosts());
+			} else {
+				/*
+				 * There is no job to partition the buckets for.
+				 */
+				crusher.crush(key, sources.iterator());
+			}
+		}
+
+		@Override
+		public void skipped(Collection<String> files) throws IOException {
+			NullWritable nothing = NullWritable.get();
+
+			for (String file : files) {
+				key.set(file);
+
+				skippedWriter.append(key, nothing);
+			}
+		}
+	}
+
 	private static class NullOutputCollector<K, V> implements OutputCollector<K, V> {
 		@Override
 		public void collect(K arg0, V arg1) throws IOException {
 		}
 	}
 
+	/**
+	 * A plan with no more than this many bytes to crush is crushed in process, as long as it also has no more than
+	 * {@link #LOCAL_MAX_FILES} files. Defaults to 256 MB. Zero submits every crush to the cluster.
+	 */
+	public static final String LOCAL_MAX_BYTES = "crush.local.max.bytes";
+
+	/**
+	 * A plan with no more than this many files to crush is crushed in process, as long as it also has no more than
+	 * {@link #LOCAL_MAX_BYTES} bytes. Defaults to 1,000. Zero submits every crush to the cluster.
+	 */
+	public static final String LOCAL_MAX_FILES = "crush.local.max.files";
+
+	/**
+	 * The number of most recent tasks kept in the {@link #calibrationFile}.
+	 */
+	static final int MAX_CALIBRATION_SAMPLES = 1000;
+
   private static final Log LOG = LogFactory.getLog(Crush.class);
 }
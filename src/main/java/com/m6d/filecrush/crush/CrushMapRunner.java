@@ -0,0 +1,73 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Runs {@link CrushReducer} in a map task. {@link BucketInputFormat} returns the records of each bucket contiguously so they can be
+ * grouped without a sort.
+ */
+@SuppressWarnings("deprecation")
+public class CrushMapRunner implements MapRunnable<Text, Text, Text, Text> {
+
+	private final CrushReducer reducer = new CrushReducer();
+
+	@Override
+	public void configure(JobConf job) {
+		reducer.configure(job);
+	}
+
+	@Override
+	public void run(RecordReader<Text, Text> input, OutputCollector<Text, Text> collector, Reporter reporter) throws IOException {
+		Text key = input.createKey();
+		Text value = input.createValue();
+
+		Text bucketId = null;
+
+		List<Text> files = new ArrayList<Text>();
+
+		try {
+			while (input.next(key, value)) {
+				if (null == bucketId) {
+					bucketId = new Text(key);
+				} else if (!bucketId.equals(key)) {
+					reducer.reduce(bucketId, files.iterator(), collector, reporter);
+
+					files.clear();
+					bucketId.set(key);
+				}
+
+				files.add(new Text(value));
+			}
+
+			if (!files.isEmpty()) {
+				reducer.reduce(bucketId, files.iterator(), collector, reporter);
+			}
+		} finally {
+			reducer.close();
+		}
+	}
+}
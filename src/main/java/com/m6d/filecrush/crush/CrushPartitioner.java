@@ -15,63 +15,93 @@
  */
 package com.m6d.filecrush.crush;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.SequenceFile.Reader;
+import static java.lang.String.format;
+
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Partitioner;
 
+/**
+ * <p>
+ * Sends each bucket to the reduce task chosen by the planner. The planner writes bucket keys that start with the partition number,
+ * zero padded to {@link #WIDTH} digits and followed by a colon, so the partition is decoded from the first bytes of the key without
+ * loading anything. The rest of the key is the number of the bucket within its partition, zero padded to the same width for every
+ * bucket of the crush. For example:
+ * </p>
+ *
+ * <pre>
+ * 00003:017
+ * </pre>
+ *
+ * <p>
+ * The buckets of a partition are numbered in the order of their bucket ids, which are much longer, so the keys sort like the bucket
+ * ids would.
+ * </p>
+ */
 @SuppressWarnings("deprecation")
 public class CrushPartitioner implements Partitioner<Text, Text> {
 
-	private Map<Text, Integer> bucketToPartition;
+	/**
+	 * The number of digits in the partition number.
+	 */
+	static final int WIDTH = 5;
+
+	/**
+	 * One more than the largest partition number that fits in {@link #WIDTH} digits.
+	 */
+	static final int MAX_PARTITIONS = 100000;
 
 	@Override
 	public void configure(JobConf job) {
-		String path = job.get("crush.partition.map");
-		int expPartitions = job.getNumReduceTasks();
+	}
 
-		bucketToPartition = new HashMap<Text, Integer>(100);
+	@Override
+	public int getPartition(Text key, Text fileName, int numPartitions) {
+		int partition = partition(key);
 
-		try {
-			FileSystem fs = FileSystem.get(job);
+		if (partition >= numPartitions) {
+			throw new IllegalArgumentException("Partition " + partition + " not allowed with " + numPartitions + " reduce tasks");
+		}
 
-			Reader reader = new Reader(fs, new Path(path), job);
+		return partition;
+	}
 
-			Text bucket = new Text();
-			IntWritable partNum = new IntWritable();
+	/**
+	 * Returns the key of a bucket that belongs to the given partition.
+	 *
+	 * @param bucket
+	 *          The number of the bucket or, when there is only one bucket, anything that identifies it
+	 */
+	static String key(int partition, String bucket) {
+		if (0 > partition || MAX_PARTITIONS <= partition) {
+			throw new IllegalArgumentException("Partition must be in [0, " + MAX_PARTITIONS + "): " + partition);
+		}
 
-			while (reader.next(bucket, partNum)) {
-				int partNumValue = partNum.get();
+		return format("%0" + WIDTH + "d:%s", partition, bucket);
+	}
+
+	/**
+	 * Decodes the partition number from a key created by {@link #key(int, String)}.
+	 */
+	static int partition(Text key) {
+		byte[] bytes = key.getBytes();
+
+		if (key.getLength() <= WIDTH || ':' != bytes[WIDTH]) {
+			throw new IllegalArgumentException("Not a bucket key: " + key);
+		}
 
-				if (partNumValue < 0 || partNumValue >= expPartitions) {
-					throw new IllegalArgumentException("Partition " + partNumValue + " not allowed with " + expPartitions + " reduce tasks");
-				}
+		int partition = 0;
 
-				Integer prev = bucketToPartition.put(new Text(bucket), partNumValue);
+		for (int i = 0; i < WIDTH; i++) {
+			int digit = bytes[i] - '0';
 
-				if (null != prev) {
-					throw new IllegalArgumentException("Bucket " + bucket + " appears more than once in " + path);
-				}
+			if (0 > digit || 9 < digit) {
+				throw new IllegalArgumentException("Not a bucket key: " + key);
 			}
-		} catch (IOException e) {
-			throw new RuntimeException("Could not read partition map from " + path, e);
-		}
 
-		if (new HashSet<Integer>(bucketToPartition.values()).size() > expPartitions) {
-			throw new IllegalArgumentException(path + " contains more than " + expPartitions + " distinct partitions");
+			partition = partition * 10 + digit;
 		}
-	}
 
-	@Override
-	public int getPartition(Text bucketId, Text fileName, int numPartitions) {
-		return bucketToPartition.get(bucketId);
+		return partition;
 	}
 }
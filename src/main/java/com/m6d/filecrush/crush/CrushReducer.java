@@ -17,21 +17,55 @@ package com.m6d.filecrush.crush;
 
 import static java.lang.String.format;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.SequenceFile.Metadata;
+import org.apache.hadoop.io.SequenceFile.ValueBytes;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableName;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.Counters.Counter;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobConfigurable;
@@ -42,13 +76,15 @@ import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 
 @SuppressWarnings("deprecation")
 public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
 
-	private final Text valueOut = new Text();
-
 	/**
 	 * Internal counter for the number of input groups processed. Used to report status.
 	 */
@@ -72,6 +108,43 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 
 	private FileSystem fs;
 
+	/**
+	 * The number of buckets crushed concurrently.
+	 */
+	private int numThreads;
+
+	/**
+	 * Crushes buckets on {@link #numThreads} threads. Null if buckets are crushed one after another by the calling thread.
+	 */
+	private ExecutorService executor;
+
+	private CompletionService<Void> completion;
+
+	/**
+	 * The number of buckets submitted to {@link #completion} that have not been waited for.
+	 */
+	private int pendingBuckets;
+
+	/**
+	 * Shared by the threads, which must not call the reporter of the framework concurrently.
+	 */
+	private Reporter synchronizedReporter;
+
+	/**
+	 * Opens the source files that come next while the current one is being copied.
+	 */
+	private FilePrefetcher prefetcher;
+
+	/**
+	 * The number of source files to open ahead of the one being copied.
+	 */
+	private int prefetchFiles;
+
+	/**
+	 * Controls whether the length of each source file is checked against the planned length before the file is crushed.
+	 */
+	private boolean verifySources;
+
 	/**
 	 * Matched against dir names to calculate the crush output file name.
 	 */
@@ -92,6 +165,12 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 	 */
 	private List<Class<?>> outFormatClsList;
 
+	/**
+	 * The configurations that the output files are compressed with, which correspond with {@link #inputRegexList}. The job itself
+	 * unless the spec has a codec of its own.
+	 */
+	private List<JobConf> outputConfList;
+
 	/**
 	 * Used to substitute values into placeholders.
 	 */
@@ -151,6 +230,67 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+
+		prefetchFiles = job.getInt(PREFETCH_FILES, 4);
+
+		if (0 > prefetchFiles) {
+			throw new IllegalArgumentException(format("Number of files to prefetch must be zero or positive: %s=%d", PREFETCH_FILES,
+					prefetchFiles));
+		}
+
+		verifySources = job.getBoolean(VERIFY_SOURCES, false);
+
+		numThreads = job.getInt(THREADS, 1);
+
+		if (1 > numThreads) {
+			throw new IllegalArgumentException(format("Number of threads must be positive: %s=%d", THREADS, numThreads));
+		}
+
+		long prefetchBytes = (long) prefetchFiles * numThreads * PREFETCH_BUFFER_SIZE;
+
+		if (prefetchBytes > Runtime.getRuntime().maxMemory() / 4) {
+			throw new IllegalArgumentException(format("%s=%d and %s=%d buffer up to %,d bytes, more than a quarter of the heap",
+					PREFETCH_FILES, prefetchFiles, THREADS, numThreads, prefetchBytes));
+		}
+
+		if (1 < numThreads) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "crush-reducer-" + count.getAndIncrement());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+
+			completion = new ExecutorCompletionService<Void>(executor);
+		}
+
+		/*
+		 * Every thread opens its own files ahead.
+		 */
+		prefetcher = new FilePrefetcher(fs, prefetchFiles * numThreads, PREFETCH_BUFFER_SIZE);
+	}
+
+	/**
+	 * Waits for the buckets that are still being crushed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (null != executor) {
+				try {
+					awaitBuckets(0);
+				} finally {
+					executor.shutdownNow();
+				}
+			}
+		} finally {
+			prefetcher.close();
+		}
 	}
 
 	/**
@@ -161,6 +301,7 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 	 * <li><{@link #outputReplacementList}/li>
 	 * <li><{@link #inFormatClsList}/li>
 	 * <li><{@link #outFormatClsList}/li>
+	 * <li><{@link #outputConfList}/li>
 	 * </ul>
 	 */
 	private void readCrushSpecs(int numSpecs) {
@@ -168,6 +309,7 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 		outputReplacementList = new ArrayList<String>(numSpecs);
 		inFormatClsList = new ArrayList<Class<?>>(numSpecs);
 		outFormatClsList = new ArrayList<Class<?>>(numSpecs);
+		outputConfList = new ArrayList<JobConf>(numSpecs);
 
 		for (int i = 0; i < numSpecs; i++) {
 			String key;
@@ -246,6 +388,35 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 			} catch (ClassNotFoundException e) {
 				throw new IllegalArgumentException(format("Not a valid class: %s=%s", key, value));
 			}
+
+			/*
+			 * Output compression, which overrides that of the job.
+			 */
+			key = format("crush.%d.output.compress", i);
+			value = job.get(key);
+
+			if (null == value || value.isEmpty()) {
+				outputConfList.add(job);
+			} else {
+				JobConf outputConf = new JobConf(job);
+
+				if (Boolean.parseBoolean(value)) {
+					key = format("crush.%d.output.compression.codec", i);
+					value = job.get(key);
+
+					if (null == value || value.isEmpty()) {
+						throw new IllegalArgumentException("No output compression codec: " + key);
+					}
+
+					outputConf.setBoolean("mapred.output.compress", true);
+					outputConf.set("mapred.output.compression.type", "BLOCK");
+					outputConf.set("mapred.output.compression.codec", value);
+				} else {
+					outputConf.setBoolean("mapred.output.compress", false);
+				}
+
+				outputConfList.add(outputConf);
+			}
 		}
 	}
 
@@ -253,140 +424,326 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 	public void reduce(Text bucketId, Iterator<Text> values, OutputCollector<Text, Text> collector, Reporter reporter) throws IOException {
 		String bucket = bucketId.toString();
 
-		String dirName = bucket.substring(0, bucket.lastIndexOf('-'));
+		/*
+		 * The key is too short to name the directory. All the files of a bucket are in the same directory so take it from the first
+		 * one. The framework reuses the value so it is copied.
+		 */
+		Text first = new Text(values.next());
+
+		String dirName = new Path(SourceFile.parse(first.toString()).path()).getParent().toUri().getPath();
+
+		values = prepend(first, values);
 
 		int idx = findMatcher(dirName);
 
+		/*
+		 * Output file names are numbered in the order the buckets arrive, even when they are crushed concurrently.
+		 */
 		String outputFileName = calculateOutputFile(idx, dirName);
 
+		if (null == executor) {
+			crush(bucket, idx, outputFileName, values, collector, reporter);
+
+			return;
+		}
+
+		/*
+		 * The framework reuses the values so they are copied before the bucket is handed to another thread. Then wait for a free
+		 * thread, which bounds the number of copied buckets held in memory and fails the task as soon as an earlier bucket failed.
+		 */
+		List<Text> files = new ArrayList<Text>();
+
+		while (values.hasNext()) {
+			files.add(new Text(values.next()));
+		}
+
+		awaitBuckets(numThreads - 1);
+
+		if (null == synchronizedReporter) {
+			synchronizedReporter = new SynchronizedReporter(reporter);
+		}
+
+		completion.submit(new BucketCrusher(bucket, idx, outputFileName, files, collector, synchronizedReporter));
+
+		pendingBuckets++;
+	}
+
+	/**
+	 * Returns the first value again before the remaining ones.
+	 */
+	private static Iterator<Text> prepend(final Text first, final Iterator<Text> rest) {
+		return new Iterator<Text>() {
+			private boolean firstReturned;
+
+			@Override
+			public boolean hasNext() {
+				return !firstReturned || rest.hasNext();
+			}
+
+			@Override
+			public Text next() {
+				if (firstReturned) {
+					return rest.next();
+				}
+
+				firstReturned = true;
+
+				return first;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Crushes the files of a bucket into one output file and collects the mapping from each source file to the output file.
+	 */
+	private void crush(String bucket, int idx, String outputFileName, Iterator<Text> values, OutputCollector<Text, Text> collector,
+			Reporter reporter) throws IOException {
 		/*
 		 * Don't need to separate the paths because the output file name is already absolute.
 		 */
-		valueOut.set(outDirPath + outputFileName);
+		Text valueOut = new Text(outDirPath + outputFileName);
+
+		/*
+		 * The path of the source file without the length that the bucket file carries.
+		 */
+		Text srcPath = new Text();
 
 		LOG.info(format("Crushing bucket '%s' to file '%s'", bucket, outputFileName));
 
 		/*
 		 * Strip the leading slash to make the path relative. the output format will relativize it to the task attempt work dir.
 		 */
-		RecordWriter<Object, Object> sink = null;
+		Sink sink = createSink(idx, "crush" + outputFileName);
 		Exception rootCause = null;
 
-		Object key = null;
-		Object value = null;
+		/*
+		 * The files after the current one, which are being prefetched. The framework reuses the value so they are copied.
+		 */
+		LinkedList<Text> ahead = new LinkedList<Text>();
+
+		boolean prefetch = prefetcher.isEnabled() && !(sink instanceof RecordSink);
 
 		try {
-			while (null == rootCause && values.hasNext()) {
-				Text srcFile = values.next();
-				Path inputPath = new Path(srcFile.toString());
+			while (!ahead.isEmpty() || values.hasNext()) {
+				Text srcFile;
 
-				RecordReader<Object, Object> reader = createRecordReader(idx, inputPath, reporter);
+				if (prefetch) {
+					while (ahead.size() <= prefetchFiles && values.hasNext()) {
+						Text next = new Text(values.next());
 
-				try {
-					if (null == key) {
-						key = reader.createKey();
-						value = reader.createValue();
-
-						/*
-						 * Set the key and value class in the conf, which the output format uses to get type information.
-						 */
-						job.setOutputKeyClass(key.getClass());
-						job.setOutputValueClass(value.getClass());
-
-						/*
-						 * Output file name is absolute so we can just add it to the crush prefix.
-						 */
-						sink = createRecordWriter(idx, "crush" + outputFileName);
-					} else {
+						SourceFile source = SourceFile.parse(next.toString());
 
-						Class<?> other = reader.createKey().getClass();
+						prefetcher.prefetch(source.toPath(), source.length());
 
-						if (!(key.getClass().equals(other))) {
-							throw new IllegalArgumentException(format("Heterogeneous keys detected in %s: %s !- %s", inputPath, key.getClass(), other));
-						}
+						ahead.add(next);
+					}
 
-						other = reader.createValue().getClass();
+					srcFile = ahead.removeFirst();
+				} else {
+					srcFile = values.next();
+				}
 
-						if (!value.getClass().equals(other)) {
-							throw new IllegalArgumentException(format("Heterogeneous values detected in %s: %s !- %s", inputPath, value.getClass(), other));
-						}
-					}
+				SourceFile source = SourceFile.parse(srcFile.toString());
 
-					while (reader.next(key, value)) {
-						sink.write(key, value);
-						reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
-					}
-				} catch (Exception e) {
-					rootCause = e;
-				} finally {
-					try {
-						reader.close();
-					} catch (Exception e) {
-						if (null == rootCause) {
-							rootCause = e;
-						} else {
-							LOG.debug("Swallowing exception on close of " + inputPath, e);
-						}
-					}
+				Path inputPath = source.toPath();
+
+				if (verifySources) {
+					verify(source);
 				}
 
+				sink.append(inputPath, source.length(), reporter);
+
 				/*
 				 * Output of the reducer is the source file => crushed file (in the final output dir, no the task attempt work dir.
 				 */
-				collector.collect(srcFile, valueOut);
-				reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
-
-				recordNumber++;
+				srcPath.set(source.path());
 
-				if (reportRecordNumber == recordNumber) {
-					reportRecordNumber += reportRecordNumber;
+				collector.collect(srcPath, valueOut);
+				reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
 
-					reporter.setStatus(format("Processed %,d files %s : %s", recordNumber, bucket, inputPath));
+				if (0 <= source.length()) {
+					reporter.incrCounter(ReducerCounter.BYTES_CRUSHED, source.length());
 				}
+
+				fileCrushed(bucket, inputPath, reporter);
 			}
 		} catch (Exception e) {
 			rootCause = e;
 		} finally {
-			if (null != sink) {
-				try {
-					sink.close(reporter);
-				} catch (Exception e) {
-					if (null == rootCause) {
-						rootCause = e;
-					} else {
-						LOG.error("Swallowing exception on close of " + outputFileName, e);
-					}
+			try {
+				sink.close(reporter);
+			} catch (Exception e) {
+				if (null == rootCause) {
+					rootCause = e;
+				} else {
+					LOG.error("Swallowing exception on close of " + outputFileName, e);
 				}
 			}
 
-			/*
-			 * Let the exception bubble up with a minimum of wrapping.
-			 */
-			if (null != rootCause) {
-				if (rootCause instanceof RuntimeException) {
-					throw (RuntimeException) rootCause;
+			rethrow(rootCause);
+		}
+	}
+
+	/**
+	 * Counts a crushed file and reports the status every now and then. Invoked concurrently when buckets are crushed by more than one
+	 * thread.
+	 */
+	private synchronized void fileCrushed(String bucket, Path inputPath, Reporter reporter) {
+		recordNumber++;
+
+		if (reportRecordNumber == recordNumber) {
+			reportRecordNumber += reportRecordNumber;
+
+			reporter.setStatus(format("Processed %,d files %s : %s", recordNumber, bucket, inputPath));
+		}
+	}
+
+	/**
+	 * Waits until no more than the given number of buckets are being crushed by the threads. Throws the exception of the first
+	 * bucket found to have failed.
+	 */
+	private void awaitBuckets(int maxPending) throws IOException {
+		while (pendingBuckets > maxPending) {
+			Future<Void> done;
+
+			try {
+				done = completion.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				throw (IOException) new InterruptedIOException("Interrupted while crushing buckets").initCause(e);
+			}
+
+			pendingBuckets--;
+
+			try {
+				done.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				throw (IOException) new InterruptedIOException("Interrupted while crushing buckets").initCause(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
 				}
 
-				if (rootCause instanceof IOException) {
-					throw (IOException) rootCause;
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Crushes a bucket on one of the threads. The mappings from source files to the output file are collected only after the whole
+	 * bucket has been crushed so that they are not interleaved with those of other buckets.
+	 */
+	private class BucketCrusher implements Callable<Void> {
+
+		private final String bucket;
+
+		private final int idx;
+
+		private final String outputFileName;
+
+		private final List<Text> files;
+
+		private final OutputCollector<Text, Text> collector;
+
+		private final Reporter reporter;
+
+		public BucketCrusher(String bucket, int idx, String outputFileName, List<Text> files, OutputCollector<Text, Text> collector,
+				Reporter reporter) {
+			super();
+
+			this.bucket = bucket;
+			this.idx = idx;
+			this.outputFileName = outputFileName;
+			this.files = files;
+			this.collector = collector;
+			this.reporter = reporter;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			final List<Text> srcFiles = new ArrayList<Text>(files.size());
+			final Text crushOutput = new Text();
+
+			crush(bucket, idx, outputFileName, files.iterator(), new OutputCollector<Text, Text>() {
+				@Override
+				public void collect(Text key, Text value) {
+					srcFiles.add(new Text(key));
+					crushOutput.set(value);
 				}
+			}, reporter);
 
-				throw new RuntimeException(rootCause);
+			synchronized (collector) {
+				for (Text srcFile : srcFiles) {
+					collector.collect(srcFile, crushOutput);
+				}
 			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Fails if the source file no longer has the length it had when the crush was planned.
+	 */
+	private void verify(SourceFile source) throws IOException {
+		if (0 > source.length()) {
+			return;
 		}
+
+		long length = fs.getFileStatus(source.toPath()).getLen();
+
+		if (length != source.length()) {
+			throw new IOException(format("%s changed since it was listed: %d bytes listed, %d bytes now", source.path(),
+					source.length(), length));
+		}
+	}
+
+	/**
+	 * Returns the sink that writes the crush output file for the spec at the given index. The path is relative to the task attempt
+	 * work directory.
+	 */
+	private Sink createSink(int idx, String path) {
+		if (SequenceFileInputFormat.class.equals(inFormatClsList.get(idx)) && SequenceFileOutputFormat.class.equals(outFormatClsList.get(idx))) {
+			return new SequenceFileSink(outputConfList.get(idx), path);
+		}
+
+		/*
+		 * The record path splits each line on the first tab and the output format joins the key and value with its separator, which
+		 * gives back the original line only when the separator is a tab.
+		 */
+		if (KeyValuePreservingTextInputFormat.class.equals(inFormatClsList.get(idx)) && TextOutputFormat.class.equals(outFormatClsList.get(idx))
+				&& "\t".equals(job.get("mapred.textoutputformat.separator", "\t"))) {
+			return new TextSink(outputConfList.get(idx), path);
+		}
+
+		return new RecordSink(idx, path);
 	}
 
 	/**
 	 * Returns a record writer that creates files in the task attempt work directory. Path must be relative!
 	 */
 	@SuppressWarnings("unchecked")
-	private RecordWriter<Object, Object> createRecordWriter(int idx, String path) throws IOException {
+	private RecordWriter<Object, Object> createRecordWriter(int idx, JobConf conf, String path) throws IOException {
 		Class<? extends OutputFormat<?, ?>> cls = (Class<? extends OutputFormat<?, ?>>) outFormatClsList.get(idx);
 
 		try {
 			OutputFormat<Object, Object> format = (OutputFormat<Object, Object>) cls.newInstance();
 
-			return format.getRecordWriter(fs, job, path, null);
+			return format.getRecordWriter(fs, conf, path, null);
 		} catch (RuntimeException e) {
 			throw e;
 		} catch (IOException e) {
@@ -397,28 +754,40 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 	}
 
 	@SuppressWarnings("unchecked")
-	private RecordReader<Object, Object> createRecordReader(int idx, Path inputPath, Reporter reporter) throws IOException {
+	private RecordReader<Object, Object> createRecordReader(int idx, JobConf conf, Path inputPath, long length, Reporter reporter)
+			throws IOException {
 
 		LOG.info(format("Opening '%s'", inputPath));
 
 		Class<? extends FileInputFormat<?, ?>> cls = (Class<? extends FileInputFormat<?, ?>>) inFormatClsList.get(idx);
 
 		try {
-			FileInputFormat.setInputPaths(job, inputPath);
-
 			FileInputFormat<?, ?> instance = cls.newInstance();
 
 			if (instance instanceof JobConfigurable) {
-				((JobConfigurable) instance).configure(job);
+				((JobConfigurable) instance).configure(conf);
 			}
 
-			InputSplit[] splits = instance.getSplits(job, 1);
+			InputSplit split;
+
+			if (0 <= length) {
+				/*
+				 * The planner told us the length so there is no need to have the input format list the file to find it.
+				 */
+				split = new FileSplit(inputPath, 0, length, new String[0]);
+			} else {
+				FileInputFormat.setInputPaths(conf, inputPath);
+
+				InputSplit[] splits = instance.getSplits(conf, 1);
+
+				if (1 != splits.length) {
+					throw new IllegalArgumentException("Could not get input splits: " + inputPath);
+				}
 
-			if (1 != splits.length) {
-				throw new IllegalArgumentException("Could not get input splits: " + inputPath);
+				split = splits[0];
 			}
 
-			return (RecordReader<Object, Object>) instance.getRecordReader(splits[0], job, reporter);
+			return (RecordReader<Object, Object>) instance.getRecordReader(split, conf, reporter);
 		} catch (RuntimeException e) {
 			throw e;
 		} catch (IOException e) {
@@ -516,5 +885,776 @@ public class CrushReducer extends MapReduceBase implements Reducer<Text, Text, T
 		return new ArrayList<Class<?>>(outFormatClsList);
 	}
 
+	/**
+	 * Appends the contents of source files to a single crush output file.
+	 */
+	private interface Sink {
+		/**
+		 * Appends all the records in the file to the crush output file. The length is -1 if it is not known.
+		 */
+		void append(Path inputPath, long length, Reporter reporter) throws IOException;
+
+		void close(Reporter reporter) throws IOException;
+	}
+
+	/**
+	 * Copies records by deserializing them with the input format and serializing them with the output format. Works with any
+	 * combination of formats.
+	 */
+	private class RecordSink implements Sink {
+
+		private final int idx;
+
+		private final String path;
+
+		/**
+		 * A copy of the output conf of the spec because the output key and value classes are set in it and other buckets may be crushed
+		 * concurrently.
+		 */
+		private final JobConf conf;
+
+		private RecordWriter<Object, Object> writer;
+
+		private Object key;
+
+		private Object value;
+
+		public RecordSink(int idx, String path) {
+			super();
+
+			this.idx = idx;
+			this.path = path;
+
+			conf = new JobConf(outputConfList.get(idx));
+		}
+
+		@Override
+		public void append(Path inputPath, long length, Reporter reporter) throws IOException {
+			RecordReader<Object, Object> reader = createRecordReader(idx, conf, inputPath, length, reporter);
+			Exception rootCause = null;
+
+			try {
+				if (null == key) {
+					key = reader.createKey();
+					value = reader.createValue();
+
+					/*
+					 * Set the key and value class in the conf, which the output format uses to get type information.
+					 */
+					conf.setOutputKeyClass(key.getClass());
+					conf.setOutputValueClass(value.getClass());
+
+					writer = createRecordWriter(idx, conf, path);
+				} else {
+					checkClasses(inputPath, key.getClass(), reader.createKey().getClass(), value.getClass(), reader.createValue().getClass());
+				}
+
+				while (reader.next(key, value)) {
+					writer.write(key, value);
+					reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+				}
+			} catch (Exception e) {
+				rootCause = e;
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception e) {
+					if (null == rootCause) {
+						rootCause = e;
+					} else {
+						LOG.debug("Swallowing exception on close of " + inputPath, e);
+					}
+				}
+			}
+
+			rethrow(rootCause);
+		}
+
+		@Override
+		public void close(Reporter reporter) throws IOException {
+			if (null != writer) {
+				writer.close(reporter);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Concatenates text files byte for byte instead of splitting them into lines and joining them again. Source files are
+	 * decompressed with the codec that matches their extension, just like {@link TextInputFormat} does, and the output file is
+	 * compressed with the same settings as {@link TextOutputFormat}. A newline is appended to a source file that does not end with
+	 * one so that its last line is not joined with the first line of the next file.
+	 * </p>
+	 *
+	 * <p>
+	 * Gzip and bzip2 streams may consist of several concatenated members. When {@link #CONCAT_COMPRESSED} is true and a source file
+	 * is compressed with the same one of these codecs as the output, it is copied into the output file as one or more members without
+	 * being decompressed. This is off by default because not every reader handles streams of many members (the native gzip
+	 * decompressor stops after the first one) and because the copied file is assumed to end with a newline, which it does when it was
+	 * written by {@link TextOutputFormat}. Records in copied members are not counted.
+	 * </p>
+	 */
+	private class TextSink implements Sink {
+
+		private final String path;
+
+		private final CompressionCodecFactory codecs = new CompressionCodecFactory(job);
+
+		/**
+		 * The output codec or null if the output is not compressed.
+		 */
+		private CompressionCodec codec;
+
+		private final boolean concatCompressed;
+
+		/**
+		 * The file in the task attempt work directory.
+		 */
+		private FSDataOutputStream fileOut;
+
+		/**
+		 * Compresses into {@link #fileOut}. Null if the output is not compressed or if the last source file was copied as a member
+		 * of its own, in which case a new member is started before the next decompressed bytes are written.
+		 */
+		private CompressionOutputStream compressedOut;
+
+		private final byte[] buffer = new byte[64 * 1024];
+
+		/**
+		 * @param outputConf
+		 *          The output compression settings.
+		 */
+		public TextSink(JobConf outputConf, String path) {
+			super();
+
+			this.path = path;
+
+			if (FileOutputFormat.getCompressOutput(outputConf)) {
+				codec = ReflectionUtils.newInstance(FileOutputFormat.getOutputCompressorClass(outputConf, GzipCodec.class), job);
+			}
+
+			concatCompressed = null != codec && (codec instanceof GzipCodec || codec instanceof BZip2Codec)
+					&& job.getBoolean(CONCAT_COMPRESSED, false);
+		}
+
+		@Override
+		public void append(Path inputPath, long length, Reporter reporter) throws IOException {
+			LOG.info(format("Opening '%s'", inputPath));
+
+			if (null == fileOut) {
+				createOutput(reporter);
+			}
+
+			CompressionCodec inCodec = codecs.getCodec(inputPath);
+
+			if (concatCompressed && null != inCodec && inCodec.getClass().equals(codec.getClass())) {
+				if (null != compressedOut) {
+					compressedOut.finish();
+					compressedOut = null;
+				}
+
+				copy(prefetcher.open(inputPath), fileOut, inputPath, false);
+
+				return;
+			}
+
+			/*
+			 * Not all compression streams can be reset after they have been finished so start a new one.
+			 */
+			if (null != codec && null == compressedOut) {
+				compressedOut = codec.createOutputStream(fileOut);
+			}
+
+			InputStream in = prefetcher.open(inputPath);
+
+			if (null != inCodec) {
+				in = inCodec.createInputStream(in);
+			}
+
+			long records = copy(in, null == compressedOut ? fileOut : compressedOut, inputPath, true);
+
+			reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, records);
+		}
+
+		/**
+		 * Copies the stream to the output and closes it. If the stream holds text, returns the number of lines copied and adds a
+		 * newline to a last line that does not have one.
+		 */
+		private long copy(InputStream in, OutputStream out, Path inputPath, boolean text) throws IOException {
+			long lines = 0;
+			byte last = '\n';
+			Exception rootCause = null;
+
+			try {
+				int n;
+
+				while (-1 != (n = in.read(buffer))) {
+					if (0 == n) {
+						continue;
+					}
+
+					out.write(buffer, 0, n);
+
+					if (text) {
+						for (int i = 0; i < n; i++) {
+							if ('\n' == buffer[i]) {
+								lines++;
+							}
+						}
+					}
+
+					last = buffer[n - 1];
+				}
+
+				if (text && '\n' != last) {
+					out.write('\n');
+
+					lines++;
+				}
+			} catch (Exception e) {
+				rootCause = e;
+			} finally {
+				try {
+					in.close();
+				} catch (Exception e) {
+					if (null == rootCause) {
+						rootCause = e;
+					} else {
+						LOG.debug("Swallowing exception on close of " + inputPath, e);
+					}
+				}
+			}
+
+			rethrow(rootCause);
+
+			return lines;
+		}
+
+		/**
+		 * Creates the file in the task attempt work directory with the same name as {@link TextOutputFormat} would.
+		 */
+		private void createOutput(Reporter reporter) throws IOException {
+			Path file = FileOutputFormat.getTaskOutputPath(job, null == codec ? path : path + codec.getDefaultExtension());
+
+			fileOut = file.getFileSystem(job).create(file, reporter);
+		}
+
+		@Override
+		public void close(Reporter reporter) throws IOException {
+			if (null != fileOut) {
+				try {
+					if (null != compressedOut) {
+						compressedOut.finish();
+					}
+				} finally {
+					fileOut.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Copies records between sequence files without instantiating the keys and values. Serialized keys and values are moved with
+	 * {@link SequenceFile.Reader#nextRaw(DataOutputBuffer, ValueBytes)} and
+	 * {@link SequenceFile.Writer#appendRaw(byte[], int, int, ValueBytes)}. A source file whose compressed values cannot be handed to the
+	 * writer as they are, which only happens when the output is record compressed with a different codec, is copied record by record
+	 * instead.
+	 * </p>
+	 *
+	 * <p>
+	 * When the output is block compressed, a source file that is block compressed with the same codec is not decompressed at all.
+	 * Its blocks are copied verbatim into the output file with the sync marker of the source replaced by the sync marker of the output.
+	 * Records buffered by the writer are flushed into a block of their own first so that the order of the records is preserved.
+	 * </p>
+	 */
+	private class SequenceFileSink implements Sink {
+
+		private final String path;
+
+		private SequenceFile.Writer writer;
+
+		/**
+		 * The stream under {@link #writer}. Blocks copied verbatim are written directly to it.
+		 */
+		private FSDataOutputStream out;
+
+		/**
+		 * The sync marker written in the header of the crush output file.
+		 */
+		private byte[] sync;
+
+		private final CompressionType compressionType;
+
+		private CompressionCodec codec;
+
+		private final DataOutputBuffer rawKey = new DataOutputBuffer();
+
+		private final byte[] buffer = new byte[64 * 1024];
+
+		private Object key;
+
+		private Object value;
+
+		/**
+		 * @param outputConf
+		 *          The output compression settings.
+		 */
+		public SequenceFileSink(JobConf outputConf, String path) {
+			super();
+
+			this.path = path;
+
+			/*
+			 * Same compression settings as SequenceFileOutputFormat.
+			 */
+			if (FileOutputFormat.getCompressOutput(outputConf)) {
+				compressionType = SequenceFileOutputFormat.getOutputCompressionType(outputConf);
+				codec = ReflectionUtils.newInstance(FileOutputFormat.getOutputCompressorClass(outputConf, DefaultCodec.class), job);
+			} else {
+				compressionType = CompressionType.NONE;
+			}
+		}
+
+		@Override
+		public void append(Path inputPath, long length, Reporter reporter) throws IOException {
+			LOG.info(format("Opening '%s'", inputPath));
+
+			if (CompressionType.BLOCK == compressionType && appendBlocks(inputPath, reporter)) {
+				return;
+			}
+
+			SequenceFile.Reader reader = new PrefetchingReader(inputPath, length);
+			Exception rootCause = null;
+
+			try {
+				if (null == writer) {
+					createWriter(reader.getKeyClass(), reader.getValueClass(), reporter);
+				} else {
+					checkClasses(inputPath, writer.getKeyClass(), reader.getKeyClass(), writer.getValueClass(), reader.getValueClass());
+				}
+
+				if (isRawCompatible(reader)) {
+					ValueBytes rawValue = reader.createValueBytes();
+
+					rawKey.reset();
+
+					while (-1 != reader.nextRaw(rawKey, rawValue)) {
+						writer.appendRaw(rawKey.getData(), 0, rawKey.getLength(), rawValue);
+						reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+
+						rawKey.reset();
+					}
+				} else {
+					if (null == key) {
+						key = ReflectionUtils.newInstance(writer.getKeyClass(), job);
+						value = ReflectionUtils.newInstance(writer.getValueClass(), job);
+					}
+
+					Object next;
+
+					while (null != (next = reader.next(key))) {
+						key = next;
+						value = reader.getCurrentValue(value);
+
+						writer.append(key, value);
+						reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+					}
+				}
+			} catch (Exception e) {
+				rootCause = e;
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception e) {
+					if (null == rootCause) {
+						rootCause = e;
+					} else {
+						LOG.debug("Swallowing exception on close of " + inputPath, e);
+					}
+				}
+			}
+
+			rethrow(rootCause);
+		}
+
+		/**
+		 * Copies the blocks of the source file verbatim if it is block compressed with the codec of the output file. Returns false
+		 * without writing anything if it is not.
+		 */
+		private boolean appendBlocks(Path inputPath, Reporter reporter) throws IOException {
+			FSDataInputStream in = prefetcher.open(inputPath);
+			Exception rootCause = null;
+
+			try {
+				/*
+				 * Read the header. Only the current version of the format is handled here. Everything else goes through the reader.
+				 */
+				byte[] version = new byte[SEQUENCE_FILE_VERSION.length];
+				in.readFully(version);
+
+				if (!Arrays.equals(SEQUENCE_FILE_VERSION, version)) {
+					return false;
+				}
+
+				Class<?> keyClass = WritableName.getClass(Text.readString(in), job);
+				Class<?> valueClass = WritableName.getClass(Text.readString(in), job);
+
+				boolean compressed = in.readBoolean();
+				boolean blockCompressed = in.readBoolean();
+
+				if (!compressed || !blockCompressed) {
+					return false;
+				}
+
+				String codecClassName = Text.readString(in);
+
+				new Metadata().readFields(in);
+
+				byte[] inSync = new byte[SYNC_HASH_SIZE];
+				in.readFully(inSync);
+
+				if (null == writer) {
+					createWriter(keyClass, valueClass, reporter);
+				} else {
+					checkClasses(inputPath, writer.getKeyClass(), keyClass, writer.getValueClass(), valueClass);
+				}
+
+				if (!codec.getClass().getName().equals(codecClassName)) {
+					return false;
+				}
+
+				/*
+				 * Flush the records buffered by the writer so they come before the blocks we are about to copy.
+				 */
+				writer.sync();
+
+				byte[] syncCheck = new byte[SYNC_HASH_SIZE];
+
+				/*
+				 * Every block starts with a sync marker.
+				 */
+				for (int escape = in.read(); -1 != escape; escape = in.read()) {
+					if (SYNC_ESCAPE != ((escape << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte())) {
+						throw new IOException(format("No sync marker before block at %d in %s", in.getPos() - 4, inputPath));
+					}
+
+					in.readFully(syncCheck);
+
+					if (!Arrays.equals(inSync, syncCheck)) {
+						throw new IOException(format("Bad sync marker before block at %d in %s", in.getPos() - SYNC_HASH_SIZE - 4, inputPath));
+					}
+
+					int numRecords = WritableUtils.readVInt(in);
+
+					out.writeInt(SYNC_ESCAPE);
+					out.write(sync);
+					WritableUtils.writeVInt(out, numRecords);
+
+					/*
+					 * Key lengths, keys, value lengths and values.
+					 */
+					for (int i = 0; i < 4; i++) {
+						int remaining = WritableUtils.readVInt(in);
+
+						WritableUtils.writeVInt(out, remaining);
+
+						while (remaining > 0) {
+							int n = Math.min(remaining, buffer.length);
+
+							in.readFully(buffer, 0, n);
+							out.write(buffer, 0, n);
+
+							remaining -= n;
+						}
+					}
+
+					reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, numRecords);
+				}
+
+				return true;
+			} catch (Exception e) {
+				rootCause = e;
+			} finally {
+				try {
+					in.close();
+				} catch (Exception e) {
+					if (null == rootCause) {
+						rootCause = e;
+					} else {
+						LOG.debug("Swallowing exception on close of " + inputPath, e);
+					}
+				}
+			}
+
+			rethrow(rootCause);
+
+			return false;
+		}
+
+		/**
+		 * Returns true if the raw values returned by the reader can be appended to the writer. Uncompressed and block compressed writers
+		 * accept any raw value because they take the uncompressed bytes. A record compressed writer takes the compressed bytes as they
+		 * are so they must have been compressed by the same codec.
+		 */
+		private boolean isRawCompatible(SequenceFile.Reader reader) {
+			if (CompressionType.RECORD != compressionType) {
+				return true;
+			}
+
+			return reader.isCompressed() && !reader.isBlockCompressed() && reader.getCompressionCodec().getClass().equals(codec.getClass());
+		}
+
+		/**
+		 * Creates the writer in the task attempt work directory.
+		 */
+		private void createWriter(Class<?> keyClass, Class<?> valueClass, Reporter reporter) throws IOException {
+			Path file = FileOutputFormat.getTaskOutputPath(job, path);
+
+			/*
+			 * We keep the stream so that blocks can be copied into it. The header ends with the sync marker so that is what is left in
+			 * the tail once the writer has been created.
+			 */
+			TailOutputStream tail = new TailOutputStream(file.getFileSystem(job).create(file, reporter), SYNC_HASH_SIZE);
+
+			out = new FSDataOutputStream(tail, null);
+
+			writer = SequenceFile.createWriter(job, out, keyClass, valueClass, compressionType, codec, new Metadata());
+
+			sync = tail.tail();
+		}
+
+		@Override
+		public void close(Reporter reporter) throws IOException {
+			if (null != writer) {
+				/*
+				 * The writer does not close streams it did not open.
+				 */
+				try {
+					writer.close();
+				} finally {
+					out.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a sequence file with a stream from {@link #prefetcher}. If the length of the file is known then the reader does not ask
+	 * the name node for it.
+	 */
+	private class PrefetchingReader extends SequenceFile.Reader {
+
+		public PrefetchingReader(Path file, long length) throws IOException {
+			super(0 > length ? fs : new KnownLengthFileSystem(fs, length), file, job);
+		}
+
+		@Override
+		protected FSDataInputStream openFile(FileSystem fs, Path file, int bufferSize, long length) throws IOException {
+			return prefetcher.open(file);
+		}
+	}
+
+	/**
+	 * Serializes the calls that the threads make to the reporter of the framework.
+	 */
+	private static class SynchronizedReporter implements Reporter {
+
+		private final Reporter reporter;
+
+		public SynchronizedReporter(Reporter reporter) {
+			super();
+
+			this.reporter = reporter;
+		}
+
+		@Override
+		public synchronized void progress() {
+			reporter.progress();
+		}
+
+		@Override
+		public synchronized void setStatus(String status) {
+			reporter.setStatus(status);
+		}
+
+		@Override
+		public synchronized Counter getCounter(Enum<?> name) {
+			return reporter.getCounter(name);
+		}
+
+		@Override
+		public synchronized Counter getCounter(String group, String name) {
+			return reporter.getCounter(group, name);
+		}
+
+		@Override
+		public synchronized void incrCounter(Enum<?> key, long amount) {
+			reporter.incrCounter(key, amount);
+		}
+
+		@Override
+		public synchronized void incrCounter(String group, String counter, long amount) {
+			reporter.incrCounter(group, counter, amount);
+		}
+
+		@Override
+		public synchronized InputSplit getInputSplit() {
+			return reporter.getInputSplit();
+		}
+	}
+
+	/**
+	 * Reports a known length for any file. {@link SequenceFile.Reader} only uses its file system to get the length of the file and to
+	 * open it, and {@link PrefetchingReader} opens the file itself.
+	 */
+	private static class KnownLengthFileSystem extends FilterFileSystem {
+
+		private final long length;
+
+		public KnownLengthFileSystem(FileSystem fs, long length) {
+			super(fs);
+
+			this.length = length;
+		}
+
+		@Override
+		public long getLength(Path f) {
+			return length;
+		}
+	}
+
+	/**
+	 * Remembers the last bytes written to the stream.
+	 */
+	private static class TailOutputStream extends FilterOutputStream {
+
+		private final byte[] tail;
+
+		/**
+		 * The total number of bytes written.
+		 */
+		private long count;
+
+		public TailOutputStream(OutputStream out, int tailSize) {
+			super(out);
+
+			tail = new byte[tailSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+
+			tail[(int) (count++ % tail.length)] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+
+			/*
+			 * Only the bytes that can end up in the tail need to be remembered.
+			 */
+			int skip = Math.max(0, len - tail.length);
+
+			count += skip;
+
+			for (int i = off + skip; i < off + len; i++) {
+				tail[(int) (count++ % tail.length)] = b[i];
+			}
+		}
+
+		/**
+		 * Returns the last bytes written, oldest first.
+		 */
+		public byte[] tail() {
+			if (count < tail.length) {
+				throw new IllegalStateException("Fewer than " + tail.length + " bytes have been written");
+			}
+
+			byte[] copy = new byte[tail.length];
+
+			for (int i = 0; i < tail.length; i++) {
+				copy[i] = tail[(int) ((count + i) % tail.length)];
+			}
+
+			return copy;
+		}
+	}
+
+	/**
+	 * Throws an exception if the key or value class of a source file differs from those of the crush output file.
+	 */
+	private static void checkClasses(Path inputPath, Class<?> keyClass, Class<?> otherKeyClass, Class<?> valueClass, Class<?> otherValueClass) {
+		if (!keyClass.equals(otherKeyClass)) {
+			throw new IllegalArgumentException(format("Heterogeneous keys detected in %s: %s !- %s", inputPath, keyClass, otherKeyClass));
+		}
+
+		if (!valueClass.equals(otherValueClass)) {
+			throw new IllegalArgumentException(format("Heterogeneous values detected in %s: %s !- %s", inputPath, valueClass, otherValueClass));
+		}
+	}
+
+	/**
+	 * Lets the exception bubble up with a minimum of wrapping. Does nothing if the argument is null.
+	 */
+	private static void rethrow(Exception rootCause) throws IOException {
+		if (null == rootCause) {
+			return;
+		}
+
+		if (rootCause instanceof RuntimeException) {
+			throw (RuntimeException) rootCause;
+		}
+
+		if (rootCause instanceof IOException) {
+			throw (IOException) rootCause;
+		}
+
+		throw new RuntimeException(rootCause);
+	}
+
+	/**
+	 * Set to true to copy gzip and bzip2 text files into output files compressed with the same codec without decompressing them.
+	 */
+	public static final String CONCAT_COMPRESSED = "crush.text.concat.compressed";
+
+	/**
+	 * The number of buckets a task crushes concurrently, each into its own output file. Defaults to 1. Each thread prefetches its own
+	 * files, so a task buffers up to {@link #PREFETCH_FILES} times this many times 64 KB, which must not exceed a quarter of its heap.
+	 */
+	public static final String THREADS = "crush.reducer.threads";
+
+	/**
+	 * Set to true to check the length of each source file against the planned length before crushing it, for plans made from a listing
+	 * that may be out of date. Defaults to false.
+	 */
+	public static final String VERIFY_SOURCES = "crush.verify.sources";
+
+	/**
+	 * The number of source files to open ahead of the one being copied. Defaults to 4. Zero disables prefetching. Files copied record
+	 * by record through an input format are never prefetched. Up to 64 KB of each prefetched file is held in memory, or less for a
+	 * shorter file. See {@link #THREADS} for the limit on the total.
+	 */
+	public static final String PREFETCH_FILES = "crush.prefetch.files";
+
+	/**
+	 * The number of bytes read from each prefetched file. Files no longer than this are held in memory until they are copied.
+	 */
+	private static final int PREFETCH_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The first bytes of a sequence file written by {@link SequenceFile.Writer}.
+	 */
+	private static final byte[] SEQUENCE_FILE_VERSION = new byte[] { 'S', 'E', 'Q', 6 };
+
+	/**
+	 * Precedes a sync marker in a sequence file.
+	 */
+	private static final int SYNC_ESCAPE = -1;
+
+	private static final int SYNC_HASH_SIZE = 16;
+
 	private static final Log LOG = LogFactory.getLog(CrushReducer.class);
 }
@@ -0,0 +1,282 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.Reader;
+import org.apache.hadoop.io.SequenceFile.Writer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * <p>
+ * Summarizes the state of a directory when it was last crushed: its modification time, the number and total size of the files it
+ * contains directly, and the names of the directories it contains directly. Ignored files are included.
+ * </p>
+ *
+ * <p>
+ * The modification time of a directory changes when entries are added, removed or renamed but not when a file is appended to. By
+ * default a directory whose modification time is the same as before is trusted to be unchanged, which is decided from the listing
+ * of its parent without a call to the name node. Its sub directories are the ones in the fingerprint, so they can be visited
+ * without listing it. Verification also catches appends by comparing the number of files and bytes of a directory without sub
+ * directories with its {@link ContentSummary}, one call to the name node per directory, and by listing every directory with sub
+ * directories.
+ * </p>
+ */
+class DirectoryFingerprint implements Writable {
+
+	private long modificationTime;
+
+	private long fileCount;
+
+	private long length;
+
+	/**
+	 * The names of the sub directories, sorted.
+	 */
+	private String[] subDirectories;
+
+	public DirectoryFingerprint() {
+		super();
+	}
+
+	public DirectoryFingerprint(long modificationTime, long fileCount, long length, String... subDirectories) {
+		super();
+
+		this.modificationTime = modificationTime;
+		this.fileCount = fileCount;
+		this.length = length;
+		this.subDirectories = subDirectories;
+
+		Arrays.sort(subDirectories);
+	}
+
+	/**
+	 * Creates the fingerprint of a directory from its status and its complete, unfiltered contents.
+	 */
+	public static DirectoryFingerprint of(FileStatus dir, FileStatus[] contents) {
+		long fileCount = 0;
+		long length = 0;
+
+		List<String> subDirectories = new ArrayList<String>();
+
+		for (FileStatus content : contents) {
+			if (content.isDir()) {
+				subDirectories.add(content.getPath().getName());
+			} else {
+				fileCount++;
+				length += content.getLen();
+			}
+		}
+
+		return new DirectoryFingerprint(dir.getModificationTime(), fileCount, length, subDirectories.toArray(
+				new String[subDirectories.size()]));
+	}
+
+	/**
+	 * Returns true if the directory has no sub directories, in which case its content summary covers exactly the files in the
+	 * fingerprint.
+	 */
+	public boolean isLeaf() {
+		return 0 == subDirectories.length;
+	}
+
+	/**
+	 * <p>
+	 * Returns true if the directory does not need to be listed. The modification time in its status must match this fingerprint.
+	 * </p>
+	 *
+	 * <p>
+	 * Without verification nothing else is checked for a directory without sub directories. A directory with sub directories matches
+	 * only if it has more files than sub directories, since its sub directories are then looked up one by one by
+	 * {@link #subDirectories(FileSystem, FileStatus)}, which is cheaper than listing its files. With verification, a directory
+	 * without sub directories must also match its content summary and a directory with sub directories never matches.
+	 * </p>
+	 */
+	public boolean matches(FileSystem fs, FileStatus dir, boolean verify) throws IOException {
+		if (modificationTime != dir.getModificationTime()) {
+			return false;
+		}
+
+		if (!isLeaf()) {
+			return !verify && subDirectories.length < fileCount;
+		}
+
+		if (!verify) {
+			return true;
+		}
+
+		ContentSummary summary = fs.getContentSummary(dir.getPath());
+
+		/*
+		 * The summary counts the directory itself.
+		 */
+		return 1 == summary.getDirectoryCount() && fileCount == summary.getFileCount() && length == summary.getLength();
+	}
+
+	/**
+	 * Returns the statuses of the sub directories of a directory that matches this fingerprint, with one call to the name node per sub
+	 * directory.
+	 */
+	public FileStatus[] subDirectories(FileSystem fs, FileStatus dir) throws IOException {
+		FileStatus[] statuses = new FileStatus[subDirectories.length];
+
+		for (int i = 0; i < subDirectories.length; i++) {
+			statuses[i] = fs.getFileStatus(new Path(dir.getPath(), subDirectories[i]));
+		}
+
+		return statuses;
+	}
+
+	/**
+	 * Fingerprints a leaf directory with two calls to the name node instead of listing it. Returns null if the directory has sub
+	 * directories by now, since their names are not in the summary.
+	 */
+	public static DirectoryFingerprint summarize(FileSystem fs, Path dir) throws IOException {
+		FileStatus status = fs.getFileStatus(dir);
+		ContentSummary summary = fs.getContentSummary(dir);
+
+		if (1 != summary.getDirectoryCount()) {
+			return null;
+		}
+
+		return new DirectoryFingerprint(status.getModificationTime(), summary.getFileCount(), summary.getLength());
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(modificationTime);
+		out.writeLong(fileCount);
+		out.writeLong(length);
+		out.writeInt(subDirectories.length);
+
+		for (String subDirectory : subDirectories) {
+			Text.writeString(out, subDirectory);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		modificationTime = in.readLong();
+		fileCount = in.readLong();
+		length = in.readLong();
+		subDirectories = new String[in.readInt()];
+
+		for (int i = 0; i < subDirectories.length; i++) {
+			subDirectories[i] = Text.readString(in);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof DirectoryFingerprint)) {
+			return false;
+		}
+
+		DirectoryFingerprint other = (DirectoryFingerprint) obj;
+
+		return modificationTime == other.modificationTime && fileCount == other.fileCount && length == other.length
+				&& Arrays.equals(subDirectories, other.subDirectories);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (modificationTime ^ (modificationTime >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return format("%s[%d, %d, %d, %s]", getClass().getSimpleName(), modificationTime, fileCount, length, Arrays.toString(
+				subDirectories));
+	}
+
+	/**
+	 * Reads a state file written by {@link #write(Configuration, Path, Map)}. Returns an empty map if the file does not exist.
+	 */
+	public static Map<String, DirectoryFingerprint> read(Configuration conf, Path stateFile) throws IOException {
+		Map<String, DirectoryFingerprint> state = new HashMap<String, DirectoryFingerprint>();
+
+		FileSystem fs = stateFile.getFileSystem(conf);
+
+		if (!fs.exists(stateFile)) {
+			return state;
+		}
+
+		Reader reader = new Reader(fs, stateFile, conf);
+
+		try {
+			Text dir = new Text();
+			DirectoryFingerprint fingerprint = new DirectoryFingerprint();
+
+			while (reader.next(dir, fingerprint)) {
+				state.put(dir.toString(), fingerprint);
+
+				fingerprint = new DirectoryFingerprint();
+			}
+		} finally {
+			reader.close();
+		}
+
+		return state;
+	}
+
+	/**
+	 * Replaces the state file. The new state is written next to the old one and then renamed over it so that a failure leaves the old
+	 * state in place.
+	 */
+	public static void write(Configuration conf, Path stateFile, Map<String, DirectoryFingerprint> state) throws IOException {
+		FileSystem fs = stateFile.getFileSystem(conf);
+
+		Path tmp = stateFile.suffix(".tmp");
+
+		Writer writer = SequenceFile.createWriter(fs, conf, tmp, Text.class, DirectoryFingerprint.class);
+
+		try {
+			Text dir = new Text();
+
+			for (Entry<String, DirectoryFingerprint> entry : state.entrySet()) {
+				dir.set(entry.getKey());
+
+				writer.append(dir, entry.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+
+		fs.delete(stateFile, false);
+
+		if (!fs.rename(tmp, stateFile)) {
+			throw new IOException(format("Could not rename %s to %s", tmp, stateFile));
+		}
+	}
+}
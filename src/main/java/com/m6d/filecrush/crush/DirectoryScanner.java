@@ -0,0 +1,403 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.util.Arrays.asList;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * <p>
+ * Lists a directory tree breadth first using a pool of threads. Callers must interact with this class in the following order:
+ * </p>
+ * <ol>
+ * <li>Invoke {@link #add(FileStatus)} with the root of the tree.</li>
+ * <li>Invoke {@link #next()} until it returns null.</li>
+ * <li>Invoke {@link #close()}.</li>
+ * </ol>
+ *
+ * <p>
+ * Listings are returned in exactly the order a single threaded breadth first walk would visit the directories and the contents of
+ * each listing are sorted by path, so callers see the same sequence regardless of the number of threads. At most
+ * {@link #numThreads} directories are listed concurrently and at most twice that many completed listings are held in memory
+ * waiting for the caller.
+ * </p>
+ *
+ * <p>
+ * An optional {@link Filter} decides which directories need to be listed at all. Directories it rejects are still returned, in
+ * order, as {@link Listing#skipped() skipped} listings without contents. Only the sub directories that the filter names for them
+ * are visited.
+ * </p>
+ *
+ * <p>
+ * The listing threads can also fetch the block locations of small files so that the hosts that store them are known without
+ * another round of requests, and fingerprint the directories they list for an incremental crush.
+ * </p>
+ */
+class DirectoryScanner {
+
+	private final FileSystem fs;
+
+	/**
+	 * Files and directories whose paths match this pattern are left out of the listings. May be null.
+	 */
+	private final Pattern ignoredFiles;
+
+	/**
+	 * Decides which directories are listed. May be null.
+	 */
+	private final Filter filter;
+
+	/**
+	 * Files no longer than this get their block locations fetched. Negative to fetch none.
+	 */
+	private final long maxLocatedLength;
+
+	/**
+	 * True if each listed directory gets a {@link DirectoryFingerprint}.
+	 */
+	private final boolean fingerprints;
+
+	private final int numThreads;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Directories that have been discovered but not yet submitted for listing, in breadth first order.
+	 */
+	private final LinkedList<FileStatus> pending = new LinkedList<FileStatus>();
+
+	/**
+	 * Listings that have been submitted, in breadth first order.
+	 */
+	private final LinkedList<Future<Listing>> inFlight = new LinkedList<Future<Listing>>();
+
+	public DirectoryScanner(FileSystem fs, Pattern ignoredFiles, int numThreads) {
+		this(fs, ignoredFiles, null, -1, false, numThreads);
+	}
+
+	public DirectoryScanner(FileSystem fs, Pattern ignoredFiles, Filter filter, long maxLocatedLength, boolean fingerprints,
+			int numThreads) {
+		super();
+
+		if (1 > numThreads) {
+			throw new IllegalArgumentException("Must have at least one thread: " + numThreads);
+		}
+
+		this.fs = fs;
+		this.ignoredFiles = ignoredFiles;
+		this.filter = filter;
+		this.maxLocatedLength = maxLocatedLength;
+		this.fingerprints = fingerprints;
+		this.numThreads = numThreads;
+
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "crush-scanner-" + count.getAndIncrement());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues a directory for listing.
+	 */
+	public void add(FileStatus dir) {
+		pending.add(dir);
+
+		submit();
+	}
+
+	/**
+	 * Returns the next listing in breadth first order or null if the whole tree has been listed. Sub directories found in the returned
+	 * listing are queued for listing before this method returns.
+	 */
+	public Listing next() throws IOException {
+		if (inFlight.isEmpty()) {
+			return null;
+		}
+
+		Listing listing;
+
+		try {
+			listing = inFlight.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw (IOException) new InterruptedIOException("Interrupted while listing directories").initCause(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new RuntimeException(cause);
+		}
+
+		if (null != listing.contents) {
+			for (FileStatus content : listing.contents) {
+				if (content.isDir()) {
+					pending.add(content);
+				}
+			}
+		}
+
+		if (null != listing.subDirectories) {
+			pending.addAll(asList(listing.subDirectories));
+		}
+
+		submit();
+
+		return listing;
+	}
+
+	/**
+	 * Stops the threads. Listings that are still in flight are abandoned.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Keeps the pool busy while bounding the number of completed listings that wait for the caller.
+	 */
+	private void submit() {
+		while (!pending.isEmpty() && inFlight.size() < 2 * numThreads) {
+			inFlight.add(executor.submit(new Lister(pending.removeFirst())));
+		}
+	}
+
+	private class Lister implements Callable<Listing> {
+
+		private final FileStatus dir;
+
+		public Lister(FileStatus dir) {
+			super();
+
+			this.dir = dir;
+		}
+
+		@Override
+		public Listing call() throws IOException {
+			if (null != filter && !filter.accept(dir)) {
+				FileStatus[] subDirectories = filter.subDirectories(dir);
+
+				if (null != subDirectories) {
+					subDirectories = ignore(subDirectories);
+
+					Arrays.sort(subDirectories);
+				}
+
+				return new Listing(dir, null, null, null, true, subDirectories);
+			}
+
+			FileStatus[] contents = fs.listStatus(dir.getPath());
+
+			if (null == contents) {
+				return new Listing(dir, null, null, null, false, null);
+			}
+
+			/*
+			 * The fingerprint covers the ignored files as well so that it can be compared with a content summary.
+			 */
+			DirectoryFingerprint fingerprint = fingerprints ? DirectoryFingerprint.of(dir, contents) : null;
+
+			contents = ignore(contents);
+
+			/*
+			 * Not all file systems return listings in a predictable order. Sort them so that bucketing does not depend on it.
+			 */
+			Arrays.sort(contents);
+
+			String[][] hosts = null;
+
+			if (0 <= maxLocatedLength) {
+				hosts = new String[contents.length][];
+
+				for (int i = 0; i < contents.length; i++) {
+					FileStatus content = contents[i];
+
+					if (!content.isDir() && 0 < content.getLen() && content.getLen() <= maxLocatedLength) {
+						hosts[i] = locate(content);
+					}
+				}
+			}
+
+			return new Listing(dir, contents, fingerprint, hosts, false, null);
+		}
+
+		/**
+		 * Leaves out the entries whose paths match {@link #ignoredFiles}.
+		 */
+		private FileStatus[] ignore(FileStatus[] contents) {
+			if (null == ignoredFiles) {
+				return contents;
+			}
+
+			/*
+			 * Matchers are not thread safe so each listing gets its own.
+			 */
+			Matcher matcher = ignoredFiles.matcher("");
+
+			List<FileStatus> accepted = new ArrayList<FileStatus>(contents.length);
+
+			for (FileStatus content : contents) {
+				matcher.reset(content.getPath().toUri().getPath());
+
+				if (!matcher.matches()) {
+					accepted.add(content);
+				}
+			}
+
+			return accepted.toArray(new FileStatus[accepted.size()]);
+		}
+
+		/**
+		 * Returns the hosts that store at least one block of the file, in the order in which they are first reported.
+		 */
+		private String[] locate(FileStatus file) throws IOException {
+			Set<String> hosts = new LinkedHashSet<String>();
+
+			BlockLocation[] locations = fs.getFileBlockLocations(file, 0, file.getLen());
+
+			if (null != locations) {
+				for (BlockLocation location : locations) {
+					hosts.addAll(asList(location.getHosts()));
+				}
+			}
+
+			return hosts.toArray(new String[hosts.size()]);
+		}
+	}
+
+	/**
+	 * Decides whether a directory needs to be listed. Invoked concurrently by the listing threads.
+	 */
+	interface Filter {
+		/**
+		 * Returns false if the directory does not need to be listed.
+		 */
+		boolean accept(FileStatus dir) throws IOException;
+
+		/**
+		 * Returns the sub directories to visit below a directory that was not listed or null to visit none.
+		 */
+		FileStatus[] subDirectories(FileStatus dir) throws IOException;
+	}
+
+	static class Listing {
+
+		private final FileStatus dir;
+
+		private final FileStatus[] contents;
+
+		private final DirectoryFingerprint fingerprint;
+
+		private final String[][] hosts;
+
+		private final boolean skipped;
+
+		/**
+		 * The sub directories to visit below a skipped directory. May be null.
+		 */
+		private final FileStatus[] subDirectories;
+
+		public Listing(FileStatus dir, FileStatus[] contents, DirectoryFingerprint fingerprint, String[][] hosts, boolean skipped,
+				FileStatus[] subDirectories) {
+			super();
+
+			this.dir = dir;
+			this.contents = contents;
+			this.fingerprint = fingerprint;
+			this.hosts = hosts;
+			this.skipped = skipped;
+			this.subDirectories = subDirectories;
+		}
+
+		public Path dir() {
+			return dir.getPath();
+		}
+
+		public FileStatus status() {
+			return dir;
+		}
+
+		/**
+		 * Returns the contents sorted by path or null if the directory was skipped or could not be listed.
+		 */
+		public FileStatus[] contents() {
+			return contents;
+		}
+
+		/**
+		 * Returns the fingerprint of the directory or null if the directory was skipped or could not be listed or if the scanner does
+		 * not fingerprint directories.
+		 */
+		public DirectoryFingerprint fingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Returns the hosts that store the file at the given index of {@link #contents()} or null if its block locations were not
+		 * fetched.
+		 */
+		public List<String> hosts(int i) {
+			if (null == hosts || null == hosts[i]) {
+				return null;
+			}
+
+			return asList(hosts[i]);
+		}
+
+		/**
+		 * Returns true if the {@link Filter} decided that the directory did not need to be listed.
+		 */
+		public boolean skipped() {
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,473 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import com.m6d.filecrush.crush.RenameJournal.Cursor;
+import com.m6d.filecrush.crush.RenameJournal.Rename;
+
+/**
+ * <p>
+ * Renames files in batches using a pool of threads. Callers must interact with this class in the following order:
+ * </p>
+ * <ol>
+ * <li>Invoke {@link #add(Path, Path)}, {@link #addOutput(Path, Path)} or their variants with each file of the plan.</li>
+ * <li>Invoke {@link #run()} to execute the plan.</li>
+ * <li>Repeat with the next plan.</li>
+ * <li>Invoke {@link #close()}.</li>
+ * </ol>
+ *
+ * <p>
+ * Each file is appended to a {@link RenameJournal} as soon as it is added, so the plan is never held in memory, and the journal is
+ * sealed before the first rename. {@link #resume()} completes the plan of a mover that failed.
+ * </p>
+ *
+ * <p>
+ * A plan consists of numbered batches. Every rename of a batch completes before any rename of the next batch starts, and the renames
+ * of a batch are executed in no particular order. The mover first creates the directories that the batch asks for and then streams
+ * the files of the batch, which the journal has grouped by destination directory, to the threads in chunks of at most
+ * {@link #CHUNK_SIZE}, with at most two chunks per thread outstanding. A chunk therefore renames into one or a few directories. Each
+ * destination directory that the mover has not seen before is created once, one request per directory instead of one per file.
+ * </p>
+ */
+class FileMover {
+
+	/**
+	 * The maximum number of files renamed by one thread before it picks up the next chunk.
+	 */
+	static final int CHUNK_SIZE = 1000;
+
+	private final FileSystem fs;
+
+	/**
+	 * The extensions that the output formats append to the names of compressed files. Empty if the output is not compressed.
+	 */
+	private final List<String> codecExtensions;
+
+	/**
+	 * May be null.
+	 */
+	private final Listener listener;
+
+	private final RenameJournal journal;
+
+	private final int numThreads;
+
+	private final ExecutorService executor;
+
+	/**
+	 * The directories that have been created or are known to exist. Threads that need a directory while it is being created wait for
+	 * the thread that creates it.
+	 */
+	private final ConcurrentMap<Path, Future<Integer>> existingDirs = new ConcurrentHashMap<Path, Future<Integer>>();
+
+	/**
+	 * @param codecExtensions
+	 *          The extensions of the codecs that the output files may be compressed with. May be null.
+	 */
+	public FileMover(FileSystem fs, Collection<String> codecExtensions, Listener listener, RenameJournal journal, int numThreads) {
+		super();
+
+		if (1 > numThreads) {
+			throw new IllegalArgumentException("Must have at least one thread: " + numThreads);
+		}
+
+		this.fs = fs;
+		this.codecExtensions = null == codecExtensions ? Collections.<String> emptyList() : new ArrayList<String>(codecExtensions);
+		this.listener = listener;
+		this.journal = journal;
+		this.numThreads = numThreads;
+
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "crush-mover-" + count.getAndIncrement());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Plans to move a file into a directory in the first batch, keeping its name.
+	 */
+	public void add(Path src, Path destDir) throws IOException {
+		add(0, src, destDir, null);
+	}
+
+	/**
+	 * Plans to move a file or directory into a directory.
+	 *
+	 * @param fileName
+	 *          The new name of the file or null to keep the original file name
+	 */
+	public void add(int batch, Path src, Path destDir, String fileName) throws IOException {
+		journal.append(batch, new Rename(src, destDir, fileName, false, null));
+	}
+
+	/**
+	 * Same as {@link #add(Path, Path)} except that the file was written by an output format, which may have appended one of the
+	 * {@link #codecExtensions} to its name. The name is looked for when the file is moved.
+	 */
+	public void addOutput(Path src, Path destDir) throws IOException {
+		addOutput(0, src, destDir);
+	}
+
+	public void addOutput(int batch, Path src, Path destDir) throws IOException {
+		journal.append(batch, new Rename(src, destDir, null, !codecExtensions.isEmpty(), null));
+	}
+
+	/**
+	 * Plans to create a directory with the given permission before the files of the batch are moved.
+	 */
+	public void addDir(int batch, Path dir, FsPermission permission) throws IOException {
+		journal.append(batch, new Rename(null, dir, null, false, permission));
+	}
+
+	/**
+	 * Moves the files added since the last invocation and returns their number. Throws the first exception encountered, in which case
+	 * some of the files may have been moved and others not, and {@link #resume()} can complete the plan later.
+	 */
+	public int run() throws IOException {
+		if (!journal.seal()) {
+			return 0;
+		}
+
+		return execute(0, false);
+	}
+
+	/**
+	 * Completes the plan left behind in the journal by a mover that failed and returns the number of files moved. Every rename of the
+	 * batch that was interrupted is checked: renames whose source is gone and whose destination exists were already done and are
+	 * skipped. Returns -1 if there is no plan to complete.
+	 */
+	public int resume() throws IOException {
+		if (!journal.open()) {
+			return -1;
+		}
+
+		return execute(journal.next(), true);
+	}
+
+	/**
+	 * Stops the threads and discards the files added since the last invocation of {@link #run()}.
+	 */
+	public void close() throws IOException {
+		executor.shutdownNow();
+
+		journal.abandon();
+	}
+
+	/**
+	 * Executes the batches of the journal starting with the given one, marking each one complete and deleting the journal at the end.
+	 */
+	private int execute(int first, boolean resuming) throws IOException {
+		int total = 0;
+
+		for (int i = first; i < journal.batches(); i++) {
+			createDirs(i);
+
+			total += moveFiles(i, resuming);
+
+			if (i + 1 < journal.batches()) {
+				journal.complete(i);
+			}
+		}
+
+		journal.delete();
+
+		return total;
+	}
+
+	/**
+	 * Creates the directories that the batch asks for.
+	 */
+	private void createDirs(int batch) throws IOException {
+		LinkedList<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+
+		Cursor cursor = journal.readDirs(batch);
+
+		try {
+			Rename rename;
+
+			while (null != (rename = cursor.next())) {
+				final Path dir = rename.destDir();
+				final FsPermission permission = rename.permission();
+
+				submit(futures, new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						mkdirs(dir);
+
+						if (null != permission) {
+							fs.setPermission(dir, permission);
+						}
+
+						return 0;
+					}
+				});
+			}
+
+			await(futures);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Moves the files of the batch in chunks and returns their number.
+	 */
+	private int moveFiles(int batch, boolean resuming) throws IOException {
+		LinkedList<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+
+		int total = 0;
+
+		Cursor cursor = journal.readFiles(batch);
+
+		try {
+			List<Rename> chunk = new ArrayList<Rename>();
+
+			Rename rename;
+
+			while (null != (rename = cursor.next())) {
+				chunk.add(rename);
+
+				if (CHUNK_SIZE == chunk.size()) {
+					total += submit(futures, new Renamer(chunk, resuming));
+
+					chunk = new ArrayList<Rename>();
+				}
+			}
+
+			if (!chunk.isEmpty()) {
+				total += submit(futures, new Renamer(chunk, resuming));
+			}
+
+			return total + await(futures);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Submits a task after waiting for the oldest one if too many are outstanding. Returns the result of the task waited for, if any.
+	 */
+	private int submit(LinkedList<Future<Integer>> futures, Callable<Integer> task) throws IOException {
+		int result = 0;
+
+		if (futures.size() >= 2 * numThreads) {
+			result = await(futures.removeFirst());
+		}
+
+		futures.add(executor.submit(task));
+
+		return result;
+	}
+
+	/**
+	 * Creates the directory and its ancestors unless the mover has seen it before.
+	 */
+	private void mkdirs(final Path dir) throws IOException {
+		FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				if (!fs.mkdirs(dir)) {
+					throw new IOException("Could not create directory: " + dir);
+				}
+
+				return 0;
+			}
+		});
+
+		Future<Integer> created = existingDirs.putIfAbsent(dir, task);
+
+		if (null == created) {
+			task.run();
+
+			created = task;
+		}
+
+		await(created);
+
+		/*
+		 * Creating a directory creates its ancestors too.
+		 */
+		for (Path ancestor = dir.getParent(); null != ancestor && null == existingDirs.putIfAbsent(ancestor, created); ancestor = ancestor
+				.getParent()) {
+		}
+	}
+
+	/**
+	 * Returns 1 if the file was moved and 0 if it had been moved before the mover resumed.
+	 */
+	private int rename(Rename rename, boolean resuming) throws IOException {
+		Path src = rename.src();
+
+		if (rename.mayHaveExtension() && !fs.exists(src)) {
+			/*
+			 * Try mangling the name like a codec would. The last extension is taken if none of them is found. A resumed mover skips the
+			 * file if it finds it in the destination directory under any of the names.
+			 */
+			if (resuming && fs.exists(rename.dest(src))) {
+				return 0;
+			}
+
+			for (String codecExtension : codecExtensions) {
+				src = new Path(rename.src() + codecExtension);
+
+				if (fs.exists(src)) {
+					break;
+				}
+
+				if (resuming && fs.exists(rename.dest(src))) {
+					return 0;
+				}
+			}
+		}
+
+		Path dest = rename.dest(src);
+
+		if (resuming) {
+			boolean srcExists = fs.exists(src);
+			boolean destExists = fs.exists(dest);
+
+			if (!srcExists && destExists) {
+				return 0;
+			}
+
+			if (srcExists && destExists) {
+				throw new IOException(format("Cannot rename %s to %s because both exist", src, dest));
+			}
+
+			if (!srcExists) {
+				throw new IOException(format("Cannot rename %s to %s because neither exists", src, dest));
+			}
+		}
+
+		if (!fs.rename(src, dest)) {
+			throw new IOException(format("Could not rename %s to %s", src, dest));
+		}
+
+		if (null != listener) {
+			synchronized (listener) {
+				listener.moved(src, dest);
+			}
+		}
+
+		return 1;
+	}
+
+	private static int await(List<Future<Integer>> futures) throws IOException {
+		int total = 0;
+
+		for (Future<Integer> future : futures) {
+			total += await(future);
+		}
+
+		return total;
+	}
+
+	private static int await(Future<Integer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw (IOException) new InterruptedIOException("Interrupted while moving files").initCause(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Moves a chunk of files, creating the directory of each one first.
+	 */
+	private class Renamer implements Callable<Integer> {
+
+		private final List<Rename> renames;
+
+		private final boolean resuming;
+
+		public Renamer(List<Rename> renames, boolean resuming) {
+			super();
+
+			this.renames = renames;
+			this.resuming = resuming;
+		}
+
+		@Override
+		public Integer call() throws IOException {
+			int moved = 0;
+
+			Path dir = null;
+
+			for (Rename rename : renames) {
+				if (!rename.destDir().equals(dir)) {
+					dir = rename.destDir();
+
+					mkdirs(dir);
+				}
+
+				moved += rename(rename, resuming);
+			}
+
+			return moved;
+		}
+	}
+
+	/**
+	 * Told about every file that has been moved. Never invoked concurrently.
+	 */
+	interface Listener {
+		void moved(Path src, Path dest);
+	}
+}
@@ -0,0 +1,459 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * <p>
+ * Opens files in the background so that the latency of opening a file and reading its first bytes overlaps with the copying of the
+ * files before it. Callers must interact with this class in the following order:
+ * </p>
+ * <ol>
+ * <li>Invoke {@link #prefetch(Path, long)} with each file some time before it is needed.</li>
+ * <li>Invoke {@link #open(Path)} with each file in turn.</li>
+ * <li>Invoke {@link #close()}.</li>
+ * </ol>
+ *
+ * <p>
+ * A prefetched file is opened and up to {@link #bufferSize} bytes are read from it into a buffer no longer than the file. A file that
+ * fits is closed right away and served from memory. The stream of a file that does not fit is kept open and continues where the
+ * buffered bytes end. Files that have not been prefetched are opened as usual. At most {@link #bufferSize} bytes are held for each
+ * file that is prefetched but not yet opened and for the file each thread opened last.
+ * </p>
+ *
+ * <p>
+ * The prefetched file that a thread opened last stays with that thread, including the open stream of a file that does not fit, until
+ * the thread opens another file. Opening the same file again right away, which is what a sink does when it falls back to reading a
+ * file record by record, therefore does not touch the file system.
+ * </p>
+ *
+ * <p>
+ * Several threads may share a prefetcher as long as they do not open the same files. A thread must be done with a file before it
+ * opens the next one.
+ * </p>
+ */
+class FilePrefetcher {
+
+	private final FileSystem fs;
+
+	private final int bufferSize;
+
+	/**
+	 * Null if nothing is prefetched.
+	 */
+	private final ExecutorService executor;
+
+	private final Map<Path, Future<PrefetchedInputStream>> prefetched = new HashMap<Path, Future<PrefetchedInputStream>>();
+
+	/**
+	 * The prefetched file most recently returned by {@link #open(Path)} to each thread.
+	 */
+	private final Map<Thread, PrefetchedInputStream> last = new HashMap<Thread, PrefetchedInputStream>();
+
+	/**
+	 * @param numThreads
+	 *          The number of files opened concurrently. Zero to open every file when it is needed.
+	 */
+	public FilePrefetcher(FileSystem fs, int numThreads, int bufferSize) {
+		super();
+
+		if (0 > numThreads) {
+			throw new IllegalArgumentException("Number of threads must be zero or positive: " + numThreads);
+		}
+
+		this.fs = fs;
+		this.bufferSize = bufferSize;
+
+		if (0 == numThreads) {
+			executor = null;
+		} else {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "crush-prefetcher-" + count.getAndIncrement());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns true if files are opened in the background.
+	 */
+	public boolean isEnabled() {
+		return null != executor;
+	}
+
+	/**
+	 * Starts to open a file whose length is not known in the background.
+	 *
+	 * @see #prefetch(Path, long)
+	 */
+	public void prefetch(Path path) {
+		prefetch(path, -1);
+	}
+
+	/**
+	 * Starts to open the file in the background. Does nothing if the file is already being prefetched or if prefetching is disabled.
+	 *
+	 * @param length
+	 *          The expected length of the file, which limits the size of the buffer, or -1 if it is not known
+	 */
+	public synchronized void prefetch(final Path path, long length) {
+		if (null == executor || prefetched.containsKey(path)) {
+			return;
+		}
+
+		final int size = 0 > length ? bufferSize : (int) Math.min(bufferSize, length);
+
+		prefetched.put(path, executor.submit(new Callable<PrefetchedInputStream>() {
+			@Override
+			public PrefetchedInputStream call() throws IOException {
+				return read(path, size);
+			}
+		}));
+	}
+
+	/**
+	 * Returns a stream positioned at the beginning of the file. Waits for the file if it is being prefetched.
+	 */
+	public FSDataInputStream open(Path path) throws IOException {
+		Thread thread = Thread.currentThread();
+
+		PrefetchedInputStream previous;
+		Future<PrefetchedInputStream> future;
+
+		synchronized (this) {
+			previous = last.get(thread);
+
+			if (null != previous && path.equals(previous.path())) {
+				return new FSDataInputStream(previous.copy());
+			}
+
+			last.remove(thread);
+
+			future = prefetched.remove(path);
+		}
+
+		if (null != previous) {
+			previous.close();
+		}
+
+		if (null == future) {
+			return fs.open(path);
+		}
+
+		/*
+		 * Wait without holding the lock so that other threads can open the files they prefetched.
+		 */
+		PrefetchedInputStream stream = get(future);
+
+		synchronized (this) {
+			last.put(thread, stream);
+		}
+
+		return new FSDataInputStream(stream.copy());
+	}
+
+	/**
+	 * Stops the threads and closes the files that were prefetched but never opened.
+	 */
+	public synchronized void close() {
+		if (null == executor) {
+			return;
+		}
+
+		executor.shutdown();
+
+		for (Future<PrefetchedInputStream> future : prefetched.values()) {
+			try {
+				get(future).close();
+			} catch (Exception e) {
+				LOG.debug("Swallowing exception from unused prefetched file", e);
+			}
+		}
+
+		prefetched.clear();
+
+		for (PrefetchedInputStream stream : last.values()) {
+			try {
+				stream.close();
+			} catch (Exception e) {
+				LOG.debug("Swallowing exception from prefetched file", e);
+			}
+		}
+
+		last.clear();
+	}
+
+	/**
+	 * Opens the file and reads up to the given number of bytes from it. The file may have grown since its length was planned, so a
+	 * full buffer still checks for more bytes.
+	 */
+	private PrefetchedInputStream read(Path path, int size) throws IOException {
+		FSDataInputStream in = fs.open(path);
+
+		try {
+			byte[] buffer = new byte[size];
+			int length = 0;
+
+			int n = 0;
+
+			while (length < buffer.length && -1 != (n = in.read(buffer, length, buffer.length - length))) {
+				length += n;
+			}
+
+			/*
+			 * A full buffer does not tell whether the file has more bytes.
+			 */
+			if (-1 == n || (length == buffer.length && -1 == in.read())) {
+				in.close();
+
+				return new PrefetchedInputStream(path, buffer, length, null, true);
+			}
+
+			in.seek(length);
+
+			return new PrefetchedInputStream(path, buffer, length, in, true);
+		} catch (IOException e) {
+			in.close();
+
+			throw e;
+		} catch (RuntimeException e) {
+			in.close();
+
+			throw e;
+		}
+	}
+
+	private static PrefetchedInputStream get(Future<PrefetchedInputStream> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw (IOException) new InterruptedIOException("Interrupted while opening file").initCause(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Serves the buffered first bytes of a file from memory and the rest from the stream that read them.
+	 */
+	private static class PrefetchedInputStream extends InputStream implements Seekable, PositionedReadable {
+
+		private final Path path;
+
+		private final byte[] buffer;
+
+		private final int length;
+
+		/**
+		 * The rest of the file or null if the whole file is in the buffer.
+		 */
+		private final FSDataInputStream in;
+
+		/**
+		 * True if closing this stream closes {@link #in}. Copies share the stream of the original and leave it open.
+		 */
+		private final boolean owner;
+
+		private long pos;
+
+		public PrefetchedInputStream(Path path, byte[] buffer, int length, FSDataInputStream in, boolean owner) {
+			super();
+
+			this.path = path;
+			this.buffer = buffer;
+			this.length = length;
+			this.in = in;
+			this.owner = owner;
+		}
+
+		public Path path() {
+			return path;
+		}
+
+		/**
+		 * Returns a new stream positioned at the beginning of the file that shares the buffer and the stream of this one.
+		 */
+		public PrefetchedInputStream copy() {
+			return new PrefetchedInputStream(path, buffer, length, in, false);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos < length) {
+				return buffer[(int) pos++] & 0xff;
+			}
+
+			if (null == in) {
+				return -1;
+			}
+
+			position();
+
+			int b = in.read();
+
+			if (-1 != b) {
+				pos++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (0 == len) {
+				return 0;
+			}
+
+			if (pos < length) {
+				int n = (int) Math.min(len, length - pos);
+
+				System.arraycopy(buffer, (int) pos, b, off, n);
+
+				pos += n;
+
+				return n;
+			}
+
+			if (null == in) {
+				return -1;
+			}
+
+			position();
+
+			int n = in.read(b, off, len);
+
+			if (0 < n) {
+				pos += n;
+			}
+
+			return n;
+		}
+
+		/**
+		 * Moves the underlying stream to the current position, which only differs after a seek.
+		 */
+		private void position() throws IOException {
+			if (in.getPos() != pos) {
+				in.seek(pos);
+			}
+		}
+
+		@Override
+		public void seek(long target) throws IOException {
+			if (0 > target || (null == in && target > length)) {
+				throw new EOFException("Cannot seek to " + target);
+			}
+
+			pos = target;
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return pos;
+		}
+
+		@Override
+		public boolean seekToNewSource(long targetPos) throws IOException {
+			return false;
+		}
+
+		@Override
+		public int read(long position, byte[] b, int off, int len) throws IOException {
+			if (position < length) {
+				int n = (int) Math.min(len, length - position);
+
+				System.arraycopy(buffer, (int) position, b, off, n);
+
+				return n;
+			}
+
+			if (null == in) {
+				return -1;
+			}
+
+			return in.read(position, b, off, len);
+		}
+
+		@Override
+		public void readFully(long position, byte[] b, int off, int len) throws IOException {
+			while (0 < len) {
+				int n = read(position, b, off, len);
+
+				if (0 > n) {
+					throw new EOFException("End of file reached before reading fully");
+				}
+
+				position += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void readFully(long position, byte[] b) throws IOException {
+			readFully(position, b, 0, b.length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (owner && null != in) {
+				in.close();
+			}
+		}
+	}
+
+	private static final Log LOG = LogFactory.getLog(FilePrefetcher.class);
+}
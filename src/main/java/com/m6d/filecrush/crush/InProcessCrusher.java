@@ -0,0 +1,235 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.Writer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * <p>
+ * Crushes buckets in this JVM as soon as they are planned instead of submitting a job. Callers must interact with this class in the
+ * following order:
+ * </p>
+ * <ol>
+ * <li>Invoke {@link #crush(Text, Iterator)} with each bucket.</li>
+ * <li>Invoke {@link #close()} to wait for the buckets that are still being crushed.</li>
+ * </ol>
+ *
+ * <p>
+ * The buckets are handed to a {@link CrushReducer} that crushes them on a pool of threads. The reducer holds no more buckets than it
+ * has threads, so the caller blocks once they are all busy, which in turn bounds the listings that the {@link DirectoryScanner}
+ * holds ahead of the caller. The crush output files and the mappings from source files to crush output files end up where a
+ * reduce task would have left them, which means the output can be moved exactly as if a job had crushed it.
+ * </p>
+ */
+class InProcessCrusher {
+
+	private final FileSystem fs;
+
+	private final JobConf job;
+
+	private final Path outDir;
+
+	private final CrushReducer reducer;
+
+	/**
+	 * Receives the mappings, just like the output of a reduce task.
+	 */
+	private final Writer mappings;
+
+	private final OutputCollector<Text, Text> collector;
+
+	private final Reporter reporter;
+
+	private boolean closed;
+
+	public InProcessCrusher(FileSystem fs, JobConf job, Path outDir, int numThreads, Counters counters) throws IOException {
+		super();
+
+		if (1 > numThreads) {
+			throw new IllegalArgumentException("Must have at least one thread: " + numThreads);
+		}
+
+		this.fs = fs;
+		this.outDir = fs.makeQualified(outDir);
+
+		/*
+		 * We trick the reducer into doing some work for us by setting these configuration properties.
+		 */
+		this.job = new JobConf(job);
+
+		this.job.set("mapred.tip.id",  "task_000000000000_00000_r_000000");
+		this.job.set("mapred.task.id", "attempt_000000000000_0000_r_000000_0");
+
+		this.job.set("mapred.output.dir", this.outDir.toString());
+
+		this.job.setInt(CrushReducer.THREADS, numThreads);
+
+		/*
+		 * File output committer needs this.
+		 */
+		fs.mkdirs(new Path(this.outDir, "_temporary"));
+
+		mappings = SequenceFile.createWriter(fs, this.job, new Path(this.outDir, "part-00000"), Text.class, Text.class);
+
+		collector = new OutputCollector<Text, Text>() {
+			@Override
+			public void collect(Text key, Text value) throws IOException {
+				mappings.append(key, value);
+			}
+		};
+
+		reporter = new CountersReporter(counters);
+
+		reducer = new CrushReducer();
+
+		try {
+			reducer.configure(this.job);
+		} catch (RuntimeException e) {
+			mappings.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Crushes the files of a bucket. Returns as soon as a thread has picked up the bucket.
+	 */
+	public void crush(Text bucketId, Iterator<Text> files) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Closed");
+		}
+
+		reducer.reduce(bucketId, files, collector, reporter);
+	}
+
+	/**
+	 * Waits for the buckets that are still being crushed and then moves the crush output files from the task attempt work directory to
+	 * the output directory, where the committer of a reduce task would have moved them.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			reducer.close();
+		} finally {
+			mappings.close();
+		}
+
+		Path work = FileOutputFormat.getTaskOutputPath(job, "crush");
+
+		/*
+		 * Nothing was crushed if there were no buckets.
+		 */
+		if (fs.exists(work) && !fs.rename(work, new Path(outDir, "crush"))) {
+			throw new IOException("Could not rename " + work + " to " + new Path(outDir, "crush"));
+		}
+
+		fs.delete(new Path(outDir, "_temporary"), true);
+	}
+
+	/**
+	 * Stops crushing after a failure. Buckets that are being crushed are still waited for.
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			reducer.close();
+		} catch (Exception e) {
+			LOG.error("Trapped exception during abort", e);
+		}
+
+		try {
+			mappings.close();
+		} catch (Exception e) {
+			LOG.error("Trapped exception during abort", e);
+		}
+	}
+
+	/**
+	 * Adds the counters of the reducer to the counters of the crush, as the framework would add those of a reduce task to those of
+	 * the job.
+	 */
+	private static class CountersReporter implements Reporter {
+
+		private final Counters counters;
+
+		public CountersReporter(Counters counters) {
+			super();
+
+			this.counters = counters;
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void incrCounter(Enum<?> key, long amount) {
+			counters.incrCounter(key, amount);
+		}
+
+		@Override
+		public void incrCounter(String group, String counter, long amount) {
+			counters.incrCounter(group, counter, amount);
+		}
+
+		@Override
+		public InputSplit getInputSplit() {
+			return null;
+		}
+	}
+
+	private static final Log LOG = LogFactory.getLog(InProcessCrusher.class);
+}
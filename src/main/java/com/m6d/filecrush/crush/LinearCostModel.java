@@ -0,0 +1,418 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.Reader;
+import org.apache.hadoop.io.SequenceFile.Writer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Counters;
+
+/**
+ * <p>
+ * The default {@link CostModel}. The cost of a bucket is expressed in bytes: the number of bytes in the bucket plus a fixed number of
+ * bytes for every file, which stands for the time it takes to open the file, plus a fixed number of bytes for every record. The
+ * number of records is not known when the crush is planned so it is estimated from the number of bytes and the average record size.
+ * </p>
+ *
+ * <p>
+ * The costs can be given in the job configuration or {@link #calibrate(Configuration, List) calibrated} from the counters of the
+ * tasks of previous crushes. The calibration fits the running time of each task to the bytes, files, and records it crushed and
+ * converts the time per file and per record into the number of bytes that could have been copied in the same time.
+ * </p>
+ */
+public class LinearCostModel implements CostModel, Configurable {
+
+	/**
+	 * The cost of opening a file, in bytes. Defaults to 1 MB.
+	 */
+	public static final String FILE_COST = "crush.cost.file";
+
+	/**
+	 * The cost of copying a record on top of the cost of its bytes, in bytes. Defaults to 0.
+	 */
+	public static final String RECORD_COST = "crush.cost.record";
+
+	/**
+	 * The average number of bytes per record, used to estimate the number of records in a bucket. Defaults to 0, which leaves the
+	 * records out of the cost.
+	 */
+	public static final String RECORD_SIZE = "crush.cost.record.size";
+
+	/**
+	 * The calibration needs at least this many samples per coefficient.
+	 */
+	static final int MIN_SAMPLES_PER_COEFFICIENT = 2;
+
+	private Configuration conf;
+
+	private long fileCost;
+
+	private double recordCost;
+
+	private double recordSize;
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+
+		fileCost = conf.getLong(FILE_COST, 1024 * 1024);
+
+		if (0 > fileCost) {
+			throw new IllegalArgumentException(format("%s must not be negative: %d", FILE_COST, fileCost));
+		}
+
+		recordCost = conf.getFloat(RECORD_COST, 0);
+
+		if (0 > recordCost) {
+			throw new IllegalArgumentException(format("%s must not be negative: %s", RECORD_COST, recordCost));
+		}
+
+		recordSize = conf.getFloat(RECORD_SIZE, 0);
+
+		if (0 > recordSize) {
+			throw new IllegalArgumentException(format("%s must not be negative: %s", RECORD_SIZE, recordSize));
+		}
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+	public long cost(long bytes, int files) {
+		double cost = bytes + (double) fileCost * files;
+
+		if (0 < recordSize) {
+			cost += recordCost * bytes / recordSize;
+		}
+
+		return Math.round(cost);
+	}
+
+	/**
+	 * Sets {@link #FILE_COST}, {@link #RECORD_COST}, {@link #RECORD_SIZE}, and {@link CostModel#THROUGHPUT} in the configuration from
+	 * the samples. The fit falls back
+	 * to leaving out the records if they cannot be told apart from the bytes, which happens when the records are of much the same size
+	 * everywhere. Returns false and leaves the configuration alone if there are too few samples or they do not show that the time
+	 * grows with the bytes.
+	 */
+	public static boolean calibrate(Configuration conf, List<Sample> samples) {
+		long bytes = 0;
+		long records = 0;
+
+		for (Sample sample : samples) {
+			bytes += sample.bytes;
+			records += sample.records;
+		}
+
+		double[] coefficients = null;
+
+		if (0 < records) {
+			coefficients = fit(samples, true);
+		}
+
+		if (null == coefficients) {
+			coefficients = fit(samples, false);
+		}
+
+		if (null == coefficients) {
+			return false;
+		}
+
+		/*
+		 * Convert the milliseconds per file and per record into the bytes that take as long to copy.
+		 */
+		double millisPerByte = coefficients[1];
+
+		conf.setLong(FILE_COST, Math.round(coefficients[2] / millisPerByte));
+		conf.setFloat(THROUGHPUT, (float) (1000 / millisPerByte));
+
+		if (3 < coefficients.length) {
+			conf.setFloat(RECORD_COST, (float) (coefficients[3] / millisPerByte));
+			conf.setFloat(RECORD_SIZE, (float) bytes / records);
+		} else {
+			conf.setFloat(RECORD_COST, 0);
+			conf.setFloat(RECORD_SIZE, 0);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fits millis = start up + a * bytes + b * files [+ c * records] by least squares and returns the coefficients in that order. Returns
+	 * null if there are too few samples, the samples do not determine the coefficients, or any of the coefficients other than the
+	 * start up time is not positive.
+	 */
+	static double[] fit(List<Sample> samples, boolean withRecords) {
+		int n = withRecords ? 4 : 3;
+
+		if (samples.size() < n * MIN_SAMPLES_PER_COEFFICIENT) {
+			return null;
+		}
+
+		/*
+		 * Scale each variable to at most one so that the bytes do not swamp the files in the normal equations.
+		 */
+		double[] scale = new double[n];
+
+		for (Sample sample : samples) {
+			double[] x = sample.variables(n);
+
+			for (int j = 0; j < n; j++) {
+				scale[j] = Math.max(scale[j], Math.abs(x[j]));
+			}
+		}
+
+		for (int j = 0; j < n; j++) {
+			if (0 == scale[j]) {
+				return null;
+			}
+		}
+
+		/*
+		 * The normal equations, augmented with the right hand side.
+		 */
+		double[][] a = new double[n][n + 1];
+
+		for (Sample sample : samples) {
+			double[] x = sample.variables(n);
+
+			for (int j = 0; j < n; j++) {
+				x[j] /= scale[j];
+			}
+
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					a[i][j] += x[i] * x[j];
+				}
+
+				a[i][n] += x[i] * sample.millis;
+			}
+		}
+
+		double tolerance = 1e-9 * samples.size();
+
+		/*
+		 * Gaussian elimination with partial pivoting.
+		 */
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+
+			for (int row = col + 1; row < n; row++) {
+				if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+					pivot = row;
+				}
+			}
+
+			if (Math.abs(a[pivot][col]) < tolerance) {
+				return null;
+			}
+
+			double[] swap = a[col];
+			a[col] = a[pivot];
+			a[pivot] = swap;
+
+			for (int row = col + 1; row < n; row++) {
+				double factor = a[row][col] / a[col][col];
+
+				for (int j = col; j <= n; j++) {
+					a[row][j] -= factor * a[col][j];
+				}
+			}
+		}
+
+		double[] coefficients = new double[n];
+
+		for (int row = n - 1; row >= 0; row--) {
+			double sum = a[row][n];
+
+			for (int j = row + 1; j < n; j++) {
+				sum -= a[row][j] * coefficients[j];
+			}
+
+			coefficients[row] = sum / a[row][row];
+		}
+
+		for (int j = 0; j < n; j++) {
+			coefficients[j] /= scale[j];
+
+			if (0 < j && 0 >= coefficients[j]) {
+				return null;
+			}
+		}
+
+		return coefficients;
+	}
+
+	/**
+	 * Returns the samples in the file or an empty list if the file does not exist.
+	 */
+	public static List<Sample> read(Configuration conf, Path samplesFile) throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		FileSystem fs = samplesFile.getFileSystem(conf);
+
+		if (!fs.exists(samplesFile)) {
+			return samples;
+		}
+
+		Reader reader = new Reader(fs, samplesFile, conf);
+
+		try {
+			Sample sample = new Sample();
+
+			while (reader.next(NullWritable.get(), sample)) {
+				samples.add(sample);
+
+				sample = new Sample();
+			}
+		} finally {
+			reader.close();
+		}
+
+		return samples;
+	}
+
+	/**
+	 * Replaces the samples file. The new samples are written next to the old ones and then renamed over them so that a failure leaves
+	 * the old samples in place.
+	 */
+	public static void write(Configuration conf, Path samplesFile, List<Sample> samples) throws IOException {
+		FileSystem fs = samplesFile.getFileSystem(conf);
+
+		Path tmp = samplesFile.suffix(".tmp");
+
+		Writer writer = SequenceFile.createWriter(fs, conf, tmp, NullWritable.class, Sample.class);
+
+		try {
+			for (Sample sample : samples) {
+				writer.append(NullWritable.get(), sample);
+			}
+		} finally {
+			writer.close();
+		}
+
+		fs.delete(samplesFile, false);
+
+		if (!fs.rename(tmp, samplesFile)) {
+			throw new IOException(format("Could not rename %s to %s", tmp, samplesFile));
+		}
+	}
+
+	/**
+	 * The running time of one task along with what it crushed.
+	 */
+	public static class Sample implements Writable {
+
+		private long millis;
+
+		private long bytes;
+
+		private long files;
+
+		private long records;
+
+		public Sample() {
+			super();
+		}
+
+		public Sample(long millis, long bytes, long files, long records) {
+			super();
+
+			this.millis = millis;
+			this.bytes = bytes;
+			this.files = files;
+			this.records = records;
+		}
+
+		/**
+		 * Returns a sample built from the counters of a task that ran for the given time.
+		 */
+		public static Sample of(long millis, Counters counters) {
+			return new Sample(millis, counters.getCounter(ReducerCounter.BYTES_CRUSHED), counters.getCounter(ReducerCounter.FILES_CRUSHED),
+					counters.getCounter(ReducerCounter.RECORDS_CRUSHED));
+		}
+
+		public long millis() {
+			return millis;
+		}
+
+		public long bytes() {
+			return bytes;
+		}
+
+		public long files() {
+			return files;
+		}
+
+		public long records() {
+			return records;
+		}
+
+		/**
+		 * Returns one, the bytes, the files, and, if there are four variables, the records.
+		 */
+		private double[] variables(int n) {
+			double[] x = new double[n];
+
+			x[0] = 1;
+			x[1] = bytes;
+			x[2] = files;
+
+			if (3 < n) {
+				x[3] = records;
+			}
+
+			return x;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeLong(millis);
+			out.writeLong(bytes);
+			out.writeLong(files);
+			out.writeLong(records);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			millis = in.readLong();
+			bytes = in.readLong();
+			files = in.readLong();
+			records = in.readLong();
+		}
+
+		@Override
+		public String toString() {
+			return format("%d ms %d bytes %d files %d records", millis, bytes, files, records);
+		}
+	}
+}
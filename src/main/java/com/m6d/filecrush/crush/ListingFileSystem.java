@@ -0,0 +1,366 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.Reader;
+import org.apache.hadoop.io.SequenceFile.Sorter;
+import org.apache.hadoop.io.SequenceFile.Writer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ * <p>
+ * Answers {@link #listStatus(Path)} from a listing of the namespace that was generated beforehand instead of asking the name node,
+ * so that planning a crush does not add to the load on the name node. Every other call goes to the underlying file system.
+ * </p>
+ *
+ * <p>
+ * The listing is a text file, optionally compressed, in either of these formats:
+ * </p>
+ * <ul>
+ * <li>The output of <code>hadoop fs -lsr</code>, one entry per line: permissions, replication, owner, group, length, modification
+ * date and time and path, separated by spaces.</li>
+ * <li>The output of the delimited processor of the offline image viewer, one entry per line: path, replication, modification time,
+ * access time, block size, number of blocks, length, name space quota, disk space quota, permissions, owner and group, separated by
+ * tabs.</li>
+ * </ul>
+ *
+ * <p>
+ * Only the entries below the root of the crush are kept. They are sorted by directory into an index on the local file system, so the
+ * listing does not have to fit in memory. Directories that are not in the listing appear empty. The listing may be out of date,
+ * which is why {@link CrushReducer#VERIFY_SOURCES} has the crush check each file before it is crushed.
+ * </p>
+ */
+class ListingFileSystem extends FilterFileSystem {
+
+	/**
+	 * The memory used to sort the entries by directory.
+	 */
+	private static final int SORT_MEMORY = 16 * 1024 * 1024;
+
+	/**
+	 * The entries of each directory, keyed by the fully qualified path of the directory.
+	 */
+	private final MapFile.Reader index;
+
+	private final FileSystem localFs;
+
+	private final Path work;
+
+	private ListingFileSystem(FileSystem fs, MapFile.Reader index, FileSystem localFs, Path work) {
+		super(fs);
+
+		this.index		= index;
+		this.localFs	= localFs;
+		this.work			= work;
+	}
+
+	/**
+	 * Reads the entries below the given root from the listing into an index in the given directory on the local file system. The
+	 * directory is deleted by {@link #discard()}.
+	 */
+	public static ListingFileSystem read(FileSystem fs, Configuration conf, Path listing, Path root, Path work) throws IOException {
+		FileSystem localFs = FileSystem.getLocal(conf);
+
+		Path unsorted	= new Path(work, "unsorted");
+		Path sorted		= new Path(work, "sorted");
+		Path index		= new Path(work, "index");
+
+		try {
+			Writer writer = SequenceFile.createWriter(localFs, conf, unsorted, Text.class, FileStatus.class);
+
+			try {
+				append(fs, conf, listing, root, writer);
+			} finally {
+				writer.close();
+			}
+
+			Sorter sorter = new Sorter(localFs, Text.class, FileStatus.class, conf);
+
+			sorter.setMemory(SORT_MEMORY);
+			sorter.sort(new Path[] { unsorted }, sorted, true);
+
+			MapFile.Writer indexWriter = new MapFile.Writer(conf, localFs, index.toString(), Text.class, Contents.class);
+
+			try {
+				group(localFs, conf, sorted, indexWriter);
+			} finally {
+				indexWriter.close();
+			}
+
+			localFs.delete(sorted, false);
+
+			return new ListingFileSystem(fs, new MapFile.Reader(localFs, index.toString(), conf), localFs, work);
+		} catch (IOException e) {
+			localFs.delete(work, true);
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends each entry below the root to the writer, keyed by its directory.
+	 */
+	private static void append(FileSystem fs, Configuration conf, Path listing, Path root, Writer writer) throws IOException {
+		String prefix = fs.makeQualified(root).toString() + "/";
+
+		FileSystem listingFs = listing.getFileSystem(conf);
+
+		InputStream in = listingFs.open(listing);
+
+		CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(listing);
+
+		if (null != codec) {
+			in = codec.createInputStream(in);
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+		try {
+			Parser parser = new Parser();
+
+			Text dir = new Text();
+
+			String line;
+			int lineNum = 0;
+
+			while (null != (line = reader.readLine())) {
+				lineNum++;
+
+				FileStatus status;
+
+				try {
+					status = parser.parse(line, fs);
+				} catch (IllegalArgumentException e) {
+					throw (IOException) new IOException(format("Malformed line %d of %s: %s", lineNum, listing, line)).initCause(e);
+				}
+
+				if (null != status && status.getPath().toString().startsWith(prefix)) {
+					dir.set(status.getPath().getParent().toString());
+
+					writer.append(dir, status);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the entries of each directory in the sorted file to the index as one record. Only the entries of one directory are held
+	 * in memory at a time.
+	 */
+	private static void group(FileSystem localFs, Configuration conf, Path sorted, MapFile.Writer indexWriter) throws IOException {
+		Reader reader = new Reader(localFs, sorted, conf);
+
+		try {
+			Text dir = new Text();
+			Text current = new Text();
+
+			List<FileStatus> entries = new ArrayList<FileStatus>();
+
+			FileStatus status = new FileStatus();
+
+			while (reader.next(dir, status)) {
+				if (!entries.isEmpty() && !dir.equals(current)) {
+					indexWriter.append(current, new Contents(entries));
+
+					entries.clear();
+				}
+
+				current.set(dir);
+
+				entries.add(status);
+
+				status = new FileStatus();
+			}
+
+			if (!entries.isEmpty()) {
+				indexWriter.append(current, new Contents(entries));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Looks the directory up in the index. The index is shared by the threads that list directories, so the lookups take turns.
+	 */
+	@Override
+	public synchronized FileStatus[] listStatus(Path f) throws IOException {
+		Contents contents = new Contents();
+
+		if (null == index.get(new Text(makeQualified(f).toString()), contents)) {
+			return new FileStatus[0];
+		}
+
+		return contents.statuses();
+	}
+
+	/**
+	 * Closes the index and deletes its directory. The underlying file system stays open.
+	 */
+	public synchronized void discard() throws IOException {
+		try {
+			index.close();
+		} finally {
+			localFs.delete(work, true);
+		}
+	}
+
+	/**
+	 * The entries of one directory.
+	 */
+	static class Contents extends ArrayWritable {
+
+		public Contents() {
+			super(FileStatus.class);
+		}
+
+		Contents(List<FileStatus> entries) {
+			super(FileStatus.class, entries.toArray(new FileStatus[entries.size()]));
+		}
+
+		FileStatus[] statuses() {
+			Writable[] values = get();
+
+			FileStatus[] statuses = new FileStatus[values.length];
+
+			System.arraycopy(values, 0, statuses, 0, values.length);
+
+			return statuses;
+		}
+	}
+
+	/**
+	 * Parses the lines of a listing. Not thread safe.
+	 */
+	static class Parser {
+
+		private final Pattern spaces = Pattern.compile(" +");
+
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+		/**
+		 * Returns the entry on the line or null if the line has no entry.
+		 */
+		public FileStatus parse(String line, FileSystem fs) {
+			if (line.isEmpty() || line.startsWith("Found ")) {
+				return null;
+			}
+
+			String path;
+			String permission;
+			String replication;
+			String owner;
+			String group;
+			String length;
+			String modified;
+
+			if (-1 != line.indexOf('\t')) {
+				String[] fields = line.split("\t");
+
+				if (12 > fields.length) {
+					throw new IllegalArgumentException("Expected 12 fields: " + fields.length);
+				}
+
+				/*
+				 * Skip the header.
+				 */
+				if ("Path".equals(fields[0])) {
+					return null;
+				}
+
+				path				= fields[0];
+				replication	= fields[1];
+				modified		= fields[2];
+				length			= fields[6];
+				permission	= fields[9];
+				owner				= fields[10];
+				group				= fields[11];
+			} else {
+				/*
+				 * The path is whatever follows the time, spaces included.
+				 */
+				String[] fields = spaces.split(line, 8);
+
+				if (8 != fields.length) {
+					throw new IllegalArgumentException("Expected 8 fields: " + fields.length);
+				}
+
+				permission	= fields[0];
+				replication	= fields[1];
+				owner				= fields[2];
+				group				= fields[3];
+				length			= fields[4];
+				modified		= fields[5] + " " + fields[6];
+				path				= fields[7];
+			}
+
+			/*
+			 * Newer versions append a character that flags extended attributes.
+			 */
+			if (10 > permission.length()) {
+				throw new IllegalArgumentException("Not a permission: " + permission);
+			}
+
+			permission = permission.substring(0, 10);
+
+			boolean isDir = 'd' == permission.charAt(0);
+
+			long modificationTime;
+
+			try {
+				modificationTime = dateFormat.parse(modified).getTime();
+			} catch (ParseException e) {
+				throw new IllegalArgumentException("Not a modification time: " + modified);
+			}
+
+			return new FileStatus(Long.parseLong(length), isDir, isDir ? 0 : parseReplication(replication), 0, modificationTime, 0,
+					FsPermission.valueOf(permission), owner, group, fs.makeQualified(new Path(path)));
+		}
+
+		/**
+		 * Directories have no replication.
+		 */
+		private static int parseReplication(String replication) {
+			return "-".equals(replication) ? 0 : Integer.parseInt(replication);
+		}
+	}
+}
@@ -16,5 +16,5 @@
 package com.m6d.filecrush.crush;
 
 public enum MapperCounter {
-	DIRS_FOUND, DIRS_SKIPPED, DIRS_ELIGIBLE, FILES_FOUND, FILES_SKIPPED, FILES_ELIGIBLE
+	DIRS_FOUND, DIRS_SKIPPED, DIRS_UNCHANGED, DIRS_ELIGIBLE, FILES_FOUND, FILES_SKIPPED, FILES_ELIGIBLE
 }
@@ -0,0 +1,128 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+
+import com.m6d.filecrush.crush.Bucketer.Bucket;
+
+/**
+ * <p>
+ * Plans the directory trees below the input dir of a crush that plans in a map reduce job. Each value is the path of a sub
+ * directory of the input dir, which is listed and bucketed exactly as the client would. The buckets are written as the main output
+ * in the format of the bucket files, each bucket is summarized in the {@link #BUCKETS} output and the files that are not crushed are
+ * written to the {@link #SKIPPED} output.
+ * </p>
+ *
+ * <p>
+ * The planning counters are added to the counters of the task.
+ * </p>
+ */
+@SuppressWarnings("deprecation")
+public class PlanningMapper implements Mapper<LongWritable, Text, Text, Text> {
+
+	private Crush crush;
+
+	private MultipleOutputs outputs;
+
+	private Reporter reporter;
+
+	@Override
+	public void configure(JobConf job) {
+		try {
+			crush = Crush.forPlanning(job);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		outputs = new MultipleOutputs(job);
+	}
+
+	@Override
+	public void map(LongWritable offset, Text shard, final OutputCollector<Text, Text> collector, final Reporter reporter)
+			throws IOException {
+		this.reporter = reporter;
+
+		crush.planShard(new Path(shard.toString()), new Crush.PlanSink() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void bucket(Bucket bucket, List<Text> sources) throws IOException {
+				Text bucketId = new Text(bucket.name());
+
+				for (Text source : sources) {
+					collector.collect(bucketId, source);
+				}
+
+				outputs.getCollector(BUCKETS, reporter).collect(bucketId, new Text(summary(bucket.size(), sources.size())));
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public void skipped(Collection<String> files) throws IOException {
+				OutputCollector<Text, NullWritable> skipped = outputs.getCollector(SKIPPED, reporter);
+
+				for (String file : files) {
+					skipped.collect(new Text(file), NullWritable.get());
+				}
+			}
+		}, reporter);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (null != reporter) {
+				Counters counters = crush.getJobCounters();
+
+				for (MapperCounter counter : MapperCounter.values()) {
+					reporter.incrCounter(counter, counters.getCounter(counter));
+				}
+			}
+		} finally {
+			outputs.close();
+		}
+	}
+
+	/**
+	 * Returns the value of the {@link #BUCKETS} output for a bucket: its bytes and its number of files separated by a tab.
+	 */
+	static String summary(long bytes, int files) {
+		return bytes + "\t" + files;
+	}
+
+	/**
+	 * The named output that maps each bucket id to its {@link #summary(long, int)}.
+	 */
+	static final String BUCKETS = "buckets";
+
+	/**
+	 * The named output whose keys are the files that are not crushed.
+	 */
+	static final String SKIPPED = "skipped";
+}
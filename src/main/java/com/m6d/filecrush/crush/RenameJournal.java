@@ -0,0 +1,461 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.Reader;
+import org.apache.hadoop.io.SequenceFile.Sorter;
+import org.apache.hadoop.io.SequenceFile.Writer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * <p>
+ * A write ahead journal of the renames planned by a {@link FileMover}. The renames are grouped into numbered batches that are
+ * executed in order. Each rename is appended to the plan as one record as it is planned, so neither the planner nor the mover holds
+ * the plan in memory, and the plan is sealed before the first rename. An empty marker file is created after each completed batch.
+ * A failure therefore leaves behind the plan and the markers of the batches that were done, and a later process can finish the job
+ * by streaming the plan again and skipping the batches that have a marker.
+ * </p>
+ *
+ * <p>
+ * Every batch has two segments of its own, one with the directories to create and one with the files to move, so executing a batch
+ * reads only its own records and each of them once. Sealing sorts the files of each batch by their destination directory, which
+ * hands the renames into one directory to the mover together.
+ * </p>
+ *
+ * <p>
+ * The segments are appended to in a temporary directory that is renamed once the plan is sealed, so a plan is either complete or
+ * absent. The file system has no append, which is why the markers are separate files instead of records at the end of the plan. The
+ * plan and the markers are deleted once every batch has been executed.
+ * </p>
+ */
+class RenameJournal {
+
+	private static final String PLAN = "plan";
+
+	private static final String TMP = "plan.tmp";
+
+	private static final String DIRS = "dirs.";
+
+	private static final String FILES = "files.";
+
+	private static final String UNSORTED = "unsorted.";
+
+	private static final String DONE = "done.";
+
+	/**
+	 * The memory used to sort the files of a batch.
+	 */
+	private static final int SORT_MEMORY = 16 * 1024 * 1024;
+
+	private final FileSystem fs;
+
+	private final Path dir;
+
+	/**
+	 * The writers of the segments that are being appended to by name. Empty if there is no plan being appended to.
+	 */
+	private final Map<String, Writer> writers = new TreeMap<String, Writer>();
+
+	/**
+	 * True if a plan has been sealed or opened and not all of its batches have been executed.
+	 */
+	private boolean open;
+
+	/**
+	 * The number of batches in the plan, including batches that have nothing to do.
+	 */
+	private int batches;
+
+	/**
+	 * The number of the next batch to execute.
+	 */
+	private int next;
+
+	public RenameJournal(FileSystem fs, Path dir) {
+		super();
+
+		this.fs = fs;
+		this.dir = dir;
+	}
+
+	public Path dir() {
+		return dir;
+	}
+
+	/**
+	 * Returns true if a plan has been sealed or opened and not all of its batches have been executed.
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Returns the number of batches in the plan that has been sealed or opened.
+	 */
+	public int batches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of the next batch to execute.
+	 */
+	public int next() {
+		return next;
+	}
+
+	/**
+	 * Appends one rename to the plan, which is created by the first invocation.
+	 */
+	public void append(int batch, Rename rename) throws IOException {
+		if (open) {
+			throw new IllegalStateException("Journal already has a plan: " + new Path(dir, PLAN));
+		}
+
+		if (0 > batch) {
+			throw new IllegalArgumentException("Batch must be zero or positive: " + batch);
+		}
+
+		Path tmp = new Path(dir, TMP);
+
+		if (writers.isEmpty()) {
+			/*
+			 * Throw away the segments of a plan that was never sealed.
+			 */
+			fs.delete(tmp, true);
+
+			batches = 0;
+		}
+
+		String segment = (null == rename.src() ? DIRS : UNSORTED) + batch;
+
+		Writer writer = writers.get(segment);
+
+		if (null == writer) {
+			writer = SequenceFile.createWriter(fs, fs.getConf(), new Path(tmp, segment), Text.class, Rename.class);
+
+			writers.put(segment, writer);
+		}
+
+		writer.append(new Text(rename.destDir().toString()), rename);
+
+		batches = Math.max(batches, batch + 1);
+	}
+
+	/**
+	 * Completes the plan before any of it is executed. Returns false if nothing was appended, in which case there is no plan.
+	 */
+	public boolean seal() throws IOException {
+		if (writers.isEmpty()) {
+			return false;
+		}
+
+		closeWriters();
+
+		Path tmp = new Path(dir, TMP);
+		Path plan = new Path(dir, PLAN);
+
+		Sorter sorter = new Sorter(fs, Text.class, Rename.class, fs.getConf());
+
+		sorter.setMemory(SORT_MEMORY);
+
+		for (int i = 0; i < batches; i++) {
+			Path unsorted = new Path(tmp, UNSORTED + i);
+
+			if (fs.exists(unsorted)) {
+				sorter.sort(new Path[] { unsorted }, new Path(tmp, FILES + i), true);
+			}
+		}
+
+		if (!fs.rename(tmp, plan)) {
+			throw new IOException(format("Could not rename %s to %s", tmp, plan));
+		}
+
+		open = true;
+		next = 0;
+
+		return true;
+	}
+
+	/**
+	 * Discards the renames appended since the plan was last sealed.
+	 */
+	public void abandon() throws IOException {
+		if (!writers.isEmpty()) {
+			closeWriters();
+
+			fs.delete(new Path(dir, TMP), true);
+		}
+	}
+
+	private void closeWriters() throws IOException {
+		try {
+			for (Writer writer : writers.values()) {
+				writer.close();
+			}
+		} finally {
+			writers.clear();
+		}
+	}
+
+	/**
+	 * Returns the directories that one batch of the plan creates. The caller must close the cursor.
+	 */
+	public Cursor readDirs(int batch) throws IOException {
+		return read(DIRS + batch);
+	}
+
+	/**
+	 * Returns the files that one batch of the plan moves, sorted by their destination directories. The caller must close the cursor.
+	 */
+	public Cursor readFiles(int batch) throws IOException {
+		return read(FILES + batch);
+	}
+
+	private Cursor read(String segment) throws IOException {
+		Path path = new Path(new Path(dir, PLAN), segment);
+
+		return new Cursor(fs.exists(path) ? new Reader(fs, path, fs.getConf()) : null);
+	}
+
+	/**
+	 * Records that the given batch has been executed.
+	 */
+	public void complete(int batch) throws IOException {
+		Path marker = new Path(dir, DONE + batch);
+
+		fs.create(marker, false).close();
+
+		next = batch + 1;
+	}
+
+	/**
+	 * Deletes the plan and the markers once the whole plan has been executed.
+	 */
+	public void delete() throws IOException {
+		/*
+		 * The plan goes last so that a failure never leaves behind markers without their plan.
+		 */
+		for (FileStatus content : fs.listStatus(dir)) {
+			if (content.getPath().getName().startsWith(DONE)) {
+				delete(content.getPath(), false);
+			}
+		}
+
+		delete(new Path(dir, PLAN), true);
+
+		open = false;
+	}
+
+	private void delete(Path path, boolean recursive) throws IOException {
+		if (!fs.delete(path, recursive)) {
+			throw new IOException("Could not delete " + path);
+		}
+	}
+
+	/**
+	 * Opens the plan left behind by an earlier process. Returns false if there is none, in which case no rename was ever started or
+	 * all of them were completed. {@link #next()} then returns the first batch that still needs to be executed.
+	 */
+	public boolean open() throws IOException {
+		Path plan = new Path(dir, PLAN);
+
+		if (!fs.exists(plan)) {
+			return false;
+		}
+
+		batches = 0;
+
+		for (FileStatus content : fs.listStatus(plan)) {
+			String name = content.getPath().getName();
+
+			String prefix = name.startsWith(DIRS) ? DIRS : name.startsWith(FILES) ? FILES : null;
+
+			if (null != prefix) {
+				batches = Math.max(batches, Integer.parseInt(name.substring(prefix.length())) + 1);
+			}
+		}
+
+		Set<Integer> done = new HashSet<Integer>();
+
+		for (FileStatus content : fs.listStatus(dir)) {
+			String name = content.getPath().getName();
+
+			if (name.startsWith(DONE)) {
+				done.add(Integer.parseInt(name.substring(DONE.length())));
+			}
+		}
+
+		next = 0;
+
+		while (done.contains(next)) {
+			next++;
+		}
+
+		open = true;
+
+		return true;
+	}
+
+	/**
+	 * Streams the renames of one segment of the plan.
+	 */
+	static class Cursor implements Closeable {
+
+		/**
+		 * Null if the segment is empty.
+		 */
+		private final Reader reader;
+
+		private final Text key = new Text();
+
+		private Cursor(Reader reader) {
+			super();
+
+			this.reader = reader;
+		}
+
+		/**
+		 * Returns the next rename or null if there are no more.
+		 */
+		public Rename next() throws IOException {
+			if (null == reader) {
+				return null;
+			}
+
+			Rename rename = new Rename();
+
+			return reader.next(key, rename) ? rename : null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (null != reader) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves a file or directory into a directory, or creates a directory if there is no source.
+	 */
+	static class Rename implements Writable {
+
+		private Path src;
+
+		private Path destDir;
+
+		private String fileName;
+
+		private boolean mayHaveExtension;
+
+		private FsPermission permission;
+
+		public Rename() {
+			super();
+		}
+
+		public Rename(Path src, Path destDir, String fileName, boolean mayHaveExtension, FsPermission permission) {
+			super();
+
+			this.src = src;
+			this.destDir = destDir;
+			this.fileName = fileName;
+			this.mayHaveExtension = mayHaveExtension;
+			this.permission = permission;
+		}
+
+		/**
+		 * Returns null if the rename creates the {@link #destDir() directory}.
+		 */
+		public Path src() {
+			return src;
+		}
+
+		public Path destDir() {
+			return destDir;
+		}
+
+		/**
+		 * Returns the destination of the source, which may be the {@link #src()} with a codec extension appended.
+		 */
+		public Path dest(Path actualSrc) {
+			return new Path(destDir, null == fileName ? actualSrc.getName() : fileName);
+		}
+
+		/**
+		 * True if the output format may have appended a codec extension to the name of the source.
+		 */
+		public boolean mayHaveExtension() {
+			return mayHaveExtension;
+		}
+
+		/**
+		 * The permission of the created directory. May be null.
+		 */
+		public FsPermission permission() {
+			return permission;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			Text.writeString(out, null == src ? "" : src.toString());
+			Text.writeString(out, destDir.toString());
+			Text.writeString(out, null == fileName ? "" : fileName);
+
+			out.writeBoolean(mayHaveExtension);
+			out.writeShort(null == permission ? -1 : permission.toShort());
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			String path = Text.readString(in);
+
+			src = path.isEmpty() ? null : new Path(path);
+			destDir = new Path(Text.readString(in));
+
+			String name = Text.readString(in);
+
+			fileName = name.isEmpty() ? null : name;
+			mayHaveExtension = in.readBoolean();
+
+			short mode = in.readShort();
+
+			permission = -1 == mode ? null : new FsPermission(mode);
+		}
+
+		@Override
+		public String toString() {
+			return format("%s => %s", src, null == src ? destDir : dest(src));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * <p>
+ * A source file as it appears in the values of the bucket file: its path followed by a tab and its length. The planner already
+ * knows the length of every file it buckets, so carrying it saves the reducer the calls to the name node that would otherwise
+ * rediscover it.
+ * </p>
+ *
+ * <p>
+ * Values that are plain paths are still accepted, in which case the length is unknown.
+ * </p>
+ */
+class SourceFile {
+
+	private final String path;
+
+	private final long length;
+
+	private SourceFile(String path, long length) {
+		super();
+
+		this.path = path;
+		this.length = length;
+	}
+
+	/**
+	 * Returns the bucket file value for a path and length.
+	 */
+	public static String format(String path, long length) {
+		return path + "\t" + length;
+	}
+
+	/**
+	 * Parses a bucket file value.
+	 */
+	public static SourceFile parse(String value) {
+		int idx = value.lastIndexOf('\t');
+
+		if (-1 == idx || idx == value.length() - 1) {
+			return new SourceFile(value, -1);
+		}
+
+		for (int i = idx + 1; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return new SourceFile(value, -1);
+			}
+		}
+
+		return new SourceFile(value.substring(0, idx), Long.parseLong(value.substring(idx + 1)));
+	}
+
+	public String path() {
+		return path;
+	}
+
+	/**
+	 * Returns the length of the file or -1 if it is not known.
+	 */
+	public long length() {
+		return length;
+	}
+
+	public Path toPath() {
+		return new Path(path);
+	}
+
+	@Override
+	public String toString() {
+		return format(path, length);
+	}
+}
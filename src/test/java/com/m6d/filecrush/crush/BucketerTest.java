@@ -15,16 +15,21 @@
  */
 package com.m6d.filecrush.crush;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.util.List;
+
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.m6d.filecrush.crush.Bucketer;
+import com.m6d.filecrush.crush.Bucketer.Bucket;
 import com.m6d.filecrush.crush.FileStatusHasSize;
 import com.m6d.filecrush.crush.Bucketer.HasSize;
 
@@ -94,5 +99,88 @@ public class BucketerTest {
 
 		assertThat(bucketer.createBuckets(), equalTo((Object) emptyList()));
 	}
-}
 
+	/**
+	 * Many equal files spread evenly over many buckets, which are returned in index order.
+	 */
+	@Test
+	public void manyBuckets() {
+		bucketer = new Bucketer(500, 2000, true);
+		bucketer.reset("many");
+
+		for (int i = 0; i < 100000; i++) {
+			bucketer.add(new FileStatusHasSize(new FileStatus(10, false, 3, 1024, 0, new Path("file" + i))));
+		}
+
+		List<Bucket> buckets = bucketer.createBuckets();
+
+		assertThat(buckets.size(), equalTo(500));
+
+		for (int i = 0; i < buckets.size(); i++) {
+			Bucket bucket = buckets.get(i);
+
+			assertThat(bucket.name(), equalTo("many-" + i));
+			assertThat(bucket.contents().size(), equalTo(200));
+			assertThat(bucket.contents().get(0), equalTo("file" + i));
+			assertThat(bucket.bytes(), equalTo(2000L));
+		}
+
+		/*
+		 * The storage that grew is given back and the bucketer can be reused.
+		 */
+		bucketer.reset("few");
+
+		bucketer.add(new FileStatusHasSize(new FileStatus(10, false, 3, 1024, 0, new Path("small1"))));
+		bucketer.add(new FileStatusHasSize(new FileStatus(20, false, 3, 1024, 0, new Path("small2"))));
+
+		assertThat(bucketer.count(), equalTo(2));
+		assertThat(bucketer.createBuckets(), equalTo((Object) asList(new Bucket("few-0", asList("small2", "small1"), 30))));
+	}
+
+	/**
+	 * The directory is stored once but ids in other directories come back whole.
+	 */
+	@Test
+	public void prefixes() {
+		bucketer = new Bucketer(2, false);
+		bucketer.reset("/in/a");
+
+		bucketer.add(new FileStatusHasSize(new FileStatus(40, false, 3, 1024, 0, new Path("/in/a/file1"))));
+		bucketer.add(new FileStatusHasSize(new FileStatus(30, false, 3, 1024, 0, new Path("/in/b/file2"))));
+		bucketer.add(new FileStatusHasSize(new FileStatus(20, false, 3, 1024, 0, new Path("/in/a/file3"))));
+		bucketer.add(new FileStatusHasSize(new FileStatus(10, false, 3, 1024, 0, new Path("/in/file4"))));
+
+		assertThat(bucketer.createBuckets(), equalTo((Object) asList(
+				new Bucket("/in/a-0", asList("/in/a/file1", "/in/file4"), 50),
+				new Bucket("/in/a-1", asList("/in/b/file2", "/in/a/file3"), 50))));
+	}
+
+	/**
+	 * Files stored on the same host end up together as long as no bucket grows beyond the average.
+	 */
+	@Test
+	public void locality() {
+		bucketer = new Bucketer(3, false);
+		bucketer.reset("hosts");
+
+		for (int i = 0; i < 12; i++) {
+			bucketer.add(new FileStatusHasSize(new FileStatus(10, false, 3, 1024, 0, new Path("file" + i))), asList("host" + i / 4));
+		}
+
+		assertThat(bucketer.createBuckets(), equalTo((Object) asList(
+				new Bucket("hosts-0", asList("file0", "file1", "file2", "file3"), 40, asList("host0")),
+				new Bucket("hosts-1", asList("file4", "file5", "file6", "file7"), 40, asList("host1")),
+				new Bucket("hosts-2", asList("file8", "file9", "file10", "file11"), 40, asList("host2")))));
+
+		bucketer.reset("two-hosts");
+
+		for (int i = 0; i < 12; i++) {
+			bucketer.add(new FileStatusHasSize(new FileStatus(10, false, 3, 1024, 0, new Path("file" + i))), asList("host0", "host1"));
+		}
+
+		assertThat(bucketer.createBuckets(), equalTo((Object) asList(
+				new Bucket("two-hosts-0", asList("file0", "file1", "file2", "file3"), 40, asList("host0", "host1")),
+				new Bucket("two-hosts-1", asList("file4", "file5", "file6", "file7"), 40, asList("host0", "host1")),
+				new Bucket("two-hosts-2", asList("file8", "file9", "file10", "file11"), 40, asList("host0", "host1")))));
+	}
+}
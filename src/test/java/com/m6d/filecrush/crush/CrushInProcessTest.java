@@ -0,0 +1,403 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Crushes a tree in process without submitting a job. Dfs block size is 50 so files of up to 37 bytes are crushed.
+ */
+@SuppressWarnings("deprecation")
+public class CrushInProcessTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private JobConf job;
+
+	private File in;
+
+	private File out;
+
+	@Before
+	public void setup() throws Exception {
+		job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+		job.setInt("mapred.reduce.tasks", 5);
+		job.setLong("dfs.block.size", 50);
+
+		/*
+		 * The local job runner would need a local dir, so a crush that submitted a job would fail.
+		 */
+		job.setLong(Crush.LOCAL_MAX_BYTES, 0);
+
+		/*
+		 * Keep the temporary directory of the crush out of the build directory.
+		 */
+		FileSystem.get(job).setWorkingDirectory(new Path(tmp.getRoot().getAbsolutePath()));
+
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					file0..file3 2 lines each
+		 * 					huge 25 lines
+		 * 			b/
+		 * 					file4..file5 3 lines each
+		 * 					c/
+		 * 							file6..file7 2 lines each
+		 */
+		in = tmp.newFolder("in");
+
+		File a = tmp.newFolder("in/a");
+
+		for (int i = 0; i < 4; i++) {
+			createFile(a, "file" + i, i, 2);
+		}
+
+		createFile(a, "huge", 9, 25);
+
+		File b = tmp.newFolder("in/b");
+
+		for (int i = 4; i < 6; i++) {
+			createFile(b, "file" + i, i, 3);
+		}
+
+		File c = tmp.newFolder("in/b/c");
+
+		for (int i = 6; i < 8; i++) {
+			createFile(c, "file" + i, i, 2);
+		}
+
+		out = new File(tmp.getRoot(), "out");
+	}
+
+	@Test
+	public void oneThread() throws Exception {
+		Crush crush = run("--in-process", "1");
+
+		verifyCounters(crush);
+		verifyOutput();
+	}
+
+	@Test
+	public void manyThreads() throws Exception {
+		Crush crush = run("--in-process", "3");
+
+		verifyCounters(crush);
+		verifyOutput();
+	}
+
+	@Test
+	public void cloneMode() throws Exception {
+		Crush crush = run("--in-process", "3", "--clone");
+
+		verifyCounters(crush);
+
+		/*
+		 * The crush output files replace the crushed files in the source directory and the crushed files are moved to the clone
+		 * directory.
+		 */
+		File inA = new File(in, "a");
+		File cloneA = new File(out, inA.getAbsolutePath().substring(1));
+
+		assertThat(readLines(new File(inA, "crushed")), equalTo(expectedLines(0, 1, 2, 3)));
+		assertThat(readLines(new File(in, "b/crushed")), equalTo(expectedLines(4, 5)));
+		assertThat(readLines(new File(in, "b/c/crushed")), equalTo(expectedLines(6, 7)));
+
+		assertThat(new File(inA, "huge").exists(), is(true));
+
+		for (int i = 0; i < 4; i++) {
+			assertThat(new File(inA, "file" + i).exists(), is(false));
+			assertThat(new File(cloneA, "file" + i).exists(), is(true));
+		}
+	}
+
+	/**
+	 * A swap that fails after the source directory was moved to the clone directory and before the new directory took its place is
+	 * finished by resuming, even though the source directory no longer exists.
+	 */
+	@Test
+	public void resumeSwap() throws Exception {
+		File c = new File(in, "b/c");
+		File cloneC = new File(out, c.getAbsolutePath().substring(1));
+
+		String[] args = {
+				"--in-process", "1",
+				"--clone",
+				"--regex=.+",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=none",
+
+				c.getAbsolutePath(), out.getAbsolutePath(), "20101116123015" };
+
+		FileSystem.closeAll();
+
+		job.set("fs.file.impl", FailingFileSystem.class.getName());
+
+		FileSystem.get(job).setWorkingDirectory(new Path(tmp.getRoot().getAbsolutePath()));
+
+		try {
+			Crush crush = new Crush();
+
+			FailingFileSystem.failing = true;
+
+			try {
+				ToolRunner.run(job, crush, args);
+				fail();
+			} catch (IOException e) {
+				if (!e.getMessage().contains(".c.crush")) {
+					throw e;
+				}
+			} finally {
+				FailingFileSystem.failing = false;
+			}
+
+			assertThat(c.exists(), is(false));
+			assertThat(new File(cloneC, "file6").exists(), is(true));
+			assertThat(new File(in, "b/.c.crush/crushed").exists(), is(true));
+
+			List<String> resume = new ArrayList<String>(asList("--resume", crush.getTmpDir().toUri().getPath()));
+
+			resume.addAll(asList(args));
+
+			ToolRunner.run(job, new Crush(), resume.toArray(new String[resume.size()]));
+		} finally {
+			FileSystem.closeAll();
+		}
+
+		assertThat(readLines(new File(c, "crushed")), equalTo(expectedLines(6, 7)));
+		assertThat(new File(c, "file6").exists(), is(false));
+		assertThat(new File(in, "b/.c.crush").exists(), is(false));
+
+		for (int i = 6; i < 8; i++) {
+			assertThat(new File(cloneC, "file" + i).exists(), is(true));
+		}
+	}
+
+	@Test
+	public void listing() throws Exception {
+		File listing = writeListing(new File(in, "a/file3"), -1);
+
+		run("--in-process", "2", "--listing", listing.getAbsolutePath());
+
+		/*
+		 * The file that is not in the listing is left alone.
+		 */
+		assertThat(readLines(new File(out, "a/crushed")), equalTo(expectedLines(0, 1, 2)));
+		assertThat(readLines(new File(out, "b/c/crushed")), equalTo(expectedLines(6, 7)));
+
+		assertThat(new File(in, "a/file3").exists(), is(true));
+		assertThat(new File(out, "a/file3").exists(), is(false));
+	}
+
+	@Test
+	public void listingOutOfDate() throws Exception {
+		File listing = writeListing(new File(in, "b/file5"), 3);
+
+		try {
+			run("--in-process", "2", "--listing", listing.getAbsolutePath());
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("changed since it was listed")) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Writes the input tree in the format of <code>hadoop fs -lsr</code>, giving one file a different length or leaving it out if the
+	 * length is negative.
+	 */
+	private File writeListing(File changed, long changedLength) throws IOException {
+		File listing = tmp.newFile("listing");
+
+		PrintWriter writer = new PrintWriter(listing);
+
+		try {
+			writeListing(writer, in, changed, changedLength);
+		} finally {
+			writer.close();
+		}
+
+		return listing;
+	}
+
+	private static void writeListing(PrintWriter writer, File dir, File changed, long changedLength) {
+		for (File file : dir.listFiles()) {
+			long length = file.length();
+
+			if (file.equals(changed)) {
+				if (0 > changedLength) {
+					continue;
+				}
+
+				length = changedLength;
+			}
+
+			if (file.isDirectory()) {
+				writer.println(format("drwxr-xr-x   - joe staff %12d 2011-03-04 05:06 %s", 0, file.getAbsolutePath()));
+
+				writeListing(writer, file, changed, changedLength);
+			} else {
+				writer.println(format("-rw-r--r--   3 joe staff %12d 2011-03-04 05:06 %s", length, file.getAbsolutePath()));
+			}
+		}
+	}
+
+	/**
+	 * The crushed files are counted as if a job had crushed them.
+	 */
+	private void verifyCounters(Crush crush) {
+		assertThat(crush.isLocal(), is(false));
+
+		Counters counters = crush.getJobCounters();
+
+		assertThat(counters.getCounter(MapperCounter.FILES_ELIGIBLE), equalTo(8L));
+		assertThat(counters.getCounter(MapperCounter.FILES_SKIPPED), equalTo(1L));
+		assertThat(counters.getCounter(ReducerCounter.FILES_CRUSHED), equalTo(8L));
+		assertThat(counters.getCounter(ReducerCounter.BYTES_CRUSHED), equalTo(4 * 2 * 4L + 2 * 3 * 4L + 2 * 2 * 4L));
+	}
+
+	private Crush run(String... options) throws Exception {
+		List<String> args = new ArrayList<String>(asList(options));
+
+		args.addAll(asList(
+				"--regex=.+",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=none",
+
+				in.getAbsolutePath(), out.getAbsolutePath(), "20101116123015"));
+
+		Crush crush = new Crush();
+
+		ToolRunner.run(job, crush, args.toArray(new String[args.size()]));
+
+		return crush;
+	}
+
+	private void verifyOutput() throws IOException {
+		/*
+		 * The crush output files and the skipped file are moved to the same place in the output directory as they had in the input
+		 * directory.
+		 */
+		File outA = new File(out, "a");
+
+		assertThat(readLines(new File(outA, "crushed")), equalTo(expectedLines(0, 1, 2, 3)));
+		assertThat(readLines(new File(out, "b/crushed")), equalTo(expectedLines(4, 5)));
+		assertThat(readLines(new File(out, "b/c/crushed")), equalTo(expectedLines(6, 7)));
+
+		assertThat(new File(outA, "huge").length(), equalTo(25 * 4L));
+		assertThat(new File(in, "a/huge").exists(), is(false));
+
+		/*
+		 * The crushed files stay put.
+		 */
+		for (int i = 0; i < 8; i++) {
+			assertThat(new File(in, (i < 4 ? "a/" : i < 6 ? "b/" : "b/c/") + "file" + i).exists(), is(true));
+		}
+	}
+
+	private List<String> expectedLines(int... keys) {
+		List<String> lines = new ArrayList<String>();
+
+		for (int key : keys) {
+			for (int i = 0; i < (4 <= key && key < 6 ? 3 : 2); i++) {
+				lines.add(format("%d\t%d", key, i));
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Returns the lines of the file sorted, since the order in which the files are crushed is not specified.
+	 */
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+			String line;
+
+			while (null != (line = reader.readLine())) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+
+		Collections.sort(lines);
+
+		return lines;
+	}
+
+	private static void createFile(File dir, String fileName, int key, int count) throws IOException {
+		PrintWriter writer = new PrintWriter(new File(dir, fileName));
+
+		for (int i = 0; i < count; i++) {
+			writer.write(format("%d\t%d\n", key, i % 10));
+		}
+
+		writer.close();
+	}
+
+	/**
+	 * Fails to rename the new directory of a swap into place while {@link #failing} is set.
+	 */
+	public static class FailingFileSystem extends LocalFileSystem {
+		static volatile boolean failing;
+
+		@Override
+		public boolean rename(Path src, Path dst) throws IOException {
+			if (failing && src.getName().endsWith(".crush")) {
+				throw new IOException("Failed to rename " + src);
+			}
+
+			return super.rename(src, dst);
+		}
+	}
+}
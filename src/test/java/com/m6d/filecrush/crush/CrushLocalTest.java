@@ -0,0 +1,314 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Crushes small plans in process with the local job runner. Dfs block size is 50 so files of up to 37 bytes are crushed.
+ */
+@SuppressWarnings("deprecation")
+public class CrushLocalTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private JobConf job;
+
+	private File in;
+
+	private File out;
+
+	@Before
+	public void setup() throws Exception {
+		job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+		job.set("mapred.local.dir", new File(tmp.getRoot(), "local").getAbsolutePath());
+		job.setInt("mapred.reduce.tasks", 5);
+		job.setLong("dfs.block.size", 50);
+
+		/*
+		 * Keep the temporary directory of the crush out of the build directory.
+		 */
+		FileSystem.get(job).setWorkingDirectory(new Path(tmp.getRoot().getAbsolutePath()));
+
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					file0..file3 2 lines each
+		 * 					huge 25 lines
+		 * 			b/
+		 * 					file4..file5 3 lines each
+		 */
+		in = tmp.newFolder("in");
+
+		File a = tmp.newFolder("in/a");
+
+		for (int i = 0; i < 4; i++) {
+			createFile(a, "file" + i, i, 2);
+		}
+
+		createFile(a, "huge", 9, 25);
+
+		File b = tmp.newFolder("in/b");
+
+		for (int i = 4; i < 6; i++) {
+			createFile(b, "file" + i, i, 3);
+		}
+
+		out = new File(tmp.getRoot(), "out");
+	}
+
+	/**
+	 * Runs with the default limits. The job tracker does not exist, so submitting a job would fail.
+	 */
+	@Test
+	public void local() throws Exception {
+		job.set("mapred.job.tracker", "localhost:1");
+
+		Crush crush = run();
+
+		assertThat(crush.isLocal(), is(true));
+		assertThat(crush.isMapOnly(), is(true));
+
+		verifyOutput();
+	}
+
+	@Test
+	public void localMapOnly() throws Exception {
+		Crush crush = run("--map-only");
+
+		assertThat(crush.isLocal(), is(true));
+
+		verifyOutput();
+	}
+
+	@Test
+	public void distributedPlanning() throws Exception {
+		Crush crush = run("--plan-tasks=2");
+
+		assertThat(crush.isLocal(), is(true));
+		assertThat(crush.getJobCounters().getCounter(MapperCounter.DIRS_FOUND), equalTo(3L));
+		assertThat(crush.getJobCounters().getCounter(MapperCounter.FILES_ELIGIBLE), equalTo(6L));
+		assertThat(crush.getJobCounters().getCounter(MapperCounter.FILES_SKIPPED), equalTo(1L));
+
+		verifyOutput();
+	}
+
+	@Test
+	public void perSpecLimits() throws Exception {
+		/*
+		 * The files of b are 12 bytes long, which is more than 20% of a block.
+		 */
+		ToolRunner.run(job, new Crush(), new String[] {
+				"--regex=.+/a",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=gzip",
+				"--threshold=0.75",
+
+				"--regex=.+/b",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=none",
+				"--threshold=0.2",
+
+				"--regex=.+",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=none",
+				"--threshold=0.75",
+
+				in.getAbsolutePath(), out.getAbsolutePath(), "20101116123015" });
+
+		assertThat(readLines(new GZIPInputStream(new FileInputStream(new File(out, "a/crushed.gz")))), equalTo(expectedLines(0, 1,
+				2, 3)));
+		assertThat(new File(out, "a/huge").exists(), is(true));
+
+		assertThat(new File(out, "b/crushed").exists(), is(false));
+		assertThat(readLines(new File(out, "b/file4")), equalTo(expectedLines(4)));
+		assertThat(readLines(new File(out, "b/file5")), equalTo(expectedLines(5)));
+	}
+
+	@Test
+	public void tooManyFiles() throws Exception {
+		job.setLong(Crush.LOCAL_MAX_FILES, 5);
+
+		assertThat(plan().isLocal(), is(false));
+	}
+
+	@Test
+	public void tooManyBytes() throws Exception {
+		job.setLong(Crush.LOCAL_MAX_BYTES, 55);
+
+		assertThat(plan().isLocal(), is(false));
+	}
+
+	@Test
+	public void justSmallEnough() throws Exception {
+		job.setLong(Crush.LOCAL_MAX_FILES, 6);
+		job.setLong(Crush.LOCAL_MAX_BYTES, 56);
+
+		assertThat(plan().isLocal(), is(true));
+	}
+
+	@Test
+	public void disabled() throws Exception {
+		job.setLong(Crush.LOCAL_MAX_BYTES, 0);
+
+		Crush crush = plan();
+
+		assertThat(crush.isLocal(), is(false));
+		assertThat(crush.isMapOnly(), is(false));
+	}
+
+	private String[] args(String... options) {
+		List<String> args = new ArrayList<String>(asList(options));
+
+		args.addAll(asList(
+				"--regex=.+",
+				"--replacement=crushed",
+				"--input-format=text",
+				"--output-format=text",
+				"--compress=none",
+
+				in.getAbsolutePath(), out.getAbsolutePath(), "20101116123015"));
+
+		return args.toArray(new String[args.size()]);
+	}
+
+	private Crush run(String... options) throws Exception {
+		Crush crush = new Crush();
+
+		ToolRunner.run(job, crush, args(options));
+
+		return crush;
+	}
+
+	/**
+	 * Plans the crush without running it.
+	 */
+	private Crush plan() throws Exception {
+		Crush crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(FileSystem.get(job));
+		crush.createJobConfAndParseArgs(args());
+		crush.writeDirs();
+
+		return crush;
+	}
+
+	private void verifyOutput() throws IOException {
+		/*
+		 * The crush output files and the skipped file are moved to the same place in the output directory as they had in the input
+		 * directory.
+		 */
+		File outA = new File(out, "a");
+		File outB = new File(out, "b");
+
+		assertThat(readLines(new File(outA, "crushed")), equalTo(expectedLines(0, 1, 2, 3)));
+		assertThat(readLines(new File(outB, "crushed")), equalTo(expectedLines(4, 5)));
+
+		assertThat(new File(outA, "huge").length(), equalTo(25 * 4L));
+		assertThat(new File(in, "a/huge").exists(), is(false));
+
+		/*
+		 * The crushed files stay put.
+		 */
+		for (int i = 0; i < 4; i++) {
+			assertThat(new File(in, "a/file" + i).exists(), is(true));
+		}
+	}
+
+	private List<String> expectedLines(int... keys) {
+		List<String> lines = new ArrayList<String>();
+
+		for (int key : keys) {
+			for (int i = 0; i < (key < 4 ? 2 : 3); i++) {
+				lines.add(format("%d\t%d", key, i));
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Returns the lines of the file sorted, since the order in which the files are crushed is not specified.
+	 */
+	private static List<String> readLines(File file) throws IOException {
+		return readLines(new FileInputStream(file));
+	}
+
+	private static List<String> readLines(InputStream in) throws IOException {
+		List<String> lines = new ArrayList<String>();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+		try {
+			String line;
+
+			while (null != (line = reader.readLine())) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+
+		Collections.sort(lines);
+
+		return lines;
+	}
+
+	private static void createFile(File dir, String fileName, int key, int count) throws IOException {
+		PrintWriter writer = new PrintWriter(new File(dir, fileName));
+
+		for (int i = 0; i < count; i++) {
+			writer.write(format("%d\t%d\n", key, i % 10));
+		}
+
+		writer.close();
+	}
+}
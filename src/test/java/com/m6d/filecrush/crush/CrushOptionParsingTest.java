@@ -15,13 +15,16 @@
  */
 package com.m6d.filecrush.crush;
 
+import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.apache.hadoop.fs.FileSystem;
@@ -314,7 +317,20 @@ public class CrushOptionParsingTest {
 		assertThat(job.get("mapred.output.compression.type"), equalTo("BLOCK"));
 		assertThat(job.get("mapred.output.compression.codec"), equalTo("org.apache.hadoop.io.compress.DefaultCodec"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(8));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(8));
+		assertThat(crush.getScanThreads(), equalTo(1));
+		assertThat(crush.getMoveThreads(), equalTo(1));
+		assertThat(crush.getStateFile(), nullValue());
+		assertThat(crush.isVerifyUnchanged(), equalTo(false));
+		assertThat(crush.getCalibrationFile(), nullValue());
+		assertThat(crush.getAutoTaskMinutes(), equalTo(0.0));
+		assertThat(crush.getInProcessThreads(), equalTo(0));
+		assertThat(crush.getListingFile(), nullValue());
+		assertThat(crush.getPlanTasks(), equalTo(0));
+		assertThat(job.getBoolean(CrushReducer.VERIFY_SOURCES, false), equalTo(false));
+		assertThat(crush.isMapOnly(), equalTo(false));
+		assertThat(crush.isResume(), equalTo(false));
+		assertThat(crush.isLocality(), equalTo(false));
 
 		assertThat(job.get("crush.timestamp"), equalTo("20101116123015"));
 
@@ -326,6 +342,449 @@ public class CrushOptionParsingTest {
 		assertThat(job.get("crush.0.output.format"), equalTo("org.apache.hadoop.mapred.SequenceFileOutputFormat"));
 	}
 
+	@Test
+	public void badScanThreads() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--scan-threads", "0",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("0")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void badMoveThreads() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--move-threads", "0",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("0")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void resume() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--resume", "tmp/crush-failed",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		assertThat(crush.isResume(), equalTo(true));
+		assertThat(crush.getTmpDir(), equalTo(new Path("tmp/crush-failed")));
+	}
+
+	@Test
+	public void verifyUnchangedNotIncremental() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--verify-unchanged",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("incremental")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void incrementalStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--incremental", "crush-state",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("incremental")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void calibrationStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--calibration", "crush-calibration",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("calibrated")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void autoTasksStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--auto-tasks", "10",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("auto tasks")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void autoTasksNotPositive() throws Exception {
+		for (String minutes : new String[] { "0", "-1", "NaN", "Infinity" }) {
+			try {
+				crush.createJobConfAndParseArgs(
+						"--auto-tasks", minutes,
+						tmp.newFolder("in" + minutes).getAbsolutePath(),
+						tmp.newFolder("out" + minutes).getAbsolutePath(),
+						"20101116123015");
+				fail(minutes);
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("Auto tasks")) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void inProcess() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--in-process", "4",
+				"--clone",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		assertThat(crush.getInProcessThreads(), equalTo(4));
+	}
+
+	@Test
+	public void inProcessStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--in-process", "4",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("in process")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void inProcessNotPositive() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--in-process", "0",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("In process")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void inProcessWithJobOptions() throws Exception {
+		for (String option : new String[] { "--map-only", "--locality", "--calibration=crush-calibration", "--auto-tasks=10" }) {
+			try {
+				crush.createJobConfAndParseArgs(
+						"--in-process", "4",
+						option,
+						tmp.newFolder("in" + option).getAbsolutePath(),
+						tmp.newFolder("out" + option).getAbsolutePath(),
+						"20101116123015");
+				fail(option);
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("In process crush")) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void listing() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--listing", "namespace.lsr",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		assertThat(crush.getListingFile(), equalTo(new Path("namespace.lsr")));
+		assertThat(crush.getJob().getBoolean(CrushReducer.VERIFY_SOURCES, false), equalTo(true));
+	}
+
+	@Test
+	public void listingStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--listing", "namespace.lsr",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("listing")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void listingIncremental() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--listing", "namespace.lsr",
+					"--incremental", "crush-state",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("listing")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void listingLocality() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--listing", "namespace.lsr",
+					"--locality",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("listing cannot use locality")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void planTasks() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--plan-tasks", "20",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		assertThat(crush.getPlanTasks(), equalTo(20));
+	}
+
+	@Test
+	public void planTasksStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--plan-tasks", "20",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("plan tasks")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void planTasksNotPositive() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--plan-tasks", "0",
+					tmp.newFolder("in").getAbsolutePath(),
+					tmp.newFolder("out").getAbsolutePath(),
+					"20101116123015");
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("Plan tasks")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void planTasksWithClientOptions() throws Exception {
+		for (String option : new String[] { "--incremental=crush-state", "--listing=namespace.lsr", "--in-process=4", "--locality" }) {
+			try {
+				crush.createJobConfAndParseArgs(
+						"--plan-tasks", "20",
+						option,
+						tmp.newFolder("in" + option).getAbsolutePath(),
+						tmp.newFolder("out" + option).getAbsolutePath(),
+						"20101116123015");
+				fail(option);
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("cannot use plan tasks")) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void perSpecLimits() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--regex", ".+/clicks/.+",
+				"--replacement", "clicks",
+				"--input-format", "text",
+				"--output-format", "text",
+				"--threshold", "0.5",
+				"--max-file-blocks", "16",
+				"--compress", "gzip",
+				"--regex", ".+/dims/.+",
+				"--replacement", "dims",
+				"--input-format", "sequence",
+				"--output-format", "sequence",
+				"--threshold", "0.25",
+				"--max-file-blocks", "2",
+				"--compress", "none",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		JobConf job = crush.getJob();
+
+		assertThat(job.get("crush.0.threshold"), equalTo("0.5"));
+		assertThat(job.get("crush.0.max.file.blocks"), equalTo("16"));
+		assertThat(job.get("crush.0.output.compress"), equalTo("true"));
+		assertThat(job.get("crush.0.output.compression.codec"), equalTo("org.apache.hadoop.io.compress.GzipCodec"));
+
+		assertThat(job.get("crush.1.threshold"), equalTo("0.25"));
+		assertThat(job.get("crush.1.max.file.blocks"), equalTo("2"));
+		assertThat(job.get("crush.1.output.compress"), equalTo("false"));
+		assertThat(job.get("crush.1.output.compression.codec"), nullValue());
+
+		/*
+		 * The job keeps the default codec.
+		 */
+		assertThat(job.get("mapred.output.compression.codec"), equalTo("org.apache.hadoop.io.compress.DefaultCodec"));
+
+		assertThat(crush.getMaxEligibleSize(0), equalTo(1024L * 1024 * 32));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(16));
+		assertThat(crush.getMaxEligibleSize(1), equalTo(1024L * 1024 * 16));
+		assertThat(crush.getMaxFileBlocks(1), equalTo(2));
+	}
+
+	@Test
+	public void sharedLimits() throws Exception {
+		crush.createJobConfAndParseArgs(
+				"--regex", ".+/clicks/.+",
+				"--replacement", "clicks",
+				"--input-format", "text",
+				"--output-format", "text",
+				"--regex", ".+/dims/.+",
+				"--replacement", "dims",
+				"--input-format", "sequence",
+				"--output-format", "sequence",
+				"--threshold", "0.5",
+				"--max-file-blocks", "16",
+				"--compress", "gzip",
+				tmp.newFolder("in").getAbsolutePath(),
+				tmp.newFolder("out").getAbsolutePath(),
+				"20101116123015");
+
+		JobConf job = crush.getJob();
+
+		for (int i = 0; i < 2; i++) {
+			assertThat(crush.getMaxEligibleSize(i), equalTo(1024L * 1024 * 32));
+			assertThat(crush.getMaxFileBlocks(i), equalTo(16));
+			assertThat(job.get(format("crush.%d.output.compress", i)), nullValue());
+		}
+
+		assertThat(job.get("mapred.output.compression.codec"), equalTo("org.apache.hadoop.io.compress.GzipCodec"));
+	}
+
+	@Test
+	public void perSpecLimitsCount() throws Exception {
+		for (String option : new String[] { "--threshold", "--max-file-blocks", "--compress" }) {
+			String value = "--compress".equals(option) ? "none" : "1";
+
+			try {
+				crush.createJobConfAndParseArgs(
+						"--regex", ".+/clicks/.+",
+						"--replacement", "clicks",
+						"--input-format", "text",
+						"--output-format", "text",
+						option, value,
+						"--regex", ".+/dims/.+",
+						"--replacement", "dims",
+						"--input-format", "text",
+						"--output-format", "text",
+						option, value,
+						"--regex", ".+",
+						"--replacement", "other",
+						"--input-format", "text",
+						"--output-format", "text",
+						tmp.newFolder("in" + option).getAbsolutePath(),
+						tmp.newFolder("out" + option).getAbsolutePath(),
+						"20101116123015");
+				fail(option);
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains("one for each regex")) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void mapOnlyStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--map-only",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("map only")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void localityStandAlone() throws Exception {
+		try {
+			crush.createJobConfAndParseArgs(
+					"--locality",
+					tmp.newFolder("in").getAbsolutePath(),
+					new File(tmp.getRoot(), "out").getAbsolutePath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains("locality")) {
+				throw e;
+			}
+		}
+	}
+
 	@Test
 	public void disableCompression() throws Exception {
 		crush.createJobConfAndParseArgs(
@@ -339,7 +798,7 @@ public class CrushOptionParsingTest {
 		assertThat(job.get("mapred.reduce.tasks"), equalTo("20"));
 		assertThat(job.get("mapred.output.compress"), equalTo("false"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(8));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(8));
 
 		assertThat(job.get("crush.timestamp"), equalTo("20101116123015"));
 
@@ -369,6 +828,14 @@ public class CrushOptionParsingTest {
 				"--threshold", "0.5",
 				"--max-file-blocks", "100",
 				"--compress", "org.apache.hadoop.io.compress.DefaultCodec",
+				"--scan-threads", "16",
+				"--move-threads", "8",
+				"--incremental", "crush-state",
+				"--verify-unchanged",
+				"--calibration", "crush-calibration",
+				"--auto-tasks", "2.5",
+				"--map-only",
+				"--locality",
 
 				tmp.newFolder("in").getAbsolutePath(), tmp.newFolder("out").getAbsolutePath(), "20101116123015");
 
@@ -378,7 +845,15 @@ public class CrushOptionParsingTest {
 		assertThat(job.get("mapred.output.compress"), equalTo("true"));
 		assertThat(job.get("mapred.output.compression.codec"), equalTo("org.apache.hadoop.io.compress.DefaultCodec"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(100));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(100));
+		assertThat(crush.getScanThreads(), equalTo(16));
+		assertThat(crush.getMoveThreads(), equalTo(8));
+		assertThat(crush.getStateFile(), equalTo(new Path("crush-state")));
+		assertThat(crush.isVerifyUnchanged(), equalTo(true));
+		assertThat(crush.getCalibrationFile(), equalTo(new Path("crush-calibration")));
+		assertThat(crush.getAutoTaskMinutes(), equalTo(2.5));
+		assertThat(crush.isMapOnly(), equalTo(true));
+		assertThat(crush.isLocality(), equalTo(true));
 
 		assertThat(job.get("crush.timestamp"), equalTo("20101116123015"));
 
@@ -415,7 +890,7 @@ public class CrushOptionParsingTest {
 		assertThat(Long.parseLong(job.get("crush.timestamp")), greaterThanOrEqualTo(millis));
 		assertThat(job.get("crush.num.specs"), equalTo("1"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(Integer.MAX_VALUE));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(Integer.MAX_VALUE));
 
 		assertThat(job.get("crush.0.regex"), equalTo(".+"));
 		assertThat(job.get("crush.0.regex.replacement").matches("crushed_file-\\d+-\\$\\{crush.task.num\\}-\\$\\{crush.file.num\\}"), is(true));
@@ -439,7 +914,7 @@ public class CrushOptionParsingTest {
 		assertThat(Long.parseLong(job.get("crush.timestamp")), greaterThanOrEqualTo(millis));
 		assertThat(job.get("crush.num.specs"), equalTo("1"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(Integer.MAX_VALUE));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(Integer.MAX_VALUE));
 
 		assertThat(job.get("crush.0.regex"), equalTo(".+"));
 		assertThat(job.get("crush.0.regex.replacement").matches("crushed_file-\\d+-\\$\\{crush.task.num\\}-\\$\\{crush.file.num\\}"), is(true));
@@ -463,7 +938,7 @@ public class CrushOptionParsingTest {
 		assertThat(Long.parseLong(job.get("crush.timestamp")), greaterThanOrEqualTo(millis));
 		assertThat(job.get("crush.num.specs"), equalTo("1"));
 
-		assertThat(crush.getMaxFileBlocks(), equalTo(Integer.MAX_VALUE));
+		assertThat(crush.getMaxFileBlocks(0), equalTo(Integer.MAX_VALUE));
 
 		assertThat(job.get("crush.0.regex"), equalTo(".+"));
 		assertThat(job.get("crush.0.regex.replacement").matches("crushed_file-\\d+-\\$\\{crush.task.num\\}-\\$\\{crush.file.num\\}"), is(true));
@@ -19,348 +19,105 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
-import java.io.IOException;
-
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.SequenceFile.Writer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
 import org.junit.Before;
-import org.junit.Rule;
 import org.junit.Test;
-import org.junit.rules.TemporaryFolder;
 
 import com.m6d.filecrush.crush.CrushPartitioner;
 
 @SuppressWarnings("deprecation")
 public class CrushPartitionerTest {
-	@Rule
-	public final TemporaryFolder tmp = new TemporaryFolder();
-
-	private JobConf job;
-
-	private FileSystem fs;
-
-	private Path partitionMap;
 
 	private CrushPartitioner partitioner;
 
 	@Before
-	public void setupPartitionMap() throws IOException {
-		job = new JobConf(false);
-
-		job.set("fs.default.name", "file:///");
-		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
-		job.set("crush.partition.map", tmp.getRoot().getAbsolutePath() + "/partition-map");
-
-		fs = FileSystem.get(job);
-
-		partitionMap = new Path(tmp.getRoot().getAbsolutePath(), "partition-map");
-
+	public void setupPartitioner() {
 		partitioner = new CrushPartitioner();
+
+		/*
+		 * Nothing needs to be configured.
+		 */
+		partitioner.configure(new JobConf(false));
 	}
 
 	@Test
-	public void partition() throws IOException {
-
-		Writer writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
-
-		Text key = new Text();
-		IntWritable partNum = new IntWritable();
-
-		key.set("bucket-1");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-2");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-3");
-		partNum.set(1);
-		writer.append(key, partNum);
-
-		key.set("bucket-4");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-5");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-6");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		writer.close();
-
-		job.setNumReduceTasks(3);
-
-
-		partitioner.configure(job);
-
-
-		Text fileName = new Text();
-
-		key.set("bucket-1");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(0));
-		}
-
-
-		key.set("bucket-2");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(0));
-		}
-
-
-		key.set("bucket-3");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(1));
-		}
-
-
-		key.set("bucket-4");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
-		}
-
-
-		key.set("bucket-5");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
-		}
-
-
-		key.set("bucket-6");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
-		}
+	public void key() {
+		assertThat(CrushPartitioner.key(0, "/bucket-1"), equalTo("00000:/bucket-1"));
+		assertThat(CrushPartitioner.key(3, "/bucket-1"), equalTo("00003:/bucket-1"));
+		assertThat(CrushPartitioner.key(99999, "017"), equalTo("99999:017"));
 	}
 
-
 	@Test
-	public void partitionWithFewerPartitionsThanReduceTasks() throws IOException {
-
-		Writer writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
-
+	public void partition() {
 		Text key = new Text();
-		IntWritable partNum = new IntWritable();
-
-		key.set("bucket-1");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-2");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-3");
-		partNum.set(1);
-		writer.append(key, partNum);
-
-		key.set("bucket-4");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-5");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-6");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		writer.close();
-
-		job.setNumReduceTasks(40);
-
-
-		partitioner.configure(job);
-
-
 		Text fileName = new Text();
 
-		key.set("bucket-1");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(0));
-		}
-
-
-		key.set("bucket-2");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(0));
-		}
-
-
-		key.set("bucket-3");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(1));
-		}
-
-
-		key.set("bucket-4");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
-		}
-
-
-		key.set("bucket-5");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
-		}
+		int[] partitions = { 0, 0, 1, 2, 2, 2 };
 
+		for (int bucket = 0; bucket < partitions.length; bucket++) {
+			key.set(CrushPartitioner.key(partitions[bucket], "/bucket-" + bucket));
 
-		key.set("bucket-6");
-
-		for (int file = 0; file < 4; file++) {
-			fileName.set("file" + file);
-			assertThat(partitioner.getPartition(key, fileName, 3), equalTo(2));
+			for (int file = 0; file < 4; file++) {
+				fileName.set("file" + file);
+				assertThat(partitioner.getPartition(key, fileName, 3), equalTo(partitions[bucket]));
+			}
 		}
 	}
 
 	@Test
-	public void noDupes() throws IOException {
-
-		Writer writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
-
-		Text key = new Text();
-		IntWritable value = new IntWritable();
-
-		key.set("bucket-1");
-		value.set(0);
-		writer.append(key, value);
+	public void partitionWithFewerPartitionsThanReduceTasks() {
+		Text key = new Text(CrushPartitioner.key(1, "/bucket-1"));
 
-		key.set("bucket-2");
-		value.set(0);
-		writer.append(key, value);
-
-		key.set("bucket-2");
-		value.set(1);
-		writer.append(key, value);
-
-		writer.close();
-
-		job.setNumReduceTasks(3);
+		assertThat(partitioner.getPartition(key, new Text("file"), 5), equalTo(1));
+	}
 
+	@Test
+	public void partitionTooLow() {
 		try {
-			partitioner.configure(job);
-			fail();
+			CrushPartitioner.key(-1, "/bucket-1");
+			fail("No such thing as a negitave partition");
 		} catch (IllegalArgumentException e) {
-			if (!e.getMessage().contains("bucket-2")) {
+			if (!e.getMessage().contains("-1")) {
 				throw e;
 			}
 		}
 	}
 
 	@Test
-	public void partitionTooLow() throws IOException {
-
-		Writer writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
-
-		Text key = new Text();
-		IntWritable partNum = new IntWritable();
-
-		key.set("bucket-1");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-2");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-4");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-5");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-6");
-		partNum.set(-1);
-		writer.append(key, partNum);
-
-		writer.close();
-
-
-		job.setNumReduceTasks(3);
+	public void partitionTooHigh() {
+		Text key = new Text(CrushPartitioner.key(3, "/bucket-1"));
 
 		try {
-			partitioner.configure(job);
-			fail("No such thing as a negitave partition");
+			partitioner.getPartition(key, new Text("file"), 3);
+			fail("Partition must be less than the number of reduce tasks");
 		} catch (IllegalArgumentException e) {
-			if (!e.getMessage().contains("Partition -1")) {
+			if (!e.getMessage().contains("Partition 3")) {
 				throw e;
 			}
 		}
-	}
-
-	@Test
-	public void partitionTooHigh() throws IOException {
-
-		Writer writer = SequenceFile.createWriter(fs, job, partitionMap, Text.class, IntWritable.class);
-
-		Text key = new Text();
-		IntWritable partNum = new IntWritable();
-
-		key.set("bucket-1");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-2");
-		partNum.set(0);
-		writer.append(key, partNum);
-
-		key.set("bucket-4");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-5");
-		partNum.set(2);
-		writer.append(key, partNum);
-
-		key.set("bucket-6");
-		partNum.set(3);
-		writer.append(key, partNum);
-
-		writer.close();
-
-
-		job.setNumReduceTasks(3);
 
 		try {
-			partitioner.configure(job);
-			fail("Parition with id 3 is not allowed with 3 reduce tasks");
+			CrushPartitioner.key(CrushPartitioner.MAX_PARTITIONS, "/bucket-1");
+			fail("Partition does not fit in the key");
 		} catch (IllegalArgumentException e) {
-			if (!e.getMessage().contains("Partition 3")) {
+			if (!e.getMessage().contains(Integer.toString(CrushPartitioner.MAX_PARTITIONS))) {
 				throw e;
 			}
 		}
 	}
+
+	@Test
+	public void notABucketKey() {
+		for (String key : new String[] { "/bucket-1", "0000:/bucket-1", "0000a:/bucket-1", "00001" }) {
+			try {
+				partitioner.getPartition(new Text(key), new Text("file"), 3);
+				fail(key);
+			} catch (IllegalArgumentException e) {
+				if (!e.getMessage().contains(key)) {
+					throw e;
+				}
+			}
+		}
+	}
 }
@@ -17,7 +17,10 @@ package com.m6d.filecrush.crush;
 
 import static java.lang.String.format;
 import static java.util.Arrays.asList;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
 import static org.easymock.EasyMock.isA;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
@@ -26,18 +29,23 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -47,7 +55,9 @@ import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.SequenceFile.Reader;
 import org.apache.hadoop.io.SequenceFile.Writer;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
@@ -56,6 +66,7 @@ import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -240,10 +251,10 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File dir = tmp.newFolder("dir");
 
-		inputGroups.put(new Text(dir.getAbsolutePath() + "-0"), asList(	writeFile(dir, "file10", Format.TEXT),
+		inputGroups.put(key(dir.getAbsolutePath() + "-0"), asList(	writeFile(dir, "file10", Format.TEXT),
 																																		writeFile(dir, "file11", Format.TEXT)));
 
-		inputGroups.put(new Text(dir.getAbsolutePath() + "-1"), asList(	writeFile(dir, "file12", Format.TEXT),
+		inputGroups.put(key(dir.getAbsolutePath() + "-1"), asList(	writeFile(dir, "file12", Format.TEXT),
 																																		writeFile(dir, "file13", Format.TEXT)));
 
 		recordCollectForFile(dir, "file10", "secondregex-98765-1234-0");
@@ -263,10 +274,10 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File subdir = tmp.newFolder("dir/subdir");
 
-		inputGroups.put(new Text(subdir.getAbsolutePath() + "-0"), asList(	writeFile(subdir, "file20", Format.SEQUENCE),
+		inputGroups.put(key(subdir.getAbsolutePath() + "-0"), asList(	writeFile(subdir, "file20", Format.SEQUENCE),
 																																				writeFile(subdir, "file21", Format.SEQUENCE)));
 
-		inputGroups.put(new Text(subdir.getAbsolutePath() + "-1"), asList(	writeFile(subdir, "file22", Format.SEQUENCE),
+		inputGroups.put(key(subdir.getAbsolutePath() + "-1"), asList(	writeFile(subdir, "file22", Format.SEQUENCE),
 																																				writeFile(subdir, "file23", Format.SEQUENCE),
 																																				writeFile(subdir, "file24", Format.SEQUENCE)));
 
@@ -289,11 +300,11 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File subsubdir = tmp.newFolder("dir/subdir/subsubdir");
 
-		inputGroups.put(new Text(subsubdir.getAbsolutePath() + "-0"), asList(	writeFile(subsubdir, "file30", Format.SEQUENCE),
+		inputGroups.put(key(subsubdir.getAbsolutePath() + "-0"), asList(	writeFile(subsubdir, "file30", Format.SEQUENCE),
 																																					writeFile(subsubdir, "file31", Format.SEQUENCE),
 																																					writeFile(subsubdir, "file32", Format.SEQUENCE)));
 
-		inputGroups.put(new Text(subsubdir.getAbsolutePath() + "-1"), asList(	writeFile(subsubdir, "file33", Format.SEQUENCE),
+		inputGroups.put(key(subsubdir.getAbsolutePath() + "-1"), asList(	writeFile(subsubdir, "file33", Format.SEQUENCE),
 																																					writeFile(subsubdir, "file34", Format.SEQUENCE)));
 
 		recordCollectForFile(subsubdir, "file30", "thirdregex-subsubdir-98765-1234-4");
@@ -314,10 +325,10 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File other1 = tmp.newFolder("dir/subdir/other");
 
-		inputGroups.put(new Text(other1.getAbsolutePath() + "-1"), asList(	writeFile(other1, "file40", Format.SEQUENCE),
+		inputGroups.put(key(other1.getAbsolutePath() + "-1"), asList(	writeFile(other1, "file40", Format.SEQUENCE),
 																																				writeFile(other1, "file41", Format.SEQUENCE)));
 
-		inputGroups.put(new Text(other1.getAbsolutePath() + "-2"), asList(	writeFile(other1, "file42", Format.SEQUENCE),
+		inputGroups.put(key(other1.getAbsolutePath() + "-2"), asList(	writeFile(other1, "file42", Format.SEQUENCE),
 																																				writeFile(other1, "file43", Format.SEQUENCE)));
 
 		recordCollectForFile(other1, "file40", "98765-1234-middle-6-tail");
@@ -338,13 +349,13 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File other2 = tmp.newFolder("dir/other");
 
-		inputGroups.put(new Text(other2.getAbsolutePath() + "-0"), asList(	writeFile(other2, "file50", Format.SEQUENCE),
+		inputGroups.put(key(other2.getAbsolutePath() + "-0"), asList(	writeFile(other2, "file50", Format.SEQUENCE),
 																																				writeFile(other2, "file51", Format.SEQUENCE)));
 
-		inputGroups.put(new Text(other2.getAbsolutePath() + "-1"), asList(	writeFile(other2, "file52", Format.SEQUENCE),
+		inputGroups.put(key(other2.getAbsolutePath() + "-1"), asList(	writeFile(other2, "file52", Format.SEQUENCE),
 																																				writeFile(other2, "file53", Format.SEQUENCE)));
 
-		inputGroups.put(new Text(other2.getAbsolutePath() + "-3"), asList(	writeFile(other2, "file54", Format.SEQUENCE),
+		inputGroups.put(key(other2.getAbsolutePath() + "-3"), asList(	writeFile(other2, "file54", Format.SEQUENCE),
 																																				writeFile(other2, "file55", Format.SEQUENCE)));
 
 		recordCollectForFile(other2, "file50", "98765-1234-middle-8-tail");
@@ -363,16 +374,16 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		 */
 		File text = tmp.newFolder("text");
 
-		inputGroups.put(new Text(text.getAbsolutePath() + "-2"), asList(writeFile(text, "file60", Format.TEXT),
+		inputGroups.put(key(text.getAbsolutePath() + "-2"), asList(writeFile(text, "file60", Format.TEXT),
 																																		writeFile(text, "file61", Format.TEXT)));
 
-		inputGroups.put(new Text(text.getAbsolutePath() + "-3"), asList(writeFile(text, "file62", Format.TEXT),
+		inputGroups.put(key(text.getAbsolutePath() + "-3"), asList(writeFile(text, "file62", Format.TEXT),
 																																		writeFile(text, "file63", Format.TEXT)));
 
-		recordCollectForFile(text, "file60", "fourthregex-1234-98765-11");
-		recordCollectForFile(text, "file61", "fourthregex-1234-98765-11");
-		recordCollectForFile(text, "file62", "fourthregex-1234-98765-12");
-		recordCollectForFile(text, "file63", "fourthregex-1234-98765-12");
+		recordCollectForConcatenatedFile(text, "file60", "fourthregex-1234-98765-11");
+		recordCollectForConcatenatedFile(text, "file61", "fourthregex-1234-98765-11");
+		recordCollectForConcatenatedFile(text, "file62", "fourthregex-1234-98765-12");
+		recordCollectForConcatenatedFile(text, "file63", "fourthregex-1234-98765-12");
 
 		replayAll();
 
@@ -380,6 +391,8 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 			reducer.reduce(e.getKey(), e.getValue().iterator(), collector, reporter);
 		}
 
+		reducer.close();
+
 		verifyAll();
 
 		verifyWorkOutput(dir,				"secondregex-98765-1234-0",						Format.TEXT,			Format.SEQUENCE, "file10", "file11");
@@ -397,6 +410,240 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		verifyWorkOutput(text,			"fourthregex-1234-98765-12",					Format.TEXT,			Format.TEXT, "file62", "file63");
 	}
 
+	/**
+	 * Same as {@link #reduce()} except that the buckets are crushed by several threads. Output files are still numbered in the order
+	 * in which the buckets arrive.
+	 */
+	@Test
+	public void reduceConcurrently() throws IOException {
+		job.setInt(CrushReducer.THREADS, 3);
+
+		reducer = new CrushReducer();
+
+		reducer.configure(job);
+
+		reduce();
+	}
+
+	/**
+	 * Source files compressed with the same codec as the output can have their values copied without being decompressed, even when
+	 * the output is record compressed. Block compressed files have their blocks copied as they are so use tiny blocks to get more
+	 * than one per file.
+	 */
+	@Test
+	public void reduceSequenceFilesWithOutputCodec() throws IOException {
+		reporter.setStatus(isA(String.class));
+		expectLastCall().anyTimes();
+
+		job.setInt("io.seqfile.compress.blocksize", 32);
+
+		CustomCompressionCodec codec = new CustomCompressionCodec();
+		codec.setConf(job);
+
+		File subdir = tmp.newFolder("dir/subdir");
+
+		List<Text> files = asList(writeFile(subdir, "file20", Format.SEQUENCE, codec),
+															writeFile(subdir, "file21", Format.SEQUENCE),
+															writeFile(subdir, "file22", Format.SEQUENCE, codec));
+
+		/*
+		 * Records in copied blocks are counted a block at a time.
+		 */
+		final long[] recordsCrushed = new long[1];
+
+		for (String fileName : new String[] { "file20", "file21", "file22" }) {
+			collector.collect(new Text(new File(subdir, fileName).getAbsolutePath()),
+					new Text(format("%s/crush%s", outDir.getAbsolutePath(), new File(subdir, "thirdregex-subdir-98765-1234-0").getAbsolutePath())));
+			reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
+		}
+
+		reporter.incrCounter(eq(ReducerCounter.RECORDS_CRUSHED), anyLong());
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() {
+				recordsCrushed[0] += (Long) getCurrentArguments()[1];
+
+				return null;
+			}
+		}).atLeastOnce();
+
+		replayAll();
+
+		reducer.reduce(key(subdir.getAbsolutePath() + "-0"), files.iterator(), collector, reporter);
+
+		verifyAll();
+
+		assertThat(recordsCrushed[0], equalTo(20L + 21L + 22L));
+
+		verifyWorkOutput(subdir, "thirdregex-subdir-98765-1234-0", Format.SEQUENCE, Format.SEQUENCE, "file20", "file21", "file22");
+	}
+
+	/**
+	 * The planner appends the length of each file to its path. The reader is created from the length and the collector is given the
+	 * path alone.
+	 */
+	@Test
+	public void reduceWithLengths() throws IOException {
+		reporter.setStatus(isA(String.class));
+		expectLastCall().anyTimes();
+
+		File subdir = tmp.newFolder("dir/subdir");
+		File other = tmp.newFolder("dir/subdir/other");
+
+		List<Text> sequenceFiles = asList(withLength(writeFile(subdir, "file20", Format.SEQUENCE)),
+																			withLength(writeFile(subdir, "file21", Format.SEQUENCE)));
+
+		List<Text> recordFiles = asList(withLength(writeFile(other, "file40", Format.SEQUENCE)),
+																		withLength(writeFile(other, "file41", Format.SEQUENCE)));
+
+		recordCollectForFile(subdir, "file20", "thirdregex-subdir-98765-1234-0");
+		recordCollectForFile(subdir, "file21", "thirdregex-subdir-98765-1234-0");
+		recordCollectForFile(other, "file40", "98765-1234-middle-1-tail");
+		recordCollectForFile(other, "file41", "98765-1234-middle-1-tail");
+
+		/*
+		 * Only files whose lengths are known count towards the bytes crushed.
+		 */
+		for (File file : new File[] { new File(subdir, "file20"), new File(subdir, "file21"), new File(other, "file40"),
+				new File(other, "file41") }) {
+			reporter.incrCounter(ReducerCounter.BYTES_CRUSHED, file.length());
+		}
+
+		replayAll();
+
+		reducer.reduce(key(subdir.getAbsolutePath() + "-0"), sequenceFiles.iterator(), collector, reporter);
+		reducer.reduce(key(other.getAbsolutePath() + "-1"), recordFiles.iterator(), collector, reporter);
+
+		verifyAll();
+
+		verifyWorkOutput(subdir,	"thirdregex-subdir-98765-1234-0",	Format.SEQUENCE,	Format.SEQUENCE,	"file20", "file21");
+		verifyWorkOutput(other,		"98765-1234-middle-1-tail",				Format.SEQUENCE,	Format.TEXT,			"file40", "file41");
+	}
+
+	@Test
+	public void reduceHeterogeneousSequenceFiles() throws IOException {
+		File subdir = tmp.newFolder("dir/subdir");
+
+		Writer writer = SequenceFile.createWriter(fs, job, new Path(subdir.getAbsolutePath(), "file21"), Text.class, Text.class);
+		writer.append(new Text("key"), new Text("value"));
+		writer.close();
+
+		List<Text> files = asList(writeFile(subdir, "file20", Format.SEQUENCE), new Text(new File(subdir, "file21").getAbsolutePath()));
+
+		collector.collect(isA(Text.class), isA(Text.class));
+		reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+		expectLastCall().times(20);
+
+		replayAll();
+
+		try {
+			reducer.reduce(key(subdir.getAbsolutePath() + "-0"), files.iterator(), collector, reporter);
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().startsWith("Heterogeneous keys detected in")) {
+				throw e;
+			}
+		}
+
+		verifyAll();
+	}
+
+	/**
+	 * Text files are concatenated as they are. Lines without a tab and carriage returns are left alone and a newline is added to a
+	 * file that does not end with one.
+	 */
+	@Test
+	public void reduceTextFilesByteForByte() throws IOException {
+		File text = tmp.newFolder("text");
+
+		List<Text> files = asList(writeTextFile(text, "file70", "1\tone\nno tab\n", null),
+															writeTextFile(text, "file71", "", null),
+															writeTextFile(text, "file72", "2\ttwo\r\nno newline", null),
+															writeTextFile(text, "file73", "3\tthree\n", null));
+
+		String crushOutput = format("%s/crush%s", outDir.getAbsolutePath(), new File(text, "fourthregex-1234-98765-0").getAbsolutePath());
+
+		for (String fileName : new String[] { "file70", "file71", "file72", "file73" }) {
+			collector.collect(new Text(new File(text, fileName).getAbsolutePath()), new Text(crushOutput));
+			reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
+		}
+
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 2);
+		expectLastCall().times(2);
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 0);
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+
+		replayAll();
+
+		reducer.reduce(key(text.getAbsolutePath() + "-0"), files.iterator(), collector, reporter);
+
+		verifyAll();
+
+		InputStream in;
+
+		if (CompressionType.NONE == compressionType) {
+			in = new FileInputStream(workDir.getAbsolutePath() + "/crush" + text.getAbsolutePath() + "/fourthregex-1234-98765-0");
+		} else {
+			CustomCompressionCodec codec = new CustomCompressionCodec();
+			codec.setConf(job);
+
+			in = codec.createInputStream(new FileInputStream(workDir.getAbsolutePath() + "/crush" + text.getAbsolutePath()
+					+ "/fourthregex-1234-98765-0.custom"));
+		}
+
+		assertThat(readFully(in), equalTo("1\tone\nno tab\n2\ttwo\r\nno newline\n3\tthree\n"));
+	}
+
+	/**
+	 * Gzip files are copied into a gzip output file as members of their own. The output is still a valid gzip stream.
+	 */
+	@Test
+	public void reduceGzipTextFilesAsMembers() throws IOException {
+		job.setBoolean("mapred.output.compress", true);
+		job.set("mapred.output.compression.codec", GzipCodec.class.getName());
+		job.setBoolean(CrushReducer.CONCAT_COMPRESSED, true);
+
+		GzipCodec codec = new GzipCodec();
+		codec.setConf(job);
+
+		File text = tmp.newFolder("text");
+
+		List<Text> files = asList(writeTextFile(text, "file80.gz", "1\tone\n2\ttwo\n", codec),
+															writeTextFile(text, "file81", "3\tthree", null),
+															writeTextFile(text, "file82.gz", "4\tfour\n", codec));
+
+		String crushOutput = format("%s/crush%s", outDir.getAbsolutePath(), new File(text, "fourthregex-1234-98765-0").getAbsolutePath());
+
+		for (String fileName : new String[] { "file80.gz", "file81", "file82.gz" }) {
+			collector.collect(new Text(new File(text, fileName).getAbsolutePath()), new Text(crushOutput));
+			reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
+		}
+
+		/*
+		 * Only the file that had to be compressed is counted.
+		 */
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, 1);
+
+		replayAll();
+
+		reducer.reduce(key(text.getAbsolutePath() + "-0"), files.iterator(), collector, reporter);
+
+		verifyAll();
+
+		File output = new File(workDir.getAbsolutePath() + "/crush" + text.getAbsolutePath() + "/fourthregex-1234-98765-0.gz");
+
+		assertThat(readFully(new GZIPInputStream(new FileInputStream(output))), equalTo("1\tone\n2\ttwo\n3\tthree\n4\tfour\n"));
+
+		/*
+		 * The first file was not recompressed.
+		 */
+		byte[] first = readBytes(new FileInputStream(new File(text, "file80.gz")));
+		byte[] start = Arrays.copyOf(readBytes(new FileInputStream(output)), first.length);
+
+		assertThat(start, equalTo(first));
+	}
+
 	/**
 	 * Verifies that the work dir has the expected output.
 	 */
@@ -531,12 +778,36 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		expectLastCall().times(Integer.parseInt(crushInput.substring(4)));
 	}
 
+	/**
+	 * Same as {@link #recordCollectForFile(File, String, String)} except that the records are counted once for the whole file, which
+	 * is what happens when text files are concatenated.
+	 */
+	private void recordCollectForConcatenatedFile(File srcDir, String crushInput, String crushOutput) throws IOException {
+		Text srcFileAbsPath = new Text(new File(srcDir, crushInput).getAbsolutePath());
+		Text fileInJobOutputDir = new Text(format("%s/crush%s", outDir.getAbsolutePath(), new File(srcDir, crushOutput).getAbsolutePath()));
+
+		collector.collect(srcFileAbsPath, fileInJobOutputDir);
+		reporter.incrCounter(ReducerCounter.FILES_CRUSHED, 1);
+
+		reporter.incrCounter(ReducerCounter.RECORDS_CRUSHED, Integer.parseInt(crushInput.substring(4)));
+	}
+
 	/**
 	 * Every file in this unit test is named "file" followed by a number. This method will create a sequence file with as many lines
 	 * as the number in the file name. The keys in the file will count from one to the number. The values in the file will count
 	 * from 100n + 1 to 100n + n. This way each file will have distinct contents so long as no two files have the same name.
 	 */
 	private Text writeFile(File srcDir, String fileName, Format format) throws IOException {
+		DefaultCodec codec = new DefaultCodec();
+		codec.setConf(job);
+
+		return writeFile(srcDir, fileName, format, codec);
+	}
+
+	/**
+	 * Same as {@link #writeFile(File, String, Format)} except that compressed sequence files use the given codec.
+	 */
+	private Text writeFile(File srcDir, String fileName, Format format, DefaultCodec codec) throws IOException {
 
 		int fileNum = Integer.parseInt(fileName.substring(4));
 
@@ -554,9 +825,6 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 			CustomWritable key = new CustomWritable();
 			CustomWritable value = new CustomWritable();
 
-			DefaultCodec codec = new DefaultCodec();
-			codec.setConf(job);
-
 			Writer writer = SequenceFile.createWriter(fs, job, new Path(file.getAbsolutePath()), CustomWritable.class,
 					CustomWritable.class, compressionType, codec);
 
@@ -573,6 +841,56 @@ public class CrushReducerParameterizedTest extends EasyMockSupport {
 		return new Text(file.getAbsolutePath());
 	}
 
+	/**
+	 * Returns the key of a bucket in the first partition, just like the bucket file does.
+	 */
+	private static Text key(String bucketId) {
+		return new Text(CrushPartitioner.key(0, bucketId));
+	}
+
+	/**
+	 * Appends the length of the file to its path, just like the bucket file does.
+	 */
+	private static Text withLength(Text file) {
+		return new Text(SourceFile.format(file.toString(), new File(file.toString()).length()));
+	}
+
+	/**
+	 * Writes the contents to a file, compressing them if the codec is not null.
+	 */
+	private Text writeTextFile(File srcDir, String fileName, String contents, CompressionCodec codec) throws IOException {
+		File file = new File(srcDir, fileName);
+
+		OutputStream out = new FileOutputStream(file);
+
+		if (null != codec) {
+			out = codec.createOutputStream(out);
+		}
+
+		out.write(contents.getBytes("UTF-8"));
+		out.close();
+
+		return new Text(file.getAbsolutePath());
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+
+		while (-1 != (n = in.read(buffer))) {
+			bytes.write(buffer, 0, n);
+		}
+
+		in.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		return new String(readBytes(in), "UTF-8");
+	}
+
 	private enum Format {
 		TEXT, SEQUENCE
 	}
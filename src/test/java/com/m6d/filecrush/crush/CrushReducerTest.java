@@ -46,11 +46,13 @@ public class CrushReducerTest {
 
 	private File outDir;
 
+	private JobConf job;
+
 	private CrushReducer reducer;
 
 	@Before
 	public void setupReducer() {
-		JobConf job = new JobConf(false);
+		job = new JobConf(false);
 
 		job.set("mapred.tip.id", "task_201011081200_014527_r_001234");
 		job.set("mapred.task.id", "attempt_201011081200_14527_r_001234_0");
@@ -149,15 +151,56 @@ public class CrushReducerTest {
 	@Test
 	public void fileNotFound() throws IOException {
 		try {
-			reducer.reduce(new Text("/path/to/a/dir-4"), asList(new Text("/file/does/not/exist")).iterator(), null, null);
+			reducer.reduce(new Text(CrushPartitioner.key(0, "4")), asList(new Text("/path/to/a/dir/does-not-exist")).iterator(), null, null);
 			fail();
 		} catch (IOException e) {
-			if (!e.getMessage().contains("/file/does/not/exist")) {
+			if (!e.getMessage().contains("/path/to/a/dir/does-not-exist")) {
 				throw e;
 			}
 		}
 	}
 
+	/**
+	 * A bucket that fails on another thread fails the task no later than when the reducer is closed.
+	 */
+	@Test
+	public void fileNotFoundConcurrently() throws IOException {
+		job.setInt(CrushReducer.THREADS, 2);
+
+		reducer = new CrushReducer();
+
+		reducer.configure(job);
+
+		reducer.reduce(new Text(CrushPartitioner.key(0, "4")), asList(new Text("/path/to/a/dir/does-not-exist")).iterator(), null, null);
+
+		try {
+			reducer.close();
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("/path/to/a/dir/does-not-exist")) {
+				throw e;
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noThreads() {
+		job.setInt(CrushReducer.THREADS, 0);
+
+		new CrushReducer().configure(job);
+	}
+
+	/**
+	 * The prefetch buffers of all the threads would not fit in a quarter of the heap.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void tooMuchPrefetching() {
+		job.setInt(CrushReducer.PREFETCH_FILES, 64);
+		job.setInt(CrushReducer.THREADS, (int) (Runtime.getRuntime().maxMemory() / (64 * 1024 * 64)));
+
+		new CrushReducer().configure(job);
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void noMatchingInputPattern() {
 		reducer.findMatcher("nothing matches me");
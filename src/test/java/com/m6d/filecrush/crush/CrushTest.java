@@ -17,7 +17,9 @@ package com.m6d.filecrush.crush;
 
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -30,8 +32,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.hadoop.conf.Configuration;
@@ -45,11 +51,13 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.fs.permission.FsPermission;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile.Reader;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.ToolRunner;
 import org.junit.After;
@@ -81,6 +89,11 @@ public class CrushTest {
 		job.setInt("mapred.reduce.tasks", 5);
 		job.setLong("dfs.block.size", 50);
 
+		/*
+		 * The plans are tiny. Plan them for the cluster all the same.
+		 */
+		job.setLong(Crush.LOCAL_MAX_BYTES, 0);
+
 		FileSystem delegate = FileSystem.get(job);
 
 		fileSystem = new SortingFileSystem(delegate);
@@ -655,6 +668,11 @@ public class CrushTest {
 		/*
 		 * Call these in the same order that run() does.
 		 */
+		/*
+		 * Balance the partitions by bytes alone.
+		 */
+		job.setLong(LinearCostModel.FILE_COST, 0);
+
 		crush.createJobConfAndParseArgs("--compress=none", "--max-file-blocks=1", in.getAbsolutePath(), new File(tmp.getRoot(), "out").getAbsolutePath(), "20101124171730");
 		crush.writeDirs();
 
@@ -665,16 +683,21 @@ public class CrushTest {
 
 		List<String> actualBucketFiles = new ArrayList<String>();
 
-		Text key = new Text();
-		Text value = new Text();
+		Map<String, Integer> actualPartitions = new HashMap<String, Integer>();
 
-		Reader reader = new Reader(FileSystem.get(job), crush.getBucketFiles(), job);
+		Map<String, List<String>> buckets = readBuckets(crush);
 
-		while(reader.next(key, value)) {
-			actualBucketFiles.add(format("%s\t%s", key, value));
-		}
+		Map<String, String> bucketIds = matchBucketIds(buckets, expectedBucketFiles);
 
-		reader.close();
+		for (Entry<String, List<String>> bucket : buckets.entrySet()) {
+			String bucketId = bucketIds.get(bucket.getKey());
+
+			for (String file : bucket.getValue()) {
+				actualBucketFiles.add(format("%s\t%s", bucketId, file));
+			}
+
+			actualPartitions.put(bucketId, CrushPartitioner.partition(new Text(bucket.getKey())));
+		}
 
 		Collections.sort(expectedBucketFiles);
 		Collections.sort(actualBucketFiles);
@@ -682,21 +705,8 @@ public class CrushTest {
 		assertThat(actualBucketFiles, equalTo(expectedBucketFiles));
 
 		/*
-		 * Verify the partition map.
-		 */
-		Reader partitionMapReader = new Reader(FileSystem.get(job), crush.getPartitionMap(), job);
-
-		IntWritable partNum = new IntWritable();
-
-		Map<String, Integer> actualPartitions = new HashMap<String, Integer>();
-
-		while (partitionMapReader.next(key, partNum)) {
-			actualPartitions.put(key.toString(), partNum.get());
-		}
-
-		partitionMapReader.close();
-
-		/*
+		 * Verify the partitions that prefix the bucket ids.
+		 *
 		 * These crush files need to allocated into 5 partitions:
 		 *
 		 * in/2-1						55 bytes
@@ -739,9 +749,535 @@ public class CrushTest {
 		assertThat(actualCounters, equalTo(expectedCounters));
 	}
 
+	@Test
+	public void incremental() throws Exception {
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					file1 20 bytes
+		 * 					file2 20 bytes
+		 * 			b/
+		 * 					file1 20 bytes
+		 * 					file2 20 bytes
+		 */
+		File in = tmp.newFolder("in");
+		File a = tmp.newFolder("in/a");
+		File b = tmp.newFolder("in/b");
+
+		createFile(a, "file1", 20);
+		createFile(a, "file2", 20);
+		createFile(b, "file1", 20);
+		createFile(b, "file2", 20);
+
+		String state = new File(tmp.getRoot(), "state").getAbsolutePath();
+
+		Crush crush = incrementalCrush(in, state);
+
+		Counters expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 2);
+		expectedCounters.incrCounter(MapperCounter.FILES_FOUND, 4);
+		expectedCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, 4);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		/*
+		 * A new file changes the modification time of the directory. The file system only keeps whole seconds, so make sure it changes.
+		 */
+		createFile(b, "file3", 10);
+		touch(b);
+
+		crush = incrementalCrush(in, state);
+
+		expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 1);
+		expectedCounters.incrCounter(MapperCounter.FILES_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, 3);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		assertThat(readBucketFiles(crush), equalTo(asList(
+				format("%s-0\t%s", b.getAbsolutePath(), new File(b, "file1").getAbsolutePath()),
+				format("%s-0\t%s", b.getAbsolutePath(), new File(b, "file2").getAbsolutePath()),
+				format("%s-0\t%s", b.getAbsolutePath(), new File(b, "file3").getAbsolutePath()))));
+
+		/*
+		 * Appending to a file does not change the modification time of the directory, so only verification notices that the number of
+		 * bytes in it changed.
+		 */
+		FileOutputStream os = new FileOutputStream(new File(a, "file1"), true);
+		os.write(new byte[5]);
+		os.close();
+
+		crush = incrementalCrush(in, state);
+
+		expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 2);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		crush = incrementalCrush(in, state, "--verify-unchanged");
+
+		expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 1);
+		expectedCounters.incrCounter(MapperCounter.FILES_FOUND, 2);
+		expectedCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, 2);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		assertThat(readBucketFiles(crush), equalTo(asList(
+				format("%s-0\t%s", a.getAbsolutePath(), new File(a, "file1").getAbsolutePath()),
+				format("%s-0\t%s", a.getAbsolutePath(), new File(a, "file2").getAbsolutePath()))));
+	}
+
+	/**
+	 * An unchanged directory with more files than sub directories is not listed but its sub directories are still visited.
+	 */
+	@Test
+	public void incrementalSubDirectories() throws Exception {
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					file1 20 bytes
+		 * 					file2 20 bytes
+		 * 					b/
+		 * 							file3 20 bytes
+		 */
+		File in = tmp.newFolder("in");
+		File a = tmp.newFolder("in/a");
+		File b = tmp.newFolder("in/a/b");
+
+		createFile(a, "file1", 20);
+		createFile(a, "file2", 20);
+		createFile(b, "file3", 20);
+
+		String state = new File(tmp.getRoot(), "state").getAbsolutePath();
+
+		incrementalCrush(in, state);
+
+		Crush crush = incrementalCrush(in, state);
+
+		Counters expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 2);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		createFile(b, "file4", 20);
+		touch(b);
+
+		crush = incrementalCrush(in, state);
+
+		expectedCounters = new Counters();
+		expectedCounters.incrCounter(MapperCounter.DIRS_FOUND, 3);
+		expectedCounters.incrCounter(MapperCounter.DIRS_SKIPPED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_UNCHANGED, 1);
+		expectedCounters.incrCounter(MapperCounter.DIRS_ELIGIBLE, 1);
+		expectedCounters.incrCounter(MapperCounter.FILES_FOUND, 2);
+		expectedCounters.incrCounter(MapperCounter.FILES_ELIGIBLE, 2);
+
+		assertThat(crush.getJobCounters(), equalTo(expectedCounters));
+
+		/*
+		 * Verification lists every directory with sub directories.
+		 */
+		crush = incrementalCrush(in, state, "--verify-unchanged");
+
+		assertThat(crush.getJobCounters().getCounter(MapperCounter.DIRS_UNCHANGED), equalTo(1L));
+		assertThat(crush.getJobCounters().getCounter(MapperCounter.FILES_ELIGIBLE), equalTo(2L));
+	}
+
+	@Test
+	public void costBalancing() throws Exception {
+		/*
+		 * 	in/
+		 * 			few/
+		 * 					file1..file2 30 bytes each
+		 * 			many/
+		 * 					file1..file10 5 bytes each
+		 * 			some/
+		 * 					file1..file3 30 bytes each
+		 *
+		 * Each directory becomes one bucket. By bytes alone, many and few would share a partition and some would have the other one to
+		 * itself. Opening a file costs much more than copying a few bytes, so many gets a partition to itself instead.
+		 */
+		File in = tmp.newFolder("in");
+
+		String[] names = { "few", "many", "some" };
+		int[][] dirs = { { 2, 30 }, { 10, 5 }, { 3, 30 } };
+
+		for (int i = 0; i < dirs.length; i++) {
+			File dir = tmp.newFolder("in/" + names[i]);
+
+			for (int j = 1; j <= dirs[i][0]; j++) {
+				createFile(dir, "file" + j, dirs[i][1]);
+			}
+		}
+
+		job.setInt("mapred.reduce.tasks", 2);
+
+		Crush crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(fileSystem);
+
+		crush.createJobConfAndParseArgs("--compress=none", in.getAbsolutePath(), new File(tmp.getRoot(), "out").getAbsolutePath(),
+				"20101124171730");
+		crush.writeDirs();
+
+		Map<String, Integer> partitions = readPartitions(crush);
+
+		assertThat(partitions.size(), equalTo(3));
+		assertThat(partitions.get("few-0"), equalTo(partitions.get("some-0")));
+		assertThat(partitions.get("many-0"), not(equalTo(partitions.get("some-0"))));
+	}
+
+	@Test
+	public void autoTasks() throws Exception {
+		/*
+		 * 	in/
+		 * 			few/
+		 * 					file1..file2 30 bytes each
+		 * 			many/
+		 * 					file1..file10 5 bytes each
+		 * 			some/
+		 * 					file1..file3 30 bytes each
+		 *
+		 * Each directory becomes one bucket and a task crushes 100 bytes a minute, so the 200 bytes need two tasks no matter how many
+		 * reduce tasks are configured.
+		 */
+		File in = tmp.newFolder("in");
+
+		String[] names = { "few", "many", "some" };
+		int[][] dirs = { { 2, 30 }, { 10, 5 }, { 3, 30 } };
+
+		for (int i = 0; i < dirs.length; i++) {
+			File dir = tmp.newFolder("in/" + names[i]);
+
+			for (int j = 1; j <= dirs[i][0]; j++) {
+				createFile(dir, "file" + j, dirs[i][1]);
+			}
+		}
+
+		job.setLong(LinearCostModel.FILE_COST, 0);
+		job.setFloat(CostModel.THROUGHPUT, 100 / 60f);
+
+		Crush crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(fileSystem);
+
+		crush.createJobConfAndParseArgs("--compress=none", "--auto-tasks=1", in.getAbsolutePath(),
+				new File(tmp.getRoot(), "out").getAbsolutePath(), "20101124171730");
+		crush.writeDirs();
+
+		assertThat(crush.getJob().getNumReduceTasks(), equalTo(2));
+
+		Map<String, Integer> partitions = readPartitions(crush);
+
+		assertThat(partitions.get("some-0"), equalTo(0));
+		assertThat(partitions.get("few-0"), equalTo(1));
+		assertThat(partitions.get("many-0"), equalTo(1));
+
+		/*
+		 * A task crushes 10 bytes a minute so the buckets would need 20 tasks. There are only three buckets, though.
+		 */
+		job.setFloat(CostModel.THROUGHPUT, 10 / 60f);
+
+		crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(fileSystem);
+
+		crush.createJobConfAndParseArgs("--compress=none", "--auto-tasks=1", in.getAbsolutePath(),
+				new File(tmp.getRoot(), "out").getAbsolutePath(), "20101124171730");
+		crush.writeDirs();
+
+		assertThat(crush.getJob().getNumReduceTasks(), equalTo(3));
+
+		partitions = readPartitions(crush);
+
+		assertThat(partitions.get("some-0"), equalTo(0));
+		assertThat(partitions.get("few-0"), equalTo(1));
+		assertThat(partitions.get("many-0"), equalTo(2));
+	}
+
+	@Test
+	public void mapOnly() throws Exception {
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					file1..file6 30 bytes each
+		 * 			b/
+		 * 					file1..file4 20 bytes each
+		 * 			c/
+		 * 					file1..file2 10 bytes each
+		 */
+		File in = tmp.newFolder("in");
+
+		int[][] dirs = { { 6, 30 }, { 4, 20 }, { 2, 10 } };
+
+		for (int i = 0; i < dirs.length; i++) {
+			File dir = tmp.newFolder("in/" + (char) ('a' + i));
+
+			for (int j = 1; j <= dirs[i][0]; j++) {
+				createFile(dir, "file" + j, dirs[i][1]);
+			}
+		}
+
+		Crush crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(fileSystem);
+
+		crush.createJobConfAndParseArgs("--compress=none", "--max-file-blocks=1", "--map-only", "--locality", in.getAbsolutePath(),
+				new File(tmp.getRoot(), "out").getAbsolutePath(), "20101124171730");
+		crush.writeDirs();
+
+		List<String> bucketFiles = readBucketFiles(crush);
+
+		Map<String, String> bucketIds = bucketIds(readBuckets(crush));
+
+		JobConf splitsJob = new JobConf(crush.getJob());
+		splitsJob.set("crush.splits", crush.getSplits().toString());
+
+		BucketInputFormat inputFormat = new BucketInputFormat();
+
+		InputSplit[] splits = inputFormat.getSplits(splitsJob, 1);
+
+		assertThat(splits.length, equalTo(5));
+
+		List<String> actual = new ArrayList<String>();
+
+		for (InputSplit inputSplit : splits) {
+			BucketSplit split = (BucketSplit) inputSplit;
+
+			List<String> expected = new ArrayList<String>();
+
+			long length = 0;
+
+			for (int i = 0; i < split.getNumBuckets(); i++) {
+				for (String bucketFile : bucketFiles) {
+					if (bucketFile.startsWith(bucketIds.get(split.getBucketId(i)) + "\t")) {
+						expected.add(bucketFile);
+
+						length += new File(bucketFile.substring(bucketFile.indexOf('\t') + 1)).length();
+					}
+				}
+			}
+
+			assertThat(split.getLength(), equalTo(length));
+
+			/*
+			 * The local file system reports every block on localhost.
+			 */
+			assertThat(split.getLocations(), equalTo(new String[] { "localhost" }));
+
+			List<String> records = new ArrayList<String>();
+
+			RecordReader<Text, Text> reader = inputFormat.getRecordReader(split, splitsJob, Reporter.NULL);
+
+			Text key = reader.createKey();
+			Text value = reader.createValue();
+
+			while (reader.next(key, value)) {
+				records.add(format("%s\t%s", bucketIds.get(key.toString()), sourcePath(value)));
+			}
+
+			reader.close();
+
+			assertThat(records, equalTo(expected));
+
+			actual.addAll(records);
+		}
+
+		Collections.sort(actual);
+		Collections.sort(bucketFiles);
+
+		assertThat(actual, equalTo(bucketFiles));
+	}
+
+	/**
+	 * Plans an incremental crush and records its state without running the job.
+	 */
+	private Crush incrementalCrush(File in, String state, String... options) throws Exception {
+		Crush crush = new Crush();
+
+		crush.setConf(job);
+		crush.setFileSystem(fileSystem);
+
+		List<String> args = new ArrayList<String>(asList(options));
+
+		args.addAll(asList("--compress=none", "--max-file-blocks=1", "--incremental", state, in.getAbsolutePath(), new File(
+				tmp.getRoot(), "out").getAbsolutePath(), "20101124171730"));
+
+		crush.createJobConfAndParseArgs(args.toArray(new String[args.size()]));
+		crush.writeDirs();
+		crush.writeState();
+
+		return crush;
+	}
+
+	/**
+	 * Returns the bucket id and the path of the source file separated by a tab for each file in the buckets.
+	 */
+	private List<String> readBucketFiles(Crush crush) throws IOException {
+		List<String> bucketFiles = new ArrayList<String>();
+
+		Map<String, List<String>> buckets = readBuckets(crush);
+		Map<String, String> bucketIds = bucketIds(buckets);
+
+		for (Entry<String, List<String>> bucket : buckets.entrySet()) {
+			for (String file : bucket.getValue()) {
+				bucketFiles.add(format("%s\t%s", bucketIds.get(bucket.getKey()), file));
+			}
+		}
+
+		return bucketFiles;
+	}
+
+	/**
+	 * Returns the partition of each bucket by the name of the bucket within its directory.
+	 */
+	private Map<String, Integer> readPartitions(Crush crush) throws IOException {
+		Map<String, Integer> partitions = new HashMap<String, Integer>();
+
+		for (Entry<String, String> entry : bucketIds(readBuckets(crush)).entrySet()) {
+			String bucketId = entry.getValue();
+
+			partitions.put(bucketId.substring(bucketId.lastIndexOf('/') + 1), CrushPartitioner.partition(new Text(entry.getKey())));
+		}
+
+		return partitions;
+	}
+
+	/**
+	 * Returns the paths of the source files in each bucket by the key of the bucket, in the order of the keys.
+	 */
+	private Map<String, List<String>> readBuckets(Crush crush) throws IOException {
+		Map<String, List<String>> buckets = new TreeMap<String, List<String>>();
+
+		Text key = new Text();
+		Text value = new Text();
+
+		Reader reader = new Reader(FileSystem.get(job), crush.getBucketFiles(), job);
+
+		while (reader.next(key, value)) {
+			List<String> files = buckets.get(key.toString());
+
+			if (null == files) {
+				files = new ArrayList<String>();
+
+				buckets.put(key.toString(), files);
+			}
+
+			files.add(sourcePath(value));
+		}
+
+		reader.close();
+
+		return buckets;
+	}
+
+	/**
+	 * Recovers the bucket ids from the keys, which only number the buckets within their partitions. A bucket id is the directory of
+	 * the files in the bucket followed by the number of the bucket within the directory. The buckets of a directory are numbered in
+	 * the order of their keys, which is right whenever the directory has one bucket or all its buckets share a partition.
+	 */
+	private static Map<String, String> bucketIds(Map<String, List<String>> buckets) {
+		Map<String, String> bucketIds = new HashMap<String, String>();
+		Map<String, Integer> dirBuckets = new HashMap<String, Integer>();
+
+		for (Entry<String, List<String>> bucket : buckets.entrySet()) {
+			String dir = new File(bucket.getValue().get(0)).getParent();
+
+			Integer n = dirBuckets.get(dir);
+
+			if (null == n) {
+				n = 0;
+			}
+
+			bucketIds.put(bucket.getKey(), dir + "-" + n);
+
+			dirBuckets.put(dir, n + 1);
+		}
+
+		return bucketIds;
+	}
+
+	/**
+	 * Recovers the bucket ids from the keys by looking for the expected bucket with the same files. A bucket without a match keeps
+	 * its key, which fails the comparison with the expected bucket files.
+	 *
+	 * @param expectedBucketFiles
+	 *          The bucket id and the path of the source file separated by a tab for each file
+	 */
+	private static Map<String, String> matchBucketIds(Map<String, List<String>> buckets, List<String> expectedBucketFiles) {
+		Map<Set<String>, String> expected = new HashMap<Set<String>, String>();
+		Map<String, Set<String>> expectedBuckets = new HashMap<String, Set<String>>();
+
+		for (String bucketFile : expectedBucketFiles) {
+			int tab = bucketFile.indexOf('\t');
+
+			String bucketId = bucketFile.substring(0, tab);
+
+			Set<String> files = expectedBuckets.get(bucketId);
+
+			if (null == files) {
+				files = new HashSet<String>();
+
+				expectedBuckets.put(bucketId, files);
+			}
+
+			files.add(bucketFile.substring(tab + 1));
+		}
+
+		for (Entry<String, Set<String>> entry : expectedBuckets.entrySet()) {
+			expected.put(entry.getValue(), entry.getKey());
+		}
+
+		Map<String, String> bucketIds = new HashMap<String, String>();
+
+		for (Entry<String, List<String>> bucket : buckets.entrySet()) {
+			String bucketId = expected.get(new HashSet<String>(bucket.getValue()));
+
+			bucketIds.put(bucket.getKey(), null == bucketId ? bucket.getKey() : bucketId);
+		}
+
+		return bucketIds;
+	}
+
+	/**
+	 * Returns the path of the source file in a value of the bucket files after checking the length that the value carries.
+	 */
+	private static String sourcePath(Text value) {
+		SourceFile source = SourceFile.parse(value.toString());
+
+		assertThat(source.length(), equalTo(new File(source.path()).length()));
+
+		return source.path();
+	}
+
 	/**
 	 * Returns a qualified file status, just like {@link FileSystem#listStatus(Path)} does.
 	 */
+	/**
+	 * Moves the modification time of the directory forward so that it differs from the one recorded within the same second.
+	 */
+	private static void touch(File dir) {
+		dir.setLastModified(dir.lastModified() + 60000);
+	}
+
 	private static FileStatus createFile(File dir, String fileName, int size) {
 		File file = new File(dir, fileName);
 
@@ -0,0 +1,278 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.m6d.filecrush.crush.DirectoryScanner.Listing;
+
+@SuppressWarnings("deprecation")
+public class DirectoryScannerTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private FileSystem fs;
+
+	private File in;
+
+	@Before
+	public void before() throws IOException {
+		JobConf job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+		fs = FileSystem.get(job);
+
+		/*
+		 * 	in/
+		 * 			a/
+		 * 					a1/
+		 * 							file1
+		 * 					file2
+		 * 			b/
+		 * 					b1/
+		 * 					b2/
+		 * 							file3
+		 * 			c/
+		 * 			file4
+		 * 			ignored
+		 */
+		in = tmp.newFolder("in");
+
+		tmp.newFolder("in/c");
+		tmp.newFolder("in/b");
+		tmp.newFolder("in/b/b2");
+		tmp.newFolder("in/b/b1");
+		tmp.newFolder("in/a");
+		tmp.newFolder("in/a/a1");
+
+		tmp.newFile("in/ignored");
+		tmp.newFile("in/file4");
+		tmp.newFile("in/b/b2/file3");
+		tmp.newFile("in/a/file2");
+		tmp.newFile("in/a/a1/file1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noThreads() {
+		new DirectoryScanner(fs, null, 0);
+	}
+
+	@Test
+	public void nothingAdded() throws IOException {
+		DirectoryScanner scanner = new DirectoryScanner(fs, null, 2);
+
+		try {
+			assertThat(scanner.next(), nullValue());
+		} finally {
+			scanner.close();
+		}
+	}
+
+	@Test
+	public void breadthFirstSingleThread() throws IOException {
+		assertThat(scan(1, null), equalTo(expected(true)));
+	}
+
+	@Test
+	public void breadthFirstManyThreads() throws IOException {
+		assertThat(scan(5, null), equalTo(expected(true)));
+	}
+
+	@Test
+	public void ignoredFiles() throws IOException {
+		assertThat(scan(3, Pattern.compile(".+/ignored")), equalTo(expected(false)));
+	}
+
+	@Test
+	public void blockLocations() throws IOException {
+		FileOutputStream os = new FileOutputStream(new File(in, "a/file2"));
+		os.write(new byte[10]);
+		os.close();
+
+		DirectoryScanner scanner = new DirectoryScanner(fs, null, null, 5, false, 2);
+
+		try {
+			scanner.add(fs.getFileStatus(new Path(new File(in, "a").getAbsolutePath())));
+
+			Listing listing = scanner.next();
+
+			/*
+			 * Directories are never located and file2 is too long.
+			 */
+			assertThat(listing.contents().length, equalTo(2));
+			assertThat(listing.hosts(0), nullValue());
+			assertThat(listing.hosts(1), nullValue());
+
+			listing = scanner.next();
+
+			/*
+			 * Empty files are not located either.
+			 */
+			assertThat(listing.dir().getName(), equalTo("a1"));
+			assertThat(listing.hosts(0), nullValue());
+		} finally {
+			scanner.close();
+		}
+
+		scanner = new DirectoryScanner(fs, null, null, 10, false, 2);
+
+		try {
+			scanner.add(fs.getFileStatus(new Path(new File(in, "a").getAbsolutePath())));
+
+			Listing listing = scanner.next();
+
+			assertThat(listing.contents()[1].getPath().getName(), equalTo("file2"));
+			assertThat(listing.hosts(1), equalTo(asList("localhost")));
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * A directory that the filter rejects is not listed and only the sub directories that the filter names for it are visited.
+	 */
+	@Test
+	public void filter() throws IOException {
+		final Path b = new Path(new File(in, "b").getAbsolutePath());
+
+		DirectoryScanner scanner = new DirectoryScanner(fs, null, new DirectoryScanner.Filter() {
+			@Override
+			public boolean accept(FileStatus dir) {
+				return !dir.getPath().getName().equals(in.getName()) && !dir.getPath().getName().equals("b1");
+			}
+
+			@Override
+			public FileStatus[] subDirectories(FileStatus dir) throws IOException {
+				return dir.getPath().getName().equals(in.getName()) ? new FileStatus[] { fs.getFileStatus(b) } : null;
+			}
+		}, -1, false, 2);
+
+		List<String> actual = new ArrayList<String>();
+
+		try {
+			scanner.add(fs.getFileStatus(new Path(in.getAbsolutePath())));
+
+			Listing listing;
+
+			while (null != (listing = scanner.next())) {
+				actual.add(listing.dir().getName() + (listing.skipped() ? " skipped" : " " + listing.contents().length));
+			}
+		} finally {
+			scanner.close();
+		}
+
+		assertThat(actual, equalTo(asList(in.getName() + " skipped", "b 2", "b1 skipped", "b2 1")));
+	}
+
+	/**
+	 * Directories are only fingerprinted for an incremental crush.
+	 */
+	@Test
+	public void fingerprints() throws IOException {
+		FileStatus a = fs.getFileStatus(new Path(new File(in, "a").getAbsolutePath()));
+
+		DirectoryScanner scanner = new DirectoryScanner(fs, null, 1);
+
+		try {
+			scanner.add(a);
+
+			assertThat(scanner.next().fingerprint(), nullValue());
+		} finally {
+			scanner.close();
+		}
+
+		scanner = new DirectoryScanner(fs, null, null, -1, true, 1);
+
+		try {
+			scanner.add(a);
+
+			assertThat(scanner.next().fingerprint().isLeaf(), equalTo(false));
+		} finally {
+			scanner.close();
+		}
+	}
+
+	private List<String> expected(boolean includeIgnored) {
+		List<String> expected = new ArrayList<String>();
+
+		String root = new Path(in.getAbsolutePath()).toUri().getPath();
+
+		if (includeIgnored) {
+			expected.add(root + " [a, b, c, file4, ignored]");
+		} else {
+			expected.add(root + " [a, b, c, file4]");
+		}
+
+		expected.add(root + "/a [a1, file2]");
+		expected.add(root + "/b [b1, b2]");
+		expected.add(root + "/c []");
+		expected.add(root + "/a/a1 [file1]");
+		expected.add(root + "/b/b1 []");
+		expected.add(root + "/b/b2 [file3]");
+
+		return expected;
+	}
+
+	/**
+	 * Returns one string per listing containing the directory and the names of its contents.
+	 */
+	private List<String> scan(int numThreads, Pattern ignored) throws IOException {
+		List<String> actual = new ArrayList<String>();
+
+		DirectoryScanner scanner = new DirectoryScanner(fs, ignored, numThreads);
+
+		try {
+			scanner.add(fs.getFileStatus(new Path(in.getAbsolutePath())));
+
+			Listing listing;
+
+			while (null != (listing = scanner.next())) {
+				List<String> names = new ArrayList<String>();
+
+				for (FileStatus content : listing.contents()) {
+					names.add(content.getPath().getName());
+				}
+
+				actual.add(listing.dir().toUri().getPath() + " " + names);
+			}
+		} finally {
+			scanner.close();
+		}
+
+		return actual;
+	}
+}
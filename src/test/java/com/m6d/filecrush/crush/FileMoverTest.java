@@ -0,0 +1,405 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("deprecation")
+public class FileMoverTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Counts the directories created through it.
+	 */
+	private FileSystem fs;
+
+	private final AtomicInteger mkdirs = new AtomicInteger();
+
+	private final List<String> moved = Collections.synchronizedList(new ArrayList<String>());
+
+	private FileMover mover;
+
+	@Before
+	public void before() throws IOException {
+		JobConf job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+		fs = new FilterFileSystem(FileSystem.get(job)) {
+			@Override
+			public boolean mkdirs(Path f) throws IOException {
+				mkdirs.incrementAndGet();
+
+				return super.mkdirs(f);
+			}
+		};
+
+		mover = new FileMover(fs, asList(".bz2", ".gz"), new FileMover.Listener() {
+			@Override
+			public void moved(Path src, Path dest) {
+				moved.add(src.getName() + " " + dest.getName());
+			}
+		}, new RenameJournal(fs, path("journal")), 3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noThreads() {
+		new FileMover(fs, null, null, new RenameJournal(fs, path("journal")), 0);
+	}
+
+	@Test
+	public void nothingAdded() throws IOException {
+		try {
+			assertThat(mover.run(), equalTo(0));
+			assertThat(mkdirs.get(), equalTo(0));
+		} finally {
+			mover.close();
+		}
+	}
+
+	/**
+	 * Each destination directory is created once, even across batches, and more files than fit in a chunk are all moved.
+	 */
+	@Test
+	public void batches() throws IOException {
+		File in = tmp.newFolder("in");
+
+		int n = FileMover.CHUNK_SIZE + 10;
+
+		try {
+			for (int i = 0; i < n; i++) {
+				new File(in, "file" + i).createNewFile();
+
+				mover.add(path(in, "file" + i), path("out/a/" + (i % 2)));
+			}
+
+			assertThat(mover.run(), equalTo(n));
+			assertThat(mkdirs.get(), equalTo(2));
+
+			new File(in, "file").createNewFile();
+			new File(in, "file" + n).createNewFile();
+
+			mover.add(path(in, "file"), path("out/a/0"));
+
+			/*
+			 * out/a is known to exist because out/a/0 was created.
+			 */
+			mover.add(path(in, "file" + n), path("out/a"));
+
+			assertThat(mover.run(), equalTo(2));
+			assertThat(mkdirs.get(), equalTo(2));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(in.list().length, equalTo(0));
+		assertThat(new File(tmp.getRoot(), "out/a/0").list().length, equalTo(n / 2 + 1));
+		assertThat(new File(tmp.getRoot(), "out/a/1").list().length, equalTo(n / 2));
+		assertThat(new File(tmp.getRoot(), "out/a/file" + n).exists(), equalTo(true));
+		assertThat(moved.size(), equalTo(n + 2));
+	}
+
+	/**
+	 * Files written by an output format may have the extension of any of the codecs appended to their names.
+	 */
+	@Test
+	public void output() throws IOException {
+		File in = tmp.newFolder("in");
+
+		new File(in, "crushed.gz").createNewFile();
+		new File(in, "skipped").createNewFile();
+
+		try {
+			mover.addOutput(path(in, "crushed"), path("out"));
+			mover.add(path(in, "skipped"), path("out"));
+
+			assertThat(mover.run(), equalTo(2));
+
+			mover.add(0, path("out/skipped"), path("out/renamed"), "file");
+
+			assertThat(mover.run(), equalTo(1));
+		} finally {
+			mover.close();
+		}
+
+		Collections.sort(moved);
+
+		assertThat(moved.toString(), equalTo("[crushed.gz crushed.gz, skipped file, skipped skipped]"));
+	}
+
+	/**
+	 * Each batch completes before the next one starts, so a batch can move the directory that the previous batch filled.
+	 */
+	@Test
+	public void ordered() throws IOException {
+		File in = tmp.newFolder("in");
+
+		new File(in, "file").createNewFile();
+
+		try {
+			mover.addDir(0, path("new"), new FsPermission((short) 0700));
+			mover.add(0, path(in, "file"), path("new"), null);
+			mover.add(1, path("in"), path("clone"), "in");
+			mover.add(2, path("new"), new Path(tmp.getRoot().getAbsolutePath()), "in");
+
+			assertThat(mover.run(), equalTo(3));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(new File(tmp.getRoot(), "clone/in").list().length, equalTo(0));
+		assertThat(new File(tmp.getRoot(), "in/file").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "new").exists(), equalTo(false));
+		assertThat(fs.getFileStatus(path("in")).getPermission().toShort(), equalTo((short) 0700));
+	}
+
+	/**
+	 * The files of a batch are moved grouped by their destination directories rather than in the order they were added.
+	 */
+	@Test
+	public void groupedByDestination() throws IOException {
+		File in = tmp.newFolder("in");
+
+		mover = new FileMover(fs, null, new FileMover.Listener() {
+			@Override
+			public void moved(Path src, Path dest) {
+				moved.add(dest.getParent().getName());
+			}
+		}, new RenameJournal(fs, path("journal")), 1);
+
+		try {
+			for (int i = 0; i < 6; i++) {
+				new File(in, "file" + i).createNewFile();
+
+				mover.add(path(in, "file" + i), path(0 == i % 2 ? "b" : "a"));
+			}
+
+			assertThat(mover.run(), equalTo(6));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(moved, equalTo(asList("a", "a", "a", "b", "b", "b")));
+	}
+
+	/**
+	 * The journal is gone once the plan has been executed.
+	 */
+	@Test
+	public void journal() throws IOException {
+		File in = tmp.newFolder("in");
+
+		new File(in, "file").createNewFile();
+
+		RenameJournal journal = new RenameJournal(fs, path("journal"));
+
+		mover = new FileMover(fs, null, null, journal, 2);
+
+		try {
+			mover.add(path(in, "file"), path("out"));
+
+			assertThat(mover.run(), equalTo(1));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(journal.isOpen(), equalTo(false));
+		assertThat(new File(tmp.getRoot(), "journal").list().length, equalTo(0));
+
+		mover = new FileMover(fs, null, null, new RenameJournal(fs, path("journal")), 2);
+
+		try {
+			assertThat(mover.resume(), equalTo(-1));
+		} finally {
+			mover.close();
+		}
+	}
+
+	/**
+	 * A mover that fails in the middle of a batch leaves the plan behind. Resuming skips the batches that were completed, skips the
+	 * files of the interrupted batch that were already moved and executes the rest.
+	 */
+	@Test
+	public void resume() throws IOException {
+		File in = tmp.newFolder("in");
+
+		for (int i = 0; i < 4; i++) {
+			new File(in, "file" + i).createNewFile();
+		}
+
+		FileSystem failing = new FilterFileSystem(fs) {
+			@Override
+			public boolean rename(Path src, Path dst) throws IOException {
+				if (src.getName().equals("file3")) {
+					throw new IOException("Failed to rename " + src);
+				}
+
+				return super.rename(src, dst);
+			}
+		};
+
+		RenameJournal journal = new RenameJournal(failing, path("journal"));
+
+		FileMover failingMover = new FileMover(failing, null, null, journal, 1);
+
+		try {
+			failingMover.add(0, path(in, "file0"), path("first"), null);
+			failingMover.add(1, path(in, "file1"), path("second"), null);
+			failingMover.add(1, path(in, "file2"), path("second"), null);
+			failingMover.add(1, path(in, "file3"), path("second"), null);
+			failingMover.add(2, path("second"), path("third"), null);
+
+			failingMover.run();
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("file3")) {
+				throw e;
+			}
+		} finally {
+			failingMover.close();
+		}
+
+		assertThat(journal.isOpen(), equalTo(true));
+		assertThat(journal.next(), equalTo(1));
+
+		/*
+		 * The plan is left as it was sealed and only the first batch has a completion marker.
+		 */
+		assertThat(new File(tmp.getRoot(), "journal/plan/files.0").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "journal/plan/files.1").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "journal/plan/files.2").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "journal/done.0").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "journal/done.1").exists(), equalTo(false));
+
+		/*
+		 * Move the file of the first batch back to tell whether resuming executes the first batch again.
+		 */
+		new File(tmp.getRoot(), "first/file0").renameTo(new File(in, "file0"));
+
+		mover = new FileMover(fs, null, new FileMover.Listener() {
+			@Override
+			public void moved(Path src, Path dest) {
+				moved.add(src.getName() + " " + dest.getName());
+			}
+		}, new RenameJournal(fs, path("journal")), 2);
+
+		try {
+			assertThat(mover.resume(), equalTo(2));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(moved.toString(), equalTo("[file3 file3, second second]"));
+		assertThat(new File(in, "file0").exists(), equalTo(true));
+		assertThat(new File(tmp.getRoot(), "third/second").list().length, equalTo(3));
+		assertThat(new File(tmp.getRoot(), "journal").list().length, equalTo(0));
+	}
+
+	/**
+	 * Resuming skips an output file that was moved under the name with the codec extension.
+	 */
+	@Test
+	public void resumeOutput() throws IOException {
+		File in = tmp.newFolder("in");
+
+		new File(in, "crushed.gz").createNewFile();
+		new File(in, "skipped").createNewFile();
+
+		FileSystem failing = new FilterFileSystem(fs) {
+			@Override
+			public boolean rename(Path src, Path dst) throws IOException {
+				if (src.getName().equals("skipped")) {
+					throw new IOException("Failed to rename " + src);
+				}
+
+				return super.rename(src, dst);
+			}
+		};
+
+		FileMover failingMover = new FileMover(failing, asList(".bz2", ".gz"), null, new RenameJournal(failing, path("journal")), 1);
+
+		try {
+			failingMover.addOutput(path(in, "crushed"), path("out"));
+			failingMover.add(path(in, "skipped"), path("out"));
+
+			failingMover.run();
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("skipped")) {
+				throw e;
+			}
+		} finally {
+			failingMover.close();
+		}
+
+		try {
+			assertThat(mover.resume(), equalTo(1));
+		} finally {
+			mover.close();
+		}
+
+		assertThat(moved.toString(), equalTo("[skipped skipped]"));
+		assertThat(new File(tmp.getRoot(), "out/crushed.gz").exists(), equalTo(true));
+	}
+
+	@Test
+	public void fileNotFound() throws IOException {
+		File in = tmp.newFolder("in");
+
+		try {
+			mover.add(path(in, "does-not-exist"), path("out"));
+
+			mover.run();
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("does-not-exist")) {
+				throw e;
+			}
+		} finally {
+			mover.close();
+		}
+	}
+
+	private Path path(File dir, String name) {
+		return new Path(new File(dir, name).getAbsolutePath());
+	}
+
+	private Path path(String name) {
+		return path(tmp.getRoot(), name);
+	}
+}
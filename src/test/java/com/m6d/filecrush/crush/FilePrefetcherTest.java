@@ -0,0 +1,315 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("deprecation")
+public class FilePrefetcherTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private FileSystem fs;
+
+	private FilePrefetcher prefetcher;
+
+	private final AtomicInteger opens = new AtomicInteger();
+
+	@Before
+	public void before() throws IOException {
+		JobConf job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+		fs = FileSystem.get(job);
+
+		prefetcher = new FilePrefetcher(fs, 2, 100);
+	}
+
+	@After
+	public void after() {
+		prefetcher.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeThreads() {
+		new FilePrefetcher(fs, -1, 100);
+	}
+
+	@Test
+	public void disabled() throws IOException {
+		FilePrefetcher disabled = new FilePrefetcher(fs, 0, 100);
+
+		try {
+			assertThat(disabled.isEnabled(), equalTo(false));
+
+			byte[] data = createFile("file", 50);
+
+			disabled.prefetch(path("file"));
+
+			assertThat(readFully(disabled.open(path("file"))), equalTo(data));
+		} finally {
+			disabled.close();
+		}
+	}
+
+	/**
+	 * A file that fits in the buffer can be opened again without the file system.
+	 */
+	@Test
+	public void smallFile() throws IOException {
+		byte[] data = createFile("small", 100);
+
+		prefetcher.prefetch(path("small"));
+
+		FSDataInputStream in = prefetcher.open(path("small"));
+
+		new File(tmp.getRoot(), "small").delete();
+
+		assertThat(readFully(in), equalTo(data));
+		assertThat(readFully(prefetcher.open(path("small"))), equalTo(data));
+
+		try {
+			prefetcher.open(path("small2"));
+			fail();
+		} catch (FileNotFoundException ok) {
+		}
+	}
+
+	@Test
+	public void largeFile() throws IOException {
+		byte[] data = createFile("large", 250);
+
+		prefetcher.prefetch(path("large"));
+
+		FSDataInputStream in = prefetcher.open(path("large"));
+
+		try {
+			assertThat(readFully(in), equalTo(data));
+
+			/*
+			 * Back into the buffer and then past it again.
+			 */
+			in.seek(90);
+
+			byte[] b = new byte[20];
+			in.readFully(b);
+
+			assertThat(b, equalTo(Arrays.copyOfRange(data, 90, 110)));
+			assertThat(in.getPos(), equalTo(110L));
+
+			in.readFully(95, b);
+
+			assertThat(b, equalTo(Arrays.copyOfRange(data, 95, 115)));
+
+			in.seek(200);
+
+			assertThat(in.read(), equalTo(data[200] & 0xff));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The buffer is no longer than the planned length of the file, which may have grown since.
+	 */
+	@Test
+	public void grownFile() throws IOException {
+		byte[] data = createFile("grown", 80);
+
+		prefetcher.prefetch(path("grown"), 30);
+
+		assertThat(readFully(prefetcher.open(path("grown"))), equalTo(data));
+	}
+
+	/**
+	 * A file that does not fit in the buffer can be opened again without opening it a second time.
+	 */
+	@Test
+	public void reopenLargeFile() throws IOException {
+		byte[] data = createFile("large", 250);
+
+		FilePrefetcher counting = new FilePrefetcher(countingFs(), 1, 100);
+
+		try {
+			counting.prefetch(path("large"));
+
+			FSDataInputStream in = counting.open(path("large"));
+
+			in.seek(200);
+			in.close();
+
+			assertThat(readFully(counting.open(path("large"))), equalTo(data));
+			assertThat(opens.get(), equalTo(1));
+		} finally {
+			counting.close();
+		}
+	}
+
+	/**
+	 * Threads that share a prefetcher do not evict the files that the other threads opened last.
+	 */
+	@Test
+	public void reopenPerThread() throws Exception {
+		final byte[] a = createFile("a", 50);
+		final byte[] b = createFile("b", 150);
+
+		final FilePrefetcher counting = new FilePrefetcher(countingFs(), 2, 100);
+
+		try {
+			counting.prefetch(path("a"));
+			counting.prefetch(path("b"));
+
+			assertThat(readFully(counting.open(path("a"))), equalTo(a));
+
+			Thread other = new Thread() {
+				@Override
+				public void run() {
+					try {
+						assertThat(readFully(counting.open(path("b"))), equalTo(b));
+						assertThat(readFully(counting.open(path("b"))), equalTo(b));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+
+			final List<Throwable> failures = new ArrayList<Throwable>();
+
+			other.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable e) {
+					failures.add(e);
+				}
+			});
+
+			other.start();
+			other.join();
+
+			assertThat(failures.isEmpty(), equalTo(true));
+
+			assertThat(readFully(counting.open(path("a"))), equalTo(a));
+			assertThat(opens.get(), equalTo(2));
+		} finally {
+			counting.close();
+		}
+	}
+
+	@Test
+	public void emptyFile() throws IOException {
+		createFile("empty", 0);
+
+		prefetcher.prefetch(path("empty"));
+
+		assertThat(prefetcher.open(path("empty")).read(), equalTo(-1));
+	}
+
+	@Test
+	public void missingFile() throws IOException {
+		prefetcher.prefetch(path("missing"));
+
+		try {
+			prefetcher.open(path("missing"));
+			fail();
+		} catch (FileNotFoundException ok) {
+		}
+	}
+
+	@Test
+	public void notPrefetched() throws IOException {
+		byte[] data = createFile("file", 150);
+
+		prefetcher.prefetch(path("other"));
+
+		assertThat(readFully(prefetcher.open(path("file"))), equalTo(data));
+	}
+
+	/**
+	 * Returns a file system that counts the files opened through it in {@link #opens}.
+	 */
+	private FileSystem countingFs() {
+		return new FilterFileSystem(fs) {
+			@Override
+			public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+				opens.incrementAndGet();
+
+				return super.open(f, bufferSize);
+			}
+		};
+	}
+
+	private Path path(String name) {
+		return new Path(new File(tmp.getRoot(), name).getAbsolutePath());
+	}
+
+	private byte[] createFile(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (i * 7);
+		}
+
+		FileOutputStream os = new FileOutputStream(new File(tmp.getRoot(), name));
+
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+
+		return data;
+	}
+
+	private static byte[] readFully(FSDataInputStream in) throws IOException {
+		byte[] data = new byte[0];
+		byte[] buffer = new byte[64];
+
+		int n;
+
+		while (-1 != (n = in.read(buffer))) {
+			int length = data.length;
+
+			data = Arrays.copyOf(data, length + n);
+
+			System.arraycopy(buffer, 0, data, length, n);
+		}
+
+		return data;
+	}
+}
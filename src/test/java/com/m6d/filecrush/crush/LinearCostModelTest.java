@@ -0,0 +1,209 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.m6d.filecrush.crush.LinearCostModel.Sample;
+
+public class LinearCostModelTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void defaultCosts() {
+		LinearCostModel model = new LinearCostModel();
+		model.setConf(new Configuration(false));
+
+		assertThat(model.cost(100, 2), equalTo(100 + 2 * 1024 * 1024L));
+	}
+
+	@Test
+	public void configuredCosts() {
+		Configuration conf = new Configuration(false);
+		conf.setLong(LinearCostModel.FILE_COST, 10);
+		conf.setFloat(LinearCostModel.RECORD_COST, 2);
+		conf.setFloat(LinearCostModel.RECORD_SIZE, 4);
+
+		LinearCostModel model = new LinearCostModel();
+		model.setConf(conf);
+
+		/*
+		 * 100 bytes + 3 files * 10 + 25 records * 2.
+		 */
+		assertThat(model.cost(100, 3), equalTo(180L));
+	}
+
+	@Test
+	public void recordsWithoutSize() {
+		Configuration conf = new Configuration(false);
+		conf.setLong(LinearCostModel.FILE_COST, 0);
+		conf.setFloat(LinearCostModel.RECORD_COST, 2);
+
+		LinearCostModel model = new LinearCostModel();
+		model.setConf(conf);
+
+		assertThat(model.cost(100, 3), equalTo(100L));
+	}
+
+	@Test
+	public void negativeFileCost() {
+		Configuration conf = new Configuration(false);
+		conf.setLong(LinearCostModel.FILE_COST, -1);
+
+		try {
+			new LinearCostModel().setConf(conf);
+			fail();
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().contains(LinearCostModel.FILE_COST)) {
+				throw e;
+			}
+		}
+	}
+
+	@Test
+	public void calibrate() {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		long bytes = 0;
+		long records = 0;
+
+		/*
+		 * 2 seconds to start a task, 1 ms per 1,000 bytes, 5 ms per file, and 0.01 ms per record, with records of different sizes.
+		 */
+		for (int i = 0; i < 20; i++) {
+			long taskBytes = 1000000L * (1 + i % 7);
+			long taskFiles = 10 + 37 * i % 100;
+			long taskRecords = taskBytes / (50 + 13 * i % 11);
+
+			samples.add(new Sample(Math.round(2000 + taskBytes / 1000.0 + 5 * taskFiles + 0.01 * taskRecords), taskBytes, taskFiles,
+					taskRecords));
+
+			bytes += taskBytes;
+			records += taskRecords;
+		}
+
+		Configuration conf = new Configuration(false);
+
+		assertThat(LinearCostModel.calibrate(conf, samples), equalTo(true));
+
+		assertThat((double) conf.getLong(LinearCostModel.FILE_COST, -1), closeTo(5000, 100));
+		assertThat((double) conf.getFloat(LinearCostModel.RECORD_COST, -1), closeTo(10, 1));
+		assertThat((double) conf.getFloat(LinearCostModel.RECORD_SIZE, -1), closeTo((double) bytes / records, 0.01));
+
+		/*
+		 * 1,000 bytes a millisecond.
+		 */
+		assertThat((double) conf.getFloat(CostModel.THROUGHPUT, -1), closeTo(1000000, 10000));
+	}
+
+	@Test
+	public void calibrateRecordsOfOneSize() {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		/*
+		 * The records cannot be told apart from the bytes so the bytes take all of the time.
+		 */
+		for (int i = 0; i < 20; i++) {
+			long taskBytes = 1000000L * (1 + i % 7);
+			long taskFiles = 10 + 37 * i % 100;
+
+			samples.add(new Sample(Math.round(2000 + taskBytes / 1000.0 + 5 * taskFiles), taskBytes, taskFiles, taskBytes / 100));
+		}
+
+		Configuration conf = new Configuration(false);
+
+		assertThat(LinearCostModel.calibrate(conf, samples), equalTo(true));
+
+		assertThat((double) conf.getLong(LinearCostModel.FILE_COST, -1), closeTo(5000, 100));
+		assertThat(conf.getFloat(LinearCostModel.RECORD_COST, -1), equalTo(0f));
+		assertThat(conf.getFloat(LinearCostModel.RECORD_SIZE, -1), equalTo(0f));
+	}
+
+	@Test
+	public void calibrateTooFewSamples() {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		for (int i = 0; i < 5; i++) {
+			samples.add(new Sample(1000 + i, 1000 * i, i, 0));
+		}
+
+		Configuration conf = new Configuration(false);
+
+		assertThat(LinearCostModel.calibrate(conf, samples), equalTo(false));
+
+		assertThat(conf.get(LinearCostModel.FILE_COST), nullValue());
+	}
+
+	@Test
+	public void calibrateTimeNotGrowingWithBytes() {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		for (int i = 0; i < 20; i++) {
+			samples.add(new Sample(1000 + 5 * i, 1000000L * (20 - i), i, 0));
+		}
+
+		assertThat(LinearCostModel.calibrate(new Configuration(false), samples), equalTo(false));
+	}
+
+	@Test
+	public void readWrite() throws IOException {
+		Configuration conf = new Configuration(false);
+		conf.set("fs.default.name", "file:///");
+
+		Path samplesFile = new Path(tmp.getRoot().getAbsolutePath(), "calibration");
+
+		assertThat(LinearCostModel.read(conf, samplesFile).isEmpty(), equalTo(true));
+
+		List<Sample> samples = new ArrayList<Sample>();
+		samples.add(new Sample(1, 2, 3, 4));
+		samples.add(new Sample(5, 6, 7, 8));
+
+		LinearCostModel.write(conf, samplesFile, samples);
+
+		samples.add(new Sample(9, 10, 11, 12));
+
+		LinearCostModel.write(conf, samplesFile, samples);
+
+		List<String> actual = new ArrayList<String>();
+
+		for (Sample sample : LinearCostModel.read(conf, samplesFile)) {
+			actual.add(sample.toString());
+		}
+
+		List<String> expected = new ArrayList<String>();
+
+		for (Sample sample : samples) {
+			expected.add(sample.toString());
+		}
+
+		assertThat(actual, equalTo(expected));
+	}
+}
@@ -0,0 +1,229 @@
+/*
+   Copyright 2011 m6d.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.m6d.filecrush.crush;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.m6d.filecrush.crush.ListingFileSystem.Parser;
+
+@SuppressWarnings("deprecation")
+public class ListingFileSystemTest {
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private JobConf job;
+
+	private FileSystem fs;
+
+	private final Parser parser = new Parser();
+
+	@Before
+	public void before() throws IOException {
+		job = new JobConf(false);
+
+		job.set("fs.default.name", "file:///");
+		job.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+		fs = FileSystem.get(job);
+	}
+
+	@Test
+	public void parseLsrFile() throws Exception {
+		FileStatus status = parser.parse("-rw-r--r--   3 joe      staff          1234 2011-03-04 05:06 /user/joe/in/file", fs);
+
+		assertThat(status.getPath(), equalTo(fs.makeQualified(new Path("/user/joe/in/file"))));
+		assertThat(status.isDir(), is(false));
+		assertThat(status.getLen(), equalTo(1234L));
+		assertThat((int) status.getReplication(), equalTo(3));
+		assertThat(status.getOwner(), equalTo("joe"));
+		assertThat(status.getGroup(), equalTo("staff"));
+		assertThat(status.getPermission().toString(), equalTo("rw-r--r--"));
+		assertThat(status.getModificationTime(), equalTo(new SimpleDateFormat("yyyy-MM-dd HH:mm").parse("2011-03-04 05:06").getTime()));
+	}
+
+	@Test
+	public void parseLsrDir() throws Exception {
+		FileStatus status = parser.parse("drwxr-xr-x+  - joe staff 0 2011-03-04 05:06 /user/joe/in/a  dir", fs);
+
+		assertThat(status.getPath().toUri().getPath(), equalTo("/user/joe/in/a  dir"));
+		assertThat(status.isDir(), is(true));
+		assertThat(status.getPermission().toString(), equalTo("rwxr-xr-x"));
+	}
+
+	@Test
+	public void parseDelimited() throws Exception {
+		FileStatus status = parser.parse(
+				"/user/joe/in/file\t3\t2011-03-04 05:06\t2011-03-04 05:07\t134217728\t1\t1234\t0\t0\t-rw-r--r--\tjoe\tstaff", fs);
+
+		assertThat(status.getPath(), equalTo(fs.makeQualified(new Path("/user/joe/in/file"))));
+		assertThat(status.isDir(), is(false));
+		assertThat(status.getLen(), equalTo(1234L));
+		assertThat(status.getOwner(), equalTo("joe"));
+
+		status = parser.parse("/user/joe/in\t0\t2011-03-04 05:06\t1970-01-01 00:00\t0\t0\t0\t-1\t-1\tdrwxr-xr-x\tjoe\tstaff", fs);
+
+		assertThat(status.isDir(), is(true));
+	}
+
+	@Test
+	public void parseNoEntry() {
+		assertThat(parser.parse("", fs), nullValue());
+		assertThat(parser.parse("Found 3 items", fs), nullValue());
+		assertThat(parser.parse("Path\tReplication\tModificationTime\tAccessTime\tPreferredBlockSize\tBlocksCount\tFileSize"
+				+ "\tNSQUOTA\tDSQUOTA\tPermission\tUserName\tGroupName", fs), nullValue());
+	}
+
+	@Test
+	public void parseMalformed() {
+		for (String line : new String[] {
+				"-rw-r--r--   3 joe staff 1234 2011-03-04",
+				"-rw-r--r--   3 joe staff lots 2011-03-04 05:06 /file",
+				"-rw-r--r--   3 joe staff 1234 yesterday noon /file",
+				"rw   3 joe staff 1234 2011-03-04 05:06 /file",
+				"/file\t3\t2011-03-04 05:06" }) {
+			try {
+				parser.parse(line, fs);
+				fail(line);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void read() throws Exception {
+		File listing = tmp.newFile("listing");
+
+		PrintWriter writer = new PrintWriter(listing);
+
+		writer.println("drwxr-xr-x   - joe staff    0 2011-03-04 05:06 /in");
+		writer.println("drwxr-xr-x   - joe staff    0 2011-03-04 05:06 /in/a");
+		writer.println("-rw-r--r--   3 joe staff   10 2011-03-04 05:06 /in/a/file2");
+		writer.println("drwxr-xr-x   - joe staff    0 2011-03-04 05:06 /in/a/b");
+		writer.println("-rw-r--r--   3 joe staff   20 2011-03-04 05:06 /in/a/b/file3");
+		writer.println("-rw-r--r--   3 joe staff   30 2011-03-04 05:06 /in/a/file1");
+		writer.println("-rw-r--r--   3 joe staff   40 2011-03-04 05:06 /in/file0");
+		writer.println("-rw-r--r--   3 joe staff   50 2011-03-04 05:06 /other/file");
+
+		writer.close();
+
+		File work = new File(tmp.getRoot(), "work");
+
+		ListingFileSystem listingFs = ListingFileSystem.read(fs, job, new Path(listing.getAbsolutePath()), new Path("/in/a"),
+				new Path(work.getAbsolutePath()));
+
+		/*
+		 * The entries of /in/a are not next to each other in the listing.
+		 */
+		assertThat(names(listingFs.listStatus(new Path("/in/a"))), equalTo("[b, file1, file2]"));
+		assertThat(names(listingFs.listStatus(new Path("/in/a/b"))), equalTo("[file3]"));
+
+		FileStatus file3 = listingFs.listStatus(new Path("/in/a/b"))[0];
+
+		assertThat(file3.getPath(), equalTo(fs.makeQualified(new Path("/in/a/b/file3"))));
+		assertThat(file3.getLen(), equalTo(20L));
+
+		/*
+		 * Outside of the root.
+		 */
+		assertThat(names(listingFs.listStatus(new Path("/in"))), equalTo("[]"));
+		assertThat(names(listingFs.listStatus(new Path("/other"))), equalTo("[]"));
+
+		listingFs.discard();
+
+		assertThat(work.exists(), is(false));
+	}
+
+	/**
+	 * Nothing in the listing is below the root.
+	 */
+	@Test
+	public void readNothing() throws Exception {
+		File listing = tmp.newFile("listing");
+
+		PrintWriter writer = new PrintWriter(listing);
+
+		writer.println("-rw-r--r--   3 joe staff   50 2011-03-04 05:06 /other/file");
+
+		writer.close();
+
+		ListingFileSystem listingFs = ListingFileSystem.read(fs, job, new Path(listing.getAbsolutePath()), new Path("/in"), new Path(
+				tmp.getRoot().getAbsolutePath(), "work"));
+
+		try {
+			assertThat(names(listingFs.listStatus(new Path("/in"))), equalTo("[]"));
+		} finally {
+			listingFs.discard();
+		}
+	}
+
+	@Test
+	public void readMalformed() throws Exception {
+		File listing = tmp.newFile("listing");
+
+		PrintWriter writer = new PrintWriter(listing);
+
+		writer.println("drwxr-xr-x   - joe staff    0 2011-03-04 05:06 /in");
+		writer.println("-rw-r--r--   3 joe staff");
+
+		writer.close();
+
+		try {
+			ListingFileSystem.read(fs, job, new Path(listing.getAbsolutePath()), new Path("/in"), new Path(tmp.getRoot().getAbsolutePath(),
+					"work"));
+			fail();
+		} catch (IOException e) {
+			if (!e.getMessage().contains("line 2")) {
+				throw e;
+			}
+		}
+
+		assertThat(new File(tmp.getRoot(), "work").exists(), is(false));
+	}
+
+	private static String names(FileStatus[] contents) {
+		List<String> names = new ArrayList<String>();
+
+		for (FileStatus content : contents) {
+			names.add(content.getPath().getName());
+		}
+
+		Collections.sort(names);
+
+		return names.toString();
+	}
+}
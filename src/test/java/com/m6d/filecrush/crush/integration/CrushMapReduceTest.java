@@ -16,6 +16,7 @@
 
 package com.m6d.filecrush.crush.integration;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
@@ -29,8 +30,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -139,6 +142,11 @@ public class CrushMapReduceTest extends HadoopTestCase {
 		job.set("mapred.output.compression.type", CompressionType.BLOCK.name());
 		job.set("mapred.output.compression.codec", CustomCompressionCodec.class.getName());
 
+		/*
+		 * Run the crushes on the cluster even though they are small enough to run in process.
+		 */
+		job.setLong(Crush.LOCAL_MAX_BYTES, 0);
+
 		FileSystem fs = getFileSystem();
 
 		Path homeDirPath = fs.makeQualified(new Path("."));
@@ -350,11 +358,27 @@ public class CrushMapReduceTest extends HadoopTestCase {
 
 	@Test
 	public void execute() throws Exception {
+		execute(false);
+	}
+
+	@Test
+	public void executeMapOnly() throws Exception {
+		execute(true);
+	}
+
+	@Test
+	public void executeLocally() throws Exception {
+		job.setLong(Crush.LOCAL_MAX_BYTES, 64 * 1024 * 1024);
+
+		assertThat(execute(false).isLocal(), equalTo(true));
+	}
+
+	private Crush execute(boolean mapOnly) throws Exception {
 		writeFiles(true, true, true);
 
 		Crush crush = new Crush();
 
-		ToolRunner.run(job, crush, new String [] {
+		List<String> args = new ArrayList<String>(asList(
 			"--threshold=0.015",
 			"--max-file-blocks=1",
 			"--verbose",
@@ -389,8 +413,13 @@ public class CrushMapReduceTest extends HadoopTestCase {
 
 			"--compress=" + CustomCompressionCodec.class.getName(),
 
-			"in", "out", "20101116153015"
-		});
+			"in", "out", "20101116153015"));
+
+		if (mapOnly) {
+			args.add(0, "--map-only");
+		}
+
+		ToolRunner.run(job, crush, args.toArray(new String[args.size()]));
 
 
 		/*
@@ -455,6 +484,8 @@ public class CrushMapReduceTest extends HadoopTestCase {
 
 		assertThat(jobCounters.getCounter(ReducerCounter.FILES_CRUSHED),		equalTo(  31L));
 		assertThat(jobCounters.getCounter(ReducerCounter.RECORDS_CRUSHED),	equalTo(1256L));
+
+		return crush;
 	}
 
 	@Test